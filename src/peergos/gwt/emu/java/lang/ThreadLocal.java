@@ -0,0 +1,37 @@
+package java.lang;
+
+import java.util.function.*;
+
+public class ThreadLocal<T> {
+    private final Supplier<? extends T> initial;
+    private boolean isSet;
+    private T value;
+
+    public ThreadLocal() {
+        this(() -> null);
+    }
+
+    private ThreadLocal(Supplier<? extends T> initial) {
+        this.initial = initial;
+    }
+
+    public static <S> ThreadLocal<S> withInitial(Supplier<? extends S> supplier) {
+        return new ThreadLocal<>(supplier);
+    }
+
+    public T get() {
+        if (! isSet)
+            set(initial.get());
+        return value;
+    }
+
+    public void set(T value) {
+        this.value = value;
+        this.isSet = true;
+    }
+
+    public void remove() {
+        this.value = null;
+        this.isSet = false;
+    }
+}
@@ -1,5 +1,6 @@
 package peergos.server;
 
+import peergos.server.net.*;
 import peergos.shared.*;
 import peergos.shared.user.*;
 
@@ -10,7 +11,7 @@ public class Login {
 
     public static void main(String[] args) throws Exception {
         Crypto crypto = Crypto.initJava();
-        NetworkAccess network = NetworkAccess.buildJava(new URL("https://demo.peergos.net")).get();
+        NetworkAccess network = NetworkAccess.buildJava(new PooledJavaPoster(new URL("https://demo.peergos.net"))).get();
         String username = args[0];
         Console console = System.console();
         String password = new String(console.readPassword("Enter password for " + username + ":"));
@@ -3,7 +3,9 @@ package peergos.server;
 import peergos.shared.*;
 import peergos.server.corenode.*;
 import peergos.server.fuse.*;
+import peergos.server.metrics.*;
 import peergos.server.mutable.*;
+import peergos.server.net.*;
 import peergos.server.storage.*;
 import peergos.server.util.*;
 import peergos.shared.cbor.*;
@@ -26,6 +28,7 @@ import java.io.*;
 import java.net.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.function.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -88,6 +91,21 @@ public class Main {
                     new Command.Arg("pki-node-id", "Ipfs node id of the pki node", true),
                     new Command.Arg("domain", "Domain name to bind to,", false, "localhost"),
                     new Command.Arg("useIPFS", "Use IPFS for storage or ephemeral RAM store", false, "true"),
+                    new Command.Arg("blockstore-type", "Local block store format when not using IPFS: file (one file per block) or pack (log structured segment files)", false, "file"),
+                    new Command.Arg("blockstore-compaction-period", "Period in milliseconds between compactions of the pack block store", false, Integer.toString(10 * 60 * 1000)),
+                    new Command.Arg("blockstore-shards", "Comma separated directories, e.g. on other disks, to spread blocks over as well as the blockstore dir. Relative paths are resolved against the peergos dir", false),
+                    new Command.Arg("blockstore-mirror", "Directory, e.g. on another disk, to keep a second copy of every block in. Relative paths are resolved against the peergos dir", false),
+                    new Command.Arg("blockstore-write-quorum", "Number of block store replicas a write must reach before it completes", false, "2"),
+                    new Command.Arg("blockstore-io-threads", "Number of threads for blocking disk I/O in the file block store", false, Integer.toString(IoExecutor.DEFAULT_THREADS)),
+                    new Command.Arg("disk-cache-size", "Bytes of local disk to use for caching blocks read from IPFS, disabled if 0", false, "0"),
+                    new Command.Arg("disk-cache-dir", "Directory, relative to the peergos dir, for the local disk block cache", false, "blockcache"),
+                    new Command.Arg("offheap-cache-size", "Bytes of direct memory to use for caching small metadata blocks, disabled if 0. Also raise -XX:MaxDirectMemorySize to at least this", false, "0"),
+                    new Command.Arg("subtree-size-file", "File, relative to the peergos dir, to persist memoized subtree sizes for usage accounting in", false, "subtree-sizes.log"),
+                    new Command.Arg("pin-index-file", "File, relative to the peergos dir, to keep reference counts of pinned blocks in, so unreferenced blocks are deleted as they are unpinned. Disabled if absent", false),
+                    new Command.Arg("pin-index-delete-delay", "Milliseconds to wait before deleting a block which is no longer referenced", false, "60000"),
+                    new Command.Arg("gc-period", "Period in milliseconds between garbage collections of the local block store, disabled if absent", false),
+                    new Command.Arg("max-requests-per-route", "Maximum number of requests to each API route to handle at once", false, Integer.toString(UserService.DEFAULT_MAX_IN_FLIGHT_PER_ROUTE)),
+                    new Command.Arg("max-queued-per-route", "Maximum number of requests to each API route to queue when busy, beyond which they are rejected with a 503", false, Integer.toString(UserService.DEFAULT_MAX_QUEUED_PER_ROUTE)),
                     new Command.Arg("webroot", "the path to the directory to serve as the web root", false),
                     new Command.Arg("publicserver", "listen on all network interfaces, not just localhost", false),
                     new Command.Arg("default-quota", "default maximum storage per user", false, Long.toString(1024L * 1024 * 1024))
@@ -126,7 +144,7 @@ public class Main {
                     String ipfsApiAddress = args.getArg("ipfs-api-address", "/ip4/127.0.0.1/tcp/5001");
                     ContentAddressedStorage dht = useIPFS ?
                             new IpfsDHT(new MultiAddress(ipfsApiAddress)) :
-                            new FileContentAddressedStorage(blockstorePath(args));
+                            buildLocalStorage(args);
 
                     SigningKeyPair peergosIdentityKeys = peergos.getUser();
                     PublicKeyHash peergosPublicHash = ContentAddressedStorage.hashKey(peergosIdentityKeys.publicSigningKey);
@@ -184,7 +202,7 @@ public class Main {
                                     Files.readAllBytes(args.fromPeergosDir("pki.public.key.path")));
                     PublicKeyHash pkiPublicHash = ContentAddressedStorage.hashKey(pkiPublic);
                     int webPort = args.getInt("port");
-                    NetworkAccess network = NetworkAccess.buildJava(new URL("http://localhost:" + webPort)).get();
+                    NetworkAccess network = NetworkAccess.buildJava(new PooledJavaPoster(new URL("http://localhost:" + webPort))).get();
 
                     // sign up peergos user
                     UserContext context = UserContext.ensureSignedUp(pkiUsername, password, network, crypto).get();
@@ -239,7 +257,7 @@ public class Main {
 
                     Multihash pkiIpfsNodeId = useIPFS ?
                             new IpfsDHT(getLocalMultiAddress(ipfsApiPort)).id().get() :
-                            new FileContentAddressedStorage(blockstorePath(args)).id().get();
+                            buildLocalStorage(args).id().get();
 
                     if (ipfs != null)
                         ipfs.stop();
@@ -267,6 +285,8 @@ public class Main {
     public static void startPeergos(Args a) {
         try {
             PublicSigningKey.addProvider(PublicSigningKey.Type.Ed25519, new Ed25519.Java());
+            // before installing or starting ipfs, which may make the first connections
+            PooledJavaPoster.raiseKeepAliveLimit(PooledJavaPoster.DEFAULT_MAX_IN_FLIGHT);
 
             boolean useIPFS = a.getBoolean("useIPFS");
             if (useIPFS) {
@@ -281,14 +301,23 @@ public class Main {
             String domain = a.getArg("domain");
             InetSocketAddress userAPIAddress = new InetSocketAddress(domain, webPort);
 
-            int dhtCacheEntries = 1000;
+            long dhtCacheBytes = 50 * 1024 * 1024;
             int maxValueSizeToCache = 50 * 1024;
-            JavaPoster ipfsApi = new JavaPoster(ipfsApiAddress);
-            JavaPoster ipfsGateway = new JavaPoster(ipfsGatewayAddress);
-
-            ContentAddressedStorage localDht = useIPFS ?
-                    new CachingStorage(new ContentAddressedStorage.HTTP(ipfsApi), dhtCacheEntries, maxValueSizeToCache) :
-                    new FileContentAddressedStorage(blockstorePath(a));
+            PooledJavaPoster ipfsApi = new PooledJavaPoster(ipfsApiAddress);
+            PooledJavaPoster ipfsGateway = new PooledJavaPoster(ipfsGatewayAddress);
+
+            ContentAddressedStorage localStorage = useIPFS ?
+                    buildIpfsStorage(a, new MetricsStorage(new ContentAddressedStorage.HTTP(ipfsApi)), dhtCacheBytes, maxValueSizeToCache) :
+                    buildLocalStorage(a);
+            long offHeapCacheBytes = a.getLong("offheap-cache-size", 0);
+            // time calls to the backend itself, beneath any caches
+            ContentAddressedStorage timedStorage = useIPFS ? localStorage : new MetricsStorage(localStorage);
+            ContentAddressedStorage localDht = timedStorage;
+            if (offHeapCacheBytes > 0) {
+                OffHeapCachingStorage offHeap = new OffHeapCachingStorage(timedStorage, offHeapCacheBytes, maxValueSizeToCache);
+                registerCacheMetrics("offheap", offHeap::hits, offHeap::misses);
+                localDht = offHeap;
+            }
 
             String hostname = a.getArg("domain");
             int maxUserCount = a.getInt("max-user-count", CoreNode.MAX_USERNAME_COUNT);
@@ -298,7 +327,12 @@ public class Main {
             String path = mutablePointersSqlFile.equals(":memory:") ?
                     mutablePointersSqlFile :
                     a.fromPeergosDir("mutable-pointers-file").toString();
-            MutablePointers sqlMutable = UserRepository.buildSqlLite(path, localDht, maxUserCount);
+            UserRepository sqlMutable = UserRepository.buildSqlLite(path, localDht, maxUserCount);
+            if (localStorage instanceof RefCountingStorage)
+                ((RefCountingStorage) localStorage).start(sqlMutable::getAllRoots);
+            if (a.hasArg("gc-period") && localStorage instanceof DeletableContentAddressedStorage)
+                new GarbageCollector((DeletableContentAddressedStorage) localStorage, sqlMutable::getAllRoots)
+                        .start(a.getLong("gc-period"));
 
             // build a proxying corenode, unless we are the pki node
             CoreNode core = nodeId.equals(pkiServerNodeId) ?
@@ -309,7 +343,8 @@ public class Main {
             Logging.LOG().info("Using default user space quota of " + defaultQuota);
             Path quotaFilePath = a.fromPeergosDir("quotas_file","quotas.txt");
             UserQuotas userQuotas = new UserQuotas(quotaFilePath, defaultQuota);
-            SpaceCheckingKeyFilter spaceChecker = new SpaceCheckingKeyFilter(core, sqlMutable, localDht, userQuotas::quota);
+            ContentAddressedStorage sizingDht = new SubtreeSizeStorage(localDht, a.fromPeergosDir("subtree-size-file", "subtree-sizes.log"));
+            SpaceCheckingKeyFilter spaceChecker = new SpaceCheckingKeyFilter(core, sqlMutable, sizingDht, userQuotas::quota);
             CorenodeEventPropagator corePropagator = new CorenodeEventPropagator(core);
             corePropagator.addListener(spaceChecker::accept);
             MutableEventPropagator localMutable = new MutableEventPropagator(sqlMutable);
@@ -322,7 +357,10 @@ public class Main {
             MutablePointersProxy proxingMutable = new HttpMutablePointers(ipfsGateway, ipfsGateway);
             Path blacklistPath = a.fromPeergosDir("blacklist_file", "blacklist.txt");
             PublicKeyBlackList blacklist = new UserBasedBlacklist(blacklistPath, core, localMutable, p2pDht);
-            MutablePointers blockingMutablePointers = new BlockingMutablePointers(new PinningMutablePointers(localMutable, p2pDht), blacklist);
+            Optional<RefCountingStorage> refCounts = localStorage instanceof RefCountingStorage ?
+                    Optional.of((RefCountingStorage) localStorage) :
+                    Optional.empty();
+            MutablePointers blockingMutablePointers = new BlockingMutablePointers(new PinningMutablePointers(localMutable, p2pDht, refCounts), blacklist);
             MutablePointers p2mMutable = new ProxyingMutablePointers(nodeId, core, blockingMutablePointers, proxingMutable);
 
             SocialNetworkProxy httpSocial = new HttpSocialNetwork(ipfsGateway, ipfsGateway);
@@ -336,16 +374,23 @@ public class Main {
             Path userPath = a.fromPeergosDir("whitelist_file", "user_whitelist.txt");
             int delayMs = a.getInt("whitelist_sleep_period", 1000 * 60 * 10);
 
-            new UserFilePinner(userPath, core, p2mMutable, p2pDht, delayMs).start();
+            // reference counted pins only change through pointer updates, so re-pinning would be a no-op
+            if (! refCounts.isPresent())
+                new UserFilePinner(userPath, core, p2mMutable, p2pDht, delayMs).start();
 
-            UserService peergos = new UserService(p2pDht, corePropagator, p2pSocial, p2mMutable);
+            Optional<BlockRegionReader> localBlocks = localStorage instanceof BlockRegionReader ?
+                    Optional.of((BlockRegionReader) localStorage) :
+                    Optional.empty();
+            UserService peergos = new UserService(p2pDht, localBlocks, corePropagator, p2pSocial, p2mMutable);
             InetSocketAddress peergosAddress = new InetSocketAddress(hostname, userAPIAddress.getPort());
             Optional<Path> webroot = a.hasArg("webroot") ?
                     Optional.of(Paths.get(a.getArg("webroot"))) :
                     Optional.empty();
             boolean isPublicServer = a.hasArg("publicserver");
             boolean useWebAssetCache = a.getBoolean("webcache", true);
-            peergos.initAndStart(peergosAddress, webroot, isPublicServer, useWebAssetCache);
+            peergos.initAndStart(peergosAddress, webroot, isPublicServer, useWebAssetCache,
+                    a.getInt("max-requests-per-route", UserService.DEFAULT_MAX_IN_FLIGHT_PER_ROUTE),
+                    a.getInt("max-queued-per-route", UserService.DEFAULT_MAX_QUEUED_PER_ROUTE));
             spaceChecker.loadAllOwnerAndUsage();
         } catch (Exception e) {
             e.printStackTrace();
@@ -416,11 +461,11 @@ public class Main {
         System.out.println("Using mutable-pointers path " + path);
         boolean useIPFS = a.getBoolean("useIPFS");
 
-        int dhtCacheEntries = 1000;
+        long dhtCacheBytes = 100 * 1024 * 1024;
         int maxValueSizeToCache = 2 * 1024 * 1024;
         ContentAddressedStorage dht = useIPFS ?
-                new CachingStorage(new IpfsDHT(), dhtCacheEntries, maxValueSizeToCache) :
-                new FileContentAddressedStorage(blockstorePath(a));
+                new CachingStorage(new IpfsDHT(), dhtCacheBytes, maxValueSizeToCache) :
+                buildLocalStorage(a);
         try {
             Crypto crypto = Crypto.initJava();
             MutablePointers mutable = UserRepository.buildSqlLite(path
@@ -515,6 +560,114 @@ public class Main {
         return args.fromPeergosDir("blockstore_dir", "blockstore");
     }
 
+    private static final Map<Path, DeletableContentAddressedStorage> localStores = new HashMap<>();
+
+    /**
+     * Build (or reuse) the local block store from Args. A store directory is only ever opened once per process.
+     *
+     * @param args the blockstore and pin index options
+     * @return the store, with reference counted pinning if a pin index file is given
+     */
+    private static synchronized DeletableContentAddressedStorage buildLocalStorage(Args args) {
+        Path blockstore = blockstorePath(args);
+        return localStores.computeIfAbsent(blockstore, path -> {
+            DeletableContentAddressedStorage replicated = buildReplicatedStore(args, path);
+            if (! args.hasArg("pin-index-file"))
+                return replicated;
+            return new RefCountingStorage(replicated, args.fromPeergosDir("pin-index-file"),
+                    args.getLong("pin-index-delete-delay", 60_000));
+        });
+    }
+
+    private static DeletableContentAddressedStorage buildReplicatedStore(Args args, Path path) {
+        DeletableContentAddressedStorage primary = buildShardedStore(args, path);
+        if (! args.hasArg("blockstore-mirror"))
+            return primary;
+        DeletableContentAddressedStorage mirror = buildBlockStore(args, path.resolveSibling(args.getArg("blockstore-mirror")));
+        MirroredStorage mirrored = new MirroredStorage(Arrays.asList(primary, mirror), args.getInt("blockstore-write-quorum", 2));
+        // fill in anything written to only one replica before the last shutdown
+        mirrored.startRepair();
+        return mirrored;
+    }
+
+    private static DeletableContentAddressedStorage buildShardedStore(Args args, Path path) {
+        if (! args.hasArg("blockstore-shards"))
+            return buildBlockStore(args, path);
+        List<Path> dirs = new ArrayList<>();
+        dirs.add(path);
+        for (String dir : args.getArg("blockstore-shards").split(","))
+            dirs.add(path.resolveSibling(dir.trim()));
+        Map<String, DeletableContentAddressedStorage> shards = new LinkedHashMap<>();
+        for (Path dir : dirs) {
+            DeletableContentAddressedStorage shard = buildBlockStore(args, dir);
+            String id = ShardedStorage.loadShardId(dir);
+            if (shards.containsKey(id))
+                throw new IllegalStateException("Shard " + dir + " has the same id as another shard: " + id);
+            shards.put(id, shard);
+        }
+        ShardedStorage sharded = new ShardedStorage(shards);
+        // pick up any shards added since the last run
+        sharded.startRebalance();
+        return sharded;
+    }
+
+    private static DeletableContentAddressedStorage buildBlockStore(Args args, Path path) {
+        String type = args.getArg("blockstore-type", "file");
+        switch (type) {
+            case "file":
+                IoExecutor io = new IoExecutor("File store I/O",
+                        args.getInt("blockstore-io-threads", IoExecutor.DEFAULT_THREADS), IoExecutor.DEFAULT_MAX_QUEUED);
+                registerIoMetrics(path.toString(), io);
+                return new FileContentAddressedStorage(path, io);
+            case "pack":
+                PackFileStorage packs = new PackFileStorage(path);
+                packs.startCompaction(args.getLong("blockstore-compaction-period", 10 * 60 * 1000));
+                return packs;
+            default:
+                throw new IllegalStateException("Unknown blockstore-type: " + type);
+        }
+    }
+
+    /**
+     * Cache reads from IPFS in RAM, and also on local disk if a disk cache size is given
+     */
+    private static ContentAddressedStorage buildIpfsStorage(Args args, ContentAddressedStorage ipfs, long ramBytes, int maxValueSize) {
+        long diskCacheBytes = args.getLong("disk-cache-size", 0);
+        ContentAddressedStorage belowRam = ipfs;
+        if (diskCacheBytes > 0) {
+            IoExecutor io = new IoExecutor("Disk cache I/O");
+            registerIoMetrics("disk-cache", io);
+            FileContentAddressedStorage disk = new FileContentAddressedStorage(args.fromPeergosDir("disk-cache-dir", "blockcache"), io);
+            TieredStorage tiered = new TieredStorage(ipfs, disk, diskCacheBytes);
+            registerCacheMetrics("disk", tiered.diskCache()::hitCount, tiered.diskCache()::missCount);
+            belowRam = tiered;
+        }
+        CachingStorage cached = new CachingStorage(belowRam, ramBytes, maxValueSize);
+        registerCacheMetrics("ram", cached.cache()::hitCount, cached.cache()::missCount);
+        Metrics.counter("peergos_cache_coalesced_total", "Number of block reads which joined an identical read in flight",
+                cached::coalescedRequests, "cache", "ram");
+        Metrics.counter("peergos_cache_absent_hits_total", "Number of block reads answered by a cached absence",
+                cached::absentHits, "cache", "ram");
+        return cached;
+    }
+
+    private static void registerIoMetrics(String pool, IoExecutor io) {
+        Metrics.gauge("peergos_io_queue_depth", "Number of blocking I/O tasks waiting for a thread", io::queueDepth, "pool", pool);
+        Metrics.gauge("peergos_io_active_threads", "Number of threads running blocking I/O tasks", io::activeThreads, "pool", pool);
+        Metrics.counter("peergos_io_tasks_total", "Number of blocking I/O tasks run", io::completed, "pool", pool);
+        Metrics.counter("peergos_io_caller_runs_total", "Number of blocking I/O tasks run by the caller because the queue was full",
+                io::callerRuns, "pool", pool);
+        Metrics.counter("peergos_io_wait_microseconds_total", "Total time blocking I/O tasks waited for a thread",
+                io::totalWaitMicros, "pool", pool);
+        Metrics.counter("peergos_io_service_microseconds_total", "Total time spent running blocking I/O tasks",
+                io::totalServiceMicros, "pool", pool);
+    }
+
+    private static void registerCacheMetrics(String cache, LongSupplier hits, LongSupplier misses) {
+        Metrics.counter("peergos_cache_hits_total", "Number of block reads answered by a cache", hits, "cache", cache);
+        Metrics.counter("peergos_cache_misses_total", "Number of block reads a cache couldn't answer", misses, "cache", cache);
+    }
+
     public static MultiAddress getLocalMultiAddress(int port) {
         return new MultiAddress("/ip4/127.0.0.1/tcp/" + port);
     }
@@ -1,5 +1,6 @@
 package peergos.server;
 import java.util.logging.*;
+import peergos.server.net.*;
 import peergos.server.util.Logging;
 
 import peergos.server.corenode.*;
@@ -26,7 +27,7 @@ public class Playground {
 
     public static void main(String[] args) throws Exception {
         Crypto crypto = Crypto.initJava();
-        NetworkAccess source = NetworkAccess.buildJava(new URL("https://demo.peergos.net")).get();
+        NetworkAccess source = NetworkAccess.buildJava(new PooledJavaPoster(new URL("https://demo.peergos.net"))).get();
 
         ContentAddressedStorage nonWriteThroughIpfs = new NonWriteThroughStorage(source.dhtClient);
         MutablePointers nonWriteThroughPointers = new NonWriteThroughMutablePointers(source.mutable, nonWriteThroughIpfs);
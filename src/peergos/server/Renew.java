@@ -1,5 +1,6 @@
 package peergos.server;
 
+import peergos.server.net.*;
 import peergos.shared.*;
 import peergos.shared.user.*;
 
@@ -11,7 +12,7 @@ public class Renew {
 
     public static void main(String[] args) throws Exception {
         Crypto crypto = Crypto.initJava();
-        NetworkAccess network = NetworkAccess.buildJava(new URL("https://demo.peergos.net")).get();
+        NetworkAccess network = NetworkAccess.buildJava(new PooledJavaPoster(new URL("https://demo.peergos.net"))).get();
         String username = args[0];
         LocalDate expiry = LocalDate.parse(args[1]);
         Console console = System.console();
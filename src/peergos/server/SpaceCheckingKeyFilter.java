@@ -1,6 +1,7 @@
 package peergos.server;
 import java.util.logging.*;
 
+import peergos.server.metrics.*;
 import peergos.server.util.Logging;
 
 import peergos.server.corenode.*;
@@ -24,6 +25,10 @@ import java.util.function.*;
  */
 public class SpaceCheckingKeyFilter {
     private static final Logger LOG = Logging.LOG();
+    private static final LatencyHistogram CHECK_TIME = Metrics.histogram("peergos_quota_check_seconds",
+            "Time to check a write against the writer's quota");
+    private static final Counter REJECTED = Metrics.counter("peergos_quota_rejections_total",
+            "Number of writes rejected for exceeding a quota");
     private final CoreNode core;
     private final MutablePointers mutable;
     private final ContentAddressedStorage dht;
@@ -241,6 +246,15 @@ public class SpaceCheckingKeyFilter {
     }
 
     public boolean allowWrite(PublicKeyHash writer, int size) {
+        long t0 = System.nanoTime();
+        try {
+            return checkWrite(writer, size);
+        } finally {
+            CHECK_TIME.recordSince(t0);
+        }
+    }
+
+    private boolean checkWrite(PublicKeyHash writer, int size) {
         Stat state = currentView.get(writer);
         if (state == null)
             throw new IllegalStateException("Unknown writing key hash: " + writer);
@@ -251,6 +265,7 @@ public class SpaceCheckingKeyFilter {
         if (spaceUsed > quota || quota - spaceUsed - size <= 0) {
             long pending = usage.getPending(writer);
             usage.clearPending(writer);
+            REJECTED.inc();
             throw new IllegalStateException("Storage quota reached! Used "
                     + usage.usage + " out of " + quota + " bytes. Rejecting write of size " + (size + pending) + ". Please delete some files.");
         }
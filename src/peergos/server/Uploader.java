@@ -1,5 +1,6 @@
 package peergos.server;
 
+import peergos.server.net.*;
 import peergos.server.storage.*;
 import peergos.shared.*;
 import peergos.shared.crypto.random.*;
@@ -18,7 +19,7 @@ public class Uploader {
 
     public static void main(String[] args) throws Exception {
         Crypto crypto = Crypto.initJava();
-        NetworkAccess network = NetworkAccess.buildJava(new URL("https://demo.peergos.net")).get();
+        NetworkAccess network = NetworkAccess.buildJava(new PooledJavaPoster(new URL("https://demo.peergos.net"))).get();
         String username = args[0];
         String fromPath = args[1];
         String toPath = args[2];
@@ -4,6 +4,7 @@ import java.util.logging.Logger;
 
 import peergos.server.util.Args;
 import peergos.server.util.Logging;
+import peergos.server.metrics.*;
 import java.util.logging.Level;
 
 import com.sun.net.httpserver.*;
@@ -31,12 +32,20 @@ public class UserService {
 	private static final Logger LOG = Logging.LOG();
 
     public static final String DHT_URL = "/api/v0/";
+    public static final String DHT_BINARY_URL = DHTHandler.BINARY_API_PREFIX;
+    public static final String METRICS_URL = "/metrics";
     public static final String SIGNUP_URL = "/signup/";
     public static final String ACTIVATION_URL = "/activation/";
     public static final String UI_URL = "/";
 
     public static final int HANDLER_THREADS = 100;
     public static final int CONNECTION_BACKLOG = 100;
+    // requests waiting for a handler thread, beyond which they get a 503
+    public static final int MAX_QUEUED_REQUESTS = 1024;
+    public static final int DEFAULT_MAX_IN_FLIGHT_PER_ROUTE = 1024;
+    // synchronous handlers hold a thread per request, so no single route may take all of them
+    public static final int MAX_IN_FLIGHT_PER_SYNC_ROUTE = HANDLER_THREADS / 2;
+    public static final int DEFAULT_MAX_QUEUED_PER_ROUTE = 1024;
 
     static {
         // disable weak algorithms
@@ -71,24 +80,50 @@ public class UserService {
     }
 
     private final ContentAddressedStorage storage;
+    private final Optional<BlockRegionReader> localBlocks;
     private final CoreNode coreNode;
     private final SocialNetwork social;
     private final MutablePointers mutable;
 
     public UserService(ContentAddressedStorage storage,
+                       Optional<BlockRegionReader> localBlocks,
                        CoreNode coreNode,
                        SocialNetwork social,
                        MutablePointers mutable) {
         this.storage = storage;
+        this.localBlocks = localBlocks;
         this.coreNode = coreNode;
         this.social = social;
         this.mutable = mutable;
     }
 
+    public UserService(ContentAddressedStorage storage,
+                       CoreNode coreNode,
+                       SocialNetwork social,
+                       MutablePointers mutable) {
+        this(storage, Optional.empty(), coreNode, social, mutable);
+    }
+
     public boolean initAndStart(InetSocketAddress local,
                                 Optional<Path> webroot,
                                 boolean isPublicServer,
                                 boolean useWebCache) throws IOException {
+        return initAndStart(local, webroot, isPublicServer, useWebCache, DEFAULT_MAX_IN_FLIGHT_PER_ROUTE,
+                DEFAULT_MAX_QUEUED_PER_ROUTE);
+    }
+
+    /**
+     *
+     * @param maxInFlightPerRoute the maximum number of requests to each route to handle at once, which is at most
+     *                            MAX_IN_FLIGHT_PER_SYNC_ROUTE for routes with synchronous handlers
+     * @param maxQueuedPerRoute the maximum number of requests to each route to queue, beyond which they get a 503
+     */
+    public boolean initAndStart(InetSocketAddress local,
+                                Optional<Path> webroot,
+                                boolean isPublicServer,
+                                boolean useWebCache,
+                                int maxInFlightPerRoute,
+                                int maxQueuedPerRoute) throws IOException {
         boolean isLocal = local.getHostName().contains("local");
         if (!isLocal)
             try {
@@ -167,24 +202,37 @@ public class UserService {
             }
         }
 
-        Function<HttpHandler, HttpHandler> wrap = h -> !isLocal ? new HSTSHandler(h) : h;
-
-        server.createContext(DHT_URL,
-                wrap.apply(new DHTHandler(storage, (h, i) -> true)));
+        // The DHT handler only holds a thread while it reads a request, not while it waits on storage
+        ExecutorService handlerThreads = LoadSheddingHandler.boundedExecutor(HANDLER_THREADS, MAX_QUEUED_REQUESTS);
+        BiFunction<String, HttpHandler, HttpHandler> wrap = (route, h) -> {
+            LoadSheddingHandler shedding = new LoadSheddingHandler(!isLocal ? new HSTSHandler(h) : h,
+                    h instanceof AsyncHttpHandler ?
+                            maxInFlightPerRoute :
+                            Math.min(maxInFlightPerRoute, MAX_IN_FLIGHT_PER_SYNC_ROUTE),
+                    maxQueuedPerRoute, handlerThreads);
+            Metrics.counter("peergos_http_requests_shed_total", "Number of requests rejected with a 503 because a route was overloaded",
+                    shedding::shed, "route", route);
+            return shedding;
+        };
+
+        HttpHandler dhtHandler = wrap.apply(DHT_URL, new DHTHandler(storage, localBlocks, (h, i) -> true));
+        server.createContext(DHT_URL, dhtHandler);
+        server.createContext(DHT_BINARY_URL, dhtHandler);
+        server.createContext(METRICS_URL, wrap.apply(METRICS_URL, new MetricsHandler()));
 
         server.createContext("/" + HttpCoreNodeServer.CORE_URL,
-                wrap.apply(new HttpCoreNodeServer.CoreNodeHandler(this.coreNode)));
+                wrap.apply("/" + HttpCoreNodeServer.CORE_URL, new HttpCoreNodeServer.CoreNodeHandler(this.coreNode)));
 
         server.createContext("/" + HttpSocialNetworkServer.SOCIAL_URL,
-                wrap.apply(new HttpSocialNetworkServer.SocialHandler(this.social)));
+                wrap.apply("/" + HttpSocialNetworkServer.SOCIAL_URL, new HttpSocialNetworkServer.SocialHandler(this.social)));
 
         server.createContext("/" + HttpMutablePointerServer.MUTABLE_POINTERS_URL,
-                wrap.apply(new HttpMutablePointerServer.MutationHandler(this.mutable)));
+                wrap.apply("/" + HttpMutablePointerServer.MUTABLE_POINTERS_URL, new HttpMutablePointerServer.MutationHandler(this.mutable)));
 
         server.createContext(SIGNUP_URL,
-                wrap.apply(new InverseProxyHandler("demo.peergos.net", isLocal)));
+                wrap.apply(SIGNUP_URL, new InverseProxyHandler("demo.peergos.net", isLocal)));
         server.createContext(ACTIVATION_URL,
-                wrap.apply(new InverseProxyHandler("demo.peergos.net", isLocal)));
+                wrap.apply(ACTIVATION_URL, new InverseProxyHandler("demo.peergos.net", isLocal)));
 
         //define web-root static-handler
         if (webroot.isPresent())
@@ -199,9 +247,9 @@ public class UserService {
             handler = handler.withCache();
         }
 
-        server.createContext(UI_URL, wrap.apply(handler));
+        server.createContext(UI_URL, wrap.apply(UI_URL, handler));
 
-        server.setExecutor(Executors.newFixedThreadPool(HANDLER_THREADS));
+        server.setExecutor(handlerThreads);
         server.start();
 
         return true;
@@ -1,5 +1,7 @@
 package peergos.server;
 
+import peergos.server.net.*;
+import peergos.server.storage.*;
 import peergos.shared.*;
 import peergos.shared.corenode.*;
 import peergos.shared.crypto.hash.*;
@@ -7,6 +9,7 @@ import peergos.shared.merklebtree.*;
 import peergos.shared.user.*;
 
 import java.net.*;
+import java.nio.file.*;
 import java.time.*;
 import java.util.*;
 import java.util.stream.*;
@@ -15,7 +18,9 @@ public class UserStats {
 
     public static void main(String[] args) throws Exception {
         Crypto crypto = Crypto.initJava();
-        NetworkAccess network = NetworkAccess.buildJava(new URL("https://demo.peergos.net")).get();
+        NetworkAccess network = NetworkAccess.buildJava(new PooledJavaPoster(new URL("https://demo.peergos.net"))).get();
+        // subtree sizes never change, so remember them between runs
+        SubtreeSizeStorage sizes = new SubtreeSizeStorage(network.dhtClient, Paths.get("subtree-sizes.log"));
         List<String> usernames = network.coreNode.getUsernames("").get();
         List<Summary> summaries = usernames.stream().parallel().flatMap(username -> {
             try {
@@ -28,7 +33,7 @@ public class UserStats {
                 for (PublicKeyHash writer : ownedKeysRecursive) {
                     MaybeMultihash target = network.mutable.getPointerTarget(owner, writer, network.dhtClient).get();
                     if (target.isPresent())
-                        total += network.dhtClient.getRecursiveBlockSize(target.get()).get();
+                        total += sizes.getRecursiveBlockSize(target.get()).get();
                 }
                 String summary = "User: " + username + ", expiry: " + expiry + " usage: " + total + "\n";
                 System.out.println(summary);
@@ -42,6 +47,7 @@ public class UserStats {
 
         summaries.sort((a, b) -> (int) (b.usage - a.usage));
         summaries.forEach(System.out::println);
+        System.out.println(sizes);
     }
 
     private static class Summary {
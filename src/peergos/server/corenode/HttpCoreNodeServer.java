@@ -1,6 +1,7 @@
 package peergos.server.corenode;
 import java.util.logging.*;
 
+import peergos.server.metrics.*;
 import peergos.server.util.Logging;
 
 import peergos.server.mutable.*;
@@ -13,6 +14,7 @@ import java.net.*;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 import java.util.zip.*;
 
 import com.sun.net.httpserver.*;
@@ -25,7 +27,12 @@ import peergos.shared.util.Serialize;
 public class HttpCoreNodeServer {
 	private static final Logger LOG = Logging.LOG();
 
-    private static final boolean LOGGING = true;
+    private static final Map<String, LatencyHistogram> TIMES = Metrics.histograms("peergos_corenode_request_seconds",
+            "Time to handle core node api requests", "method",
+            "getChain", "updateChain", "getPublicKey", "getUsername", "getUsernamesGzip", "unknown");
+    private static final Map<String, Counter> ERRORS = TIMES.keySet().stream()
+            .collect(Collectors.toMap(m -> m, m -> Metrics.counter("peergos_corenode_request_errors_total",
+                    "Number of failed core node api requests", "method", m)));
     private static final int CONNECTION_BACKLOG = 100;
     private static final int HANDLER_THREAD_COUNT = 100;
 
@@ -42,7 +49,7 @@ public class HttpCoreNodeServer {
 
         public void handle(HttpExchange exchange) throws IOException 
         {
-            long t1 = System.currentTimeMillis();
+            long t1 = System.nanoTime();
             DataInputStream din = new DataInputStream(exchange.getRequestBody());
             
             ByteArrayOutputStream bout = new ByteArrayOutputStream();
@@ -85,6 +92,7 @@ public class HttpCoreNodeServer {
                 exchange.sendResponseHeaders(200, b.length);
                 exchange.getResponseBody().write(b);
             } catch (Exception e) {
+                ERRORS.getOrDefault(method, ERRORS.get("unknown")).inc();
                 Throwable cause = e.getCause();
                 if (cause != null)
                     exchange.getResponseHeaders().set("Trailer", cause.getMessage());
@@ -94,9 +102,7 @@ public class HttpCoreNodeServer {
                 exchange.sendResponseHeaders(400, 0);
             } finally {
                 exchange.close();
-                long t2 = System.currentTimeMillis();
-                if (LOGGING)
-                    LOG.info("Corenode server handled " + method + " request in: " + (t2 - t1) + " mS");
+                TIMES.getOrDefault(method, TIMES.get("unknown")).recordSince(t1);
             }
 
         }
@@ -615,6 +615,26 @@ public class JDBCCoreNode {
         return CompletableFuture.completedFuture(blob.insert());
     }
 
+    /**
+     *
+     * @return every writer with a mutable pointer, mapped to its current signed value
+     */
+    public CompletableFuture<Map<PublicKeyHash, byte[]>> getAllPointers() {
+        try (PreparedStatement stmt = conn.prepareStatement("select writingkey, hash from metadatablobs;"))
+        {
+            ResultSet rs = stmt.executeQuery();
+            Map<PublicKeyHash, byte[]> res = new HashMap<>();
+            while (rs.next())
+            {
+                PublicKeyHash writer = PublicKeyHash.fromCbor(CborObject.fromByteArray(Base64.getDecoder().decode(rs.getString("writingkey"))));
+                res.put(writer, Base64.getDecoder().decode(rs.getString("hash")));
+            }
+            return CompletableFuture.completedFuture(res);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash writingKey) {
         byte[] dummy = null;
         MetadataBlob blob = new MetadataBlob(writingKey.serialize(), dummy);
@@ -1,18 +1,23 @@
 package peergos.server.corenode;
 
+import peergos.shared.cbor.*;
 import peergos.shared.corenode.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.merklebtree.*;
 import peergos.shared.mutable.*;
 import peergos.shared.social.*;
 import peergos.shared.storage.*;
+import peergos.shared.util.*;
 
 import java.io.*;
 import java.sql.*;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
 public class UserRepository implements CoreNode, SocialNetwork, MutablePointers {
 
@@ -111,6 +116,25 @@ public class UserRepository implements CoreNode, SocialNetwork, MutablePointers
 
     }
 
+    /**
+     *
+     * @return every writer key and current root hash referenced by a mutable pointer. These are the roots of the
+     * reachable block graph.
+     */
+    public CompletableFuture<List<Multihash>> getAllRoots() {
+        return store.getAllPointers().thenCompose(pointers -> Futures.combineAllInOrder(pointers.entrySet().stream()
+                .map(e -> ipfs.getSigningKey(e.getKey()).thenApply(writerOpt -> {
+                    List<Multihash> roots = new ArrayList<>();
+                    roots.add(e.getKey().multihash);
+                    writerOpt.map(writer -> HashCasPair.fromCbor(CborObject.fromByteArray(writer.unsignMessage(e.getValue()))).updated)
+                            .filter(MaybeMultihash::isPresent)
+                            .ifPresent(root -> roots.add(root.get()));
+                    return roots;
+                }))
+                .collect(Collectors.toList())))
+                .thenApply(all -> all.stream().flatMap(List::stream).collect(Collectors.toList()));
+    }
+
     @Override
     public void close() throws IOException {
 
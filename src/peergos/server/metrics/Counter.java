@@ -0,0 +1,20 @@
+package peergos.server.metrics;
+
+import java.util.concurrent.atomic.*;
+
+/** A monotonic count which many threads can increment without contending */
+public class Counter {
+    private final LongAdder count = new LongAdder();
+
+    public void inc() {
+        count.increment();
+    }
+
+    public void inc(long n) {
+        count.add(n);
+    }
+
+    public long get() {
+        return count.sum();
+    }
+}
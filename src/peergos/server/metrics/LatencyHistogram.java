@@ -0,0 +1,93 @@
+package peergos.server.metrics;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/** A lock free histogram of durations, in the style of HdrHistogram.
+ *
+ *  Durations are counted in microseconds, in buckets which are one microsecond wide below 64, and above that split
+ *  each power of two into 32, so any recorded value is known to within about 3% whatever its magnitude. Recording is
+ *  an atomic increment and two adder updates, so it never blocks, and reading is a racy but consistent enough snapshot.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+
+    static int bucket(long micros) {
+        if (micros < 2 * SUB_BUCKETS)
+            return (int) micros;
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (micros >>> shift);
+    }
+
+    /**
+     *
+     * @return the largest value counted in bucket
+     */
+    static long highestValue(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public void record(long durationNanos) {
+        long micros = Math.max(0, durationNanos / 1000);
+        counts.incrementAndGet(bucket(micros));
+        count.increment();
+        sumMicros.add(micros);
+    }
+
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record how long the future returned by op takes to complete, whether or not it succeeds
+     */
+    public <T> CompletableFuture<T> time(Supplier<CompletableFuture<T>> op) {
+        long t0 = System.nanoTime();
+        return op.get().whenComplete((x, t) -> recordSince(t0));
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long sumMicros() {
+        return sumMicros.sum();
+    }
+
+    /**
+     *
+     * @param quantiles in increasing order, each between 0 and 1
+     * @return an upper bound on the value at each quantile, in microseconds, or 0 if nothing has been recorded
+     */
+    public long[] quantiles(double[] quantiles) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long[] res = new long[quantiles.length];
+        if (total == 0)
+            return res;
+        int bucket = 0;
+        long seen = snapshot[0];
+        for (int q = 0; q < quantiles.length; q++) {
+            long rank = Math.max(1, (long) Math.ceil(quantiles[q] * total));
+            while (seen < rank && bucket < BUCKETS - 1)
+                seen += snapshot[++bucket];
+            res[q] = highestValue(bucket);
+        }
+        return res;
+    }
+}
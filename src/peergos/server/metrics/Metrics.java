@@ -0,0 +1,143 @@
+package peergos.server.metrics;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** The server wide registry of latency histograms, counters and gauges, which renders them in the Prometheus text format.
+ *
+ *  Looking up a metric is lock free once it exists, but hot paths should still look theirs up once and keep it.
+ *  Histograms are exported as summaries, in seconds.
+ */
+public class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String SUMMARY = "summary", COUNTER = "counter", GAUGE = "gauge";
+
+    private static final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    private static class Family {
+        final String name, help, type;
+        // from the rendered labels, without braces, to a LatencyHistogram, Counter or LongSupplier
+        final Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static Family family(String name, String help, String type) {
+        Family family = families.get(name);
+        if (family == null)
+            family = families.computeIfAbsent(name, n -> new Family(n, help, type));
+        if (! family.type.equals(type))
+            throw new IllegalStateException("Metric " + name + " is already a " + family.type);
+        return family;
+    }
+
+    private static Object series(String name, String help, String type, String[] labels, Supplier<Object> create) {
+        Map<String, Object> series = family(name, help, type).series;
+        String key = labels(labels);
+        Object existing = series.get(key);
+        if (existing != null)
+            return existing;
+        return series.computeIfAbsent(key, k -> create.get());
+    }
+
+    /**
+     *
+     * @param labels alternating label names and values
+     */
+    public static LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram) series(name, help, SUMMARY, labels, LatencyHistogram::new);
+    }
+
+    /**
+     *
+     * @return a histogram for each value of label
+     */
+    public static Map<String, LatencyHistogram> histograms(String name, String help, String label, String... values) {
+        return Stream.of(values)
+                .collect(Collectors.toMap(v -> v, v -> histogram(name, help, label, v)));
+    }
+
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) series(name, help, COUNTER, labels, Counter::new);
+    }
+
+    /**
+     * Export a count which is kept elsewhere, replacing any previous source for the same labels
+     */
+    public static void counter(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, COUNTER).series.put(labels(labels), value);
+    }
+
+    /**
+     * Export a current value, such as a queue depth, which can go down as well as up
+     */
+    public static void gauge(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, GAUGE).series.put(labels(labels), value);
+    }
+
+    private static String labels(String[] labels) {
+        if (labels.length % 2 != 0)
+            throw new IllegalStateException("Labels must be name value pairs!");
+        StringBuilder res = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0)
+                res.append(',');
+            res.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        return res.toString();
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String braced(String labels, String extra) {
+        if (extra.isEmpty())
+            return labels.isEmpty() ? "" : "{" + labels + "}";
+        return "{" + (labels.isEmpty() ? extra : labels + "," + extra) + "}";
+    }
+
+    private static String seconds(long micros) {
+        return Double.toString(micros / 1_000_000.0);
+    }
+
+    /**
+     *
+     * @return every metric in the Prometheus text exposition format, version 0.0.4
+     */
+    public static String toPrometheusText() {
+        StringBuilder out = new StringBuilder();
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ')
+                    .append(family.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> e : family.series.entrySet()) {
+                String labels = e.getKey();
+                Object series = e.getValue();
+                if (series instanceof LatencyHistogram) {
+                    LatencyHistogram histogram = (LatencyHistogram) series;
+                    long[] values = histogram.quantiles(QUANTILES);
+                    for (int i = 0; i < QUANTILES.length; i++)
+                        out.append(family.name).append(braced(labels, "quantile=\"" + QUANTILES[i] + "\""))
+                                .append(' ').append(seconds(values[i])).append('\n');
+                    out.append(family.name).append("_sum").append(braced(labels, ""))
+                            .append(' ').append(seconds(histogram.sumMicros())).append('\n');
+                    out.append(family.name).append("_count").append(braced(labels, ""))
+                            .append(' ').append(histogram.count()).append('\n');
+                } else {
+                    long value = series instanceof Counter ?
+                            ((Counter) series).get() :
+                            ((LongSupplier) series).getAsLong();
+                    out.append(family.name).append(braced(labels, "")).append(' ').append(value).append('\n');
+                }
+            }
+        }
+        return out.toString();
+    }
+}
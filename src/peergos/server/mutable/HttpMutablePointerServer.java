@@ -2,6 +2,7 @@ package peergos.server.mutable;
 import java.util.*;
 import java.util.logging.*;
 
+import peergos.server.metrics.*;
 import peergos.server.util.*;
 
 import com.sun.net.httpserver.*;
@@ -13,13 +14,18 @@ import peergos.shared.mutable.*;
 import java.io.*;
 import java.net.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
 public class HttpMutablePointerServer {
 	private static final Logger LOG = Logging.LOG();
 
     public static final int PORT = 9998;
 
-    private static final boolean LOGGING = true;
+    private static final Map<String, LatencyHistogram> TIMES = Metrics.histograms("peergos_mutable_pointers_request_seconds",
+            "Time to handle mutable pointers api requests", "method", "setPointer", "getPointer", "unknown");
+    private static final Map<String, Counter> ERRORS = TIMES.keySet().stream()
+            .collect(Collectors.toMap(m -> m, m -> Metrics.counter("peergos_mutable_pointers_request_errors_total",
+                    "Number of failed mutable pointers api requests", "method", m)));
     private static final int CONNECTION_BACKLOG = 100;
     private static final int HANDLER_THREAD_COUNT = 100;
 
@@ -35,7 +41,7 @@ public class HttpMutablePointerServer {
 
         public void handle(HttpExchange exchange) throws IOException
         {
-            long t1 = System.currentTimeMillis();
+            long t1 = System.nanoTime();
             DataInputStream din = new DataInputStream(exchange.getRequestBody());
 
             ByteArrayOutputStream bout = new ByteArrayOutputStream();
@@ -69,15 +75,14 @@ public class HttpMutablePointerServer {
                 exchange.sendResponseHeaders(200, b.length);
                 exchange.getResponseBody().write(b);
             } catch (Exception e) {
+                ERRORS.getOrDefault(method, ERRORS.get("unknown")).inc();
                 LOG.log(Level.WARNING, e.getMessage(), e);
                 exchange.sendResponseHeaders(400, 0);
                 OutputStream body = exchange.getResponseBody();
                 body.write(e.getMessage().getBytes());
             } finally {
                 exchange.close();
-                long t2 = System.currentTimeMillis();
-                if (LOGGING)
-                    LOG.info("Mutable pointers server handled " + method + " request in: " + (t2 - t1) + " mS");
+                TIMES.getOrDefault(method, TIMES.get("unknown")).recordSince(t1);
             }
 
         }
@@ -1,6 +1,8 @@
 package peergos.server.mutable;
 import java.util.logging.*;
 
+import peergos.server.metrics.*;
+import peergos.server.storage.*;
 import peergos.server.util.Logging;
 
 import peergos.shared.cbor.*;
@@ -18,13 +20,24 @@ import java.util.stream.*;
 
 public class PinningMutablePointers implements MutablePointers {
 	private static final Logger LOG = Logging.LOG();
-    private static final boolean LOGGING = true;
+    private static final Map<String, LatencyHistogram> TIMES = Metrics.histograms("peergos_pointer_pin_seconds",
+            "Time to pin the new root, or unpin the old root, of a pointer update", "op", "pin", "unpin");
     private final MutablePointers target;
     private final ContentAddressedStorage storage;
+    private final Optional<RefCountingStorage> refCounts;
 
-    public PinningMutablePointers(MutablePointers target, ContentAddressedStorage storage) {
+    /**
+     *
+     * @param refCounts the local reference counts, which only change through pointer updates, if they are in use
+     */
+    public PinningMutablePointers(MutablePointers target, ContentAddressedStorage storage, Optional<RefCountingStorage> refCounts) {
         this.target = target;
         this.storage = storage;
+        this.refCounts = refCounts;
+    }
+
+    public PinningMutablePointers(MutablePointers target, ContentAddressedStorage storage) {
+        this(target, storage, Optional.empty());
     }
 
     @Override
@@ -33,18 +46,14 @@ public class PinningMutablePointers implements MutablePointers {
         return storage.getSigningKey(signerHash).thenCompose(signer -> {
             byte[] message = signer.get().unsignMessage(sharingKeySignedBtreeRootHashes);
             HashCasPair cas = HashCasPair.fromCbor(CborObject.fromByteArray(message));
-            long t1 = System.currentTimeMillis();
-            return (cas.original.isPresent() ? storage.pinUpdate(owner, cas.original.get(), cas.updated.get())
-                    .thenApply(PinningMutablePointers::convert) :
-                    storage.recursivePin(owner, cas.updated.get())).thenCompose(pins -> {
+            long t1 = System.nanoTime();
+            return pinNewRoot(owner, cas.original, cas.updated.get()).thenCompose(pins -> {
                 if (!pins.contains(cas.updated.get())) {
                     CompletableFuture<Boolean> err = new CompletableFuture<>();
                     err.completeExceptionally(new IllegalStateException("Couldn't pin new hash: " + cas.updated.get()));
                     return err;
                 }
-                long t2 = System.currentTimeMillis();
-                if (LOGGING)
-                    LOG.info("Tree:Pin update " + cas.updated + " took: " + (t2 - t1) + " mS");
+                TIMES.get("pin").recordSince(t1);
                 return target.setPointer(owner, signerHash, sharingKeySignedBtreeRootHashes)
                         .thenCompose(b -> {
                             if (!b) {
@@ -52,15 +61,13 @@ public class PinningMutablePointers implements MutablePointers {
                                 err.completeExceptionally(new IllegalStateException("Couldn't update mutable pointer, cas failed: " + cas));
                                 return err;
                             }
-                            long t3 = System.currentTimeMillis();
+                            long t3 = System.nanoTime();
                             // unpin old root
                             return !cas.original.isPresent() ?
                                     CompletableFuture.completedFuture(true) :
-                                    storage.recursiveUnpin(owner, cas.original.get())
+                                    unpinOldRoot(owner, cas.original.get())
                                             .thenApply(unpins -> {
-                                                long t4 = System.currentTimeMillis();
-                                                if (LOGGING)
-                                                    LOG.info("Unpinning " + cas.original + " took: " + (t4 - t3) + " mS");
+                                                TIMES.get("unpin").recordSince(t3);
                                                 return unpins.contains(cas.original.get());
                                             });
                         });
@@ -68,6 +75,23 @@ public class PinningMutablePointers implements MutablePointers {
         });
     }
 
+    /**
+     * Pin the new root, keeping the original pinned until the pointer has moved
+     */
+    private CompletableFuture<List<Multihash>> pinNewRoot(PublicKeyHash owner, MaybeMultihash original, Multihash updated) {
+        if (refCounts.isPresent())
+            return refCounts.get().pinRoot(owner, updated);
+        return original.isPresent() ?
+                storage.pinUpdate(owner, original.get(), updated).thenApply(PinningMutablePointers::convert) :
+                storage.recursivePin(owner, updated);
+    }
+
+    private CompletableFuture<List<Multihash>> unpinOldRoot(PublicKeyHash owner, Multihash original) {
+        return refCounts.isPresent() ?
+                refCounts.get().unpinRoot(owner, original) :
+                storage.recursiveUnpin(owner, original);
+    }
+
     private static List<Multihash> convert(List<MultiAddress> addresses) {
         return addresses.stream()
                 .filter(addr -> addr.toString().startsWith("/ipfs/"))
@@ -0,0 +1,44 @@
+package peergos.server.net;
+
+import com.sun.net.httpserver.*;
+import peergos.server.util.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/** A handler which may finish its exchange after handle returns, so that a server thread isn't held while it waits
+ *  on storage. The exchange is closed, possibly from another thread, when the returned future completes.
+ */
+public interface AsyncHttpHandler extends HttpHandler {
+
+    CompletableFuture<Void> handleAsync(HttpExchange exchange);
+
+    @Override
+    default void handle(HttpExchange exchange) throws IOException {
+        // log failures, as the server would have if a synchronous handler had thrown
+        handleAsync(exchange).exceptionally(t -> {
+            Logging.LOG().log(Level.WARNING, "Error handling " + exchange.getRequestURI() + ": " + t.getMessage(), t);
+            return null;
+        });
+    }
+
+    /**
+     *
+     * @return a future which completes when handler has finished with exchange
+     */
+    static CompletableFuture<Void> handleAsync(HttpHandler handler, HttpExchange exchange) {
+        if (handler instanceof AsyncHttpHandler)
+            return ((AsyncHttpHandler) handler).handleAsync(exchange);
+        CompletableFuture<Void> res = new CompletableFuture<>();
+        try {
+            handler.handle(exchange);
+            res.complete(null);
+        } catch (IOException | RuntimeException e) {
+            // as the server would if the handler threw
+            exchange.close();
+            res.completeExceptionally(e);
+        }
+        return res;
+    }
+}
@@ -0,0 +1,64 @@
+package peergos.server.net;
+
+import java.util.*;
+
+/** A single byte range [start, end) of a resource, parsed from an HTTP Range header.
+ *
+ *  Only single ranges in bytes are supported. Anything else, including multiple ranges, is treated as a request
+ *  for the whole resource, which RFC 7233 permits.
+ */
+public class ByteRange {
+    public final long start, end;
+
+    private ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long length() {
+        return end - start;
+    }
+
+    public boolean isSatisfiable() {
+        return start < end;
+    }
+
+    public String contentRange(long total) {
+        return "bytes " + start + "-" + (end - 1) + "/" + total;
+    }
+
+    /**
+     *
+     * @param header the value of the Range header
+     * @param total the length of the resource
+     * @return the requested range, which may be unsatisfiable, or empty if the whole resource should be sent
+     */
+    public static Optional<ByteRange> parse(String header, long total) {
+        String value = header.trim();
+        if (! value.startsWith("bytes=") || value.contains(","))
+            return Optional.empty();
+        String spec = value.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0)
+            return Optional.empty();
+        try {
+            String first = spec.substring(0, dash).trim(), last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // a suffix: the final n bytes
+                long suffix = Long.parseLong(last);
+                if (suffix < 0)
+                    return Optional.empty();
+                return Optional.of(new ByteRange(Math.max(0, total - suffix), total));
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? total : Long.parseLong(last) + 1;
+            if (start < 0 || (! last.isEmpty() && end <= start))
+                return Optional.empty();
+            if (start >= total)
+                return Optional.of(new ByteRange(total, total));
+            return Optional.of(new ByteRange(start, Math.min(end, total)));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+}
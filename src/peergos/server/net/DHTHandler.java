@@ -1,6 +1,8 @@
 package peergos.server.net;
 import java.util.logging.*;
 
+import peergos.server.metrics.*;
+import peergos.server.storage.*;
 import peergos.server.util.*;
 
 import peergos.shared.cbor.*;
@@ -15,36 +17,78 @@ import peergos.shared.util.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.stream.*;
 
-public class DHTHandler implements HttpHandler {
+public class DHTHandler implements AsyncHttpHandler {
 	private static final Logger LOG = Logging.LOG();
 
-    private static final boolean LOGGING = true;
+    private static final Map<String, LatencyHistogram> TIMES = Metrics.histograms("peergos_dht_request_seconds",
+            "Time to handle block api requests", "op",
+            "block/put", "block/get", "block/getMany", "pin/add", "pin/update", "pin/rm", "block/stat", "refs", "id",
+            "unknown");
+    private static final Map<String, Counter> ERRORS = TIMES.keySet().stream()
+            .collect(Collectors.toMap(op -> op, op -> Metrics.counter("peergos_dht_request_errors_total",
+                    "Number of failed block api requests", "op", op)));
+    private static final int MAX_BLOCKS_PER_GET_MANY = 128;
+    // blocks are content addressed, so they never change
+    private static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31622400, immutable";
+    // well above the largest fragment or cbor block, and a full chunk's worth of fragments
+    private static final int MAX_BLOCK_PUT_SIZE = 2 * 1024 * 1024;
+    private static final long MAX_BLOCK_PUT_TOTAL_SIZE = 64 * 1024 * 1024;
+    // verified blocks are written to the store in batches of at most this many blocks or bytes
+    private static final int MAX_BLOCKS_PER_PUT_BATCH = 64;
+    private static final long MAX_BYTES_PER_PUT_BATCH = 8 * 1024 * 1024;
+    // room for the signature and cbor headers in each frame of a binary put
+    private static final int MAX_SIGNATURE_FRAME_OVERHEAD = 1024;
+    // the binary api, in which block puts carry their signatures in the body, and reply with cbor
+    public static final String BINARY_API_PREFIX = "/api/v1/";
+    private static final ExecutorService putWorkers = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "Block put verifier");
+                t.setDaemon(true);
+                return t;
+            });
     private final ContentAddressedStorage dht;
+    private final Optional<BlockRegionReader> localBlocks;
     private final BiFunction<PublicKeyHash, Integer, Boolean> keyFilter;
     private final String apiPrefix;
 
-    public DHTHandler(ContentAddressedStorage dht, BiFunction<PublicKeyHash, Integer, Boolean> keyFilter, String apiPrefix) throws IOException
+    public DHTHandler(ContentAddressedStorage dht,
+                      Optional<BlockRegionReader> localBlocks,
+                      BiFunction<PublicKeyHash, Integer, Boolean> keyFilter,
+                      String apiPrefix) throws IOException
     {
         this.dht = dht;
+        this.localBlocks = localBlocks;
         this.keyFilter = keyFilter;
         this.apiPrefix = apiPrefix;
     }
 
+    public DHTHandler(ContentAddressedStorage dht, BiFunction<PublicKeyHash, Integer, Boolean> keyFilter, String apiPrefix) throws IOException {
+        this(dht, Optional.empty(), keyFilter, apiPrefix);
+    }
+
     public DHTHandler(ContentAddressedStorage dht, BiFunction<PublicKeyHash, Integer, Boolean> keyFilter) throws IOException {
         this(dht, keyFilter, "/api/v0/");
     }
 
+    public DHTHandler(ContentAddressedStorage dht, Optional<BlockRegionReader> localBlocks, BiFunction<PublicKeyHash, Integer, Boolean> keyFilter) throws IOException {
+        this(dht, localBlocks, keyFilter, "/api/v0/");
+    }
+
     @Override
-    public void handle(HttpExchange httpExchange) {
-        long t1 = System.currentTimeMillis();
+    public CompletableFuture<Void> handleAsync(HttpExchange httpExchange) {
+        long t1 = System.nanoTime();
         String path = httpExchange.getRequestURI().getPath();
+        // the reply, which completes after handle returns if it waits on storage
+        CompletableFuture<?> reply = CompletableFuture.completedFuture(null);
         try {
-            if (! path.startsWith(apiPrefix))
+            boolean isBinary = path.startsWith(BINARY_API_PREFIX);
+            if (! isBinary && ! path.startsWith(apiPrefix))
                 throw new IllegalStateException("Unsupported api version, required: " + apiPrefix);
-            path = path.substring(apiPrefix.length());
+            path = path.substring(isBinary ? BINARY_API_PREFIX.length() : apiPrefix.length());
             // N.B. URI.getQuery() decodes the query string
             Map<String, List<String>> params = HttpUtil.parseQuery(httpExchange.getRequestURI().getQuery());
             List<String> args = params.get("arg");
@@ -54,6 +98,29 @@ public class DHTHandler implements HttpHandler {
                 case "block/put": {
                     PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
                     PublicKeyHash writerHash = PublicKeyHash.fromString(last.apply("writer"));
+                    boolean isRaw = last.apply("format").equals("raw");
+
+                    // Each block is verified on a worker as soon as it has arrived, while the rest of the body is
+                    // still being received. Nothing is written until every signature has been checked.
+                    List<CompletableFuture<byte[]>> verified = new ArrayList<>();
+                    if (isBinary) {
+                        List<byte[]> signatures = new ArrayList<>();
+                        List<CompletableFuture<PublicSigningKey>> fromDht = new ArrayList<>();
+                        parseCborBlocks(httpExchange.getRequestBody(), (signature, block) -> {
+                            // the key can only be in band for a single block
+                            if (verified.size() == 1)
+                                fromDht.add(getSigningKey(writerHash));
+                            signatures.add(signature);
+                            verified.add(verifyBlock(writerHash, fromDht.isEmpty() ? null : fromDht.get(0), signature, block));
+                        });
+                        reply = Futures.combineAllInOrder(verified)
+                                .thenCompose(blocks -> putVerified(ownerHash, writerHash, isRaw, signatures, blocks))
+                                .thenAccept(hashes -> replyCbor(httpExchange,
+                                        new CborObject.CborList(hashes.stream()
+                                                .map(CborObject.CborMerkleLink::new)
+                                                .collect(Collectors.toList()))));
+                        break;
+                    }
                     List<byte[]> signatures = Arrays.stream(last.apply("signatures").split(","))
                             .map(ArrayOps::hexToBytes)
                             .collect(Collectors.toList());
@@ -63,89 +130,88 @@ public class DHTHandler implements HttpHandler {
                             .map(s -> s.substring(s.indexOf("=") + 1))
                             .findAny()
                             .get();
-                    List<byte[]> data = MultipartReceiver.extractFiles(httpExchange.getRequestBody(), boundary);
-                    boolean isRaw = last.apply("format").equals("raw");
 
-                    // check writer is allowed to write to this server, and check their free space
-                    if (! keyFilter.apply(writerHash, data.stream().mapToInt(x -> x.length).sum()))
-                        throw new IllegalStateException("Key not allowed to write to this server: " + writerHash);
-
-                    // Get the actual key, unless this is the initial write of the signing key during sign up
-                    // In the initial put of a signing key during sign up the key signs itself (we still check the hash
-                    // against the core node)
-                    Supplier<PublicSigningKey> fromDht = () -> {
-                        try {
-                            return PublicSigningKey.fromCbor(dht.get(writerHash.multihash).get().get());
-                        } catch (Exception e) {
-                            throw new RuntimeException(e);
-                        }
-                    };
-                    Supplier<PublicSigningKey> inBandOrDht = () -> {
-                        try {
-                            PublicSigningKey candidateKey = PublicSigningKey.fromByteArray(data.get(0));
-                            PublicKeyHash calculatedHash = ContentAddressedStorage.hashKey(candidateKey);
-                            if (calculatedHash.equals(writerHash)) {
-                                candidateKey.unsignMessage(ArrayOps.concat(signatures.get(0), data.get(0)));
-                                return candidateKey;
-                            }
-                        } catch (Throwable e) {
-                            // If signature is not valid then the signing key has already been written, retrieve it
-                            // This happens for the boxing key during sign up for example
-                        }
-                        return fromDht.get();
-                    };
-                    PublicSigningKey writer = data.size() > 1 ? fromDht.get() : inBandOrDht.get();
-
-                    // verify signatures
-                    for (int i = 0; i < data.size(); i++) {
-                        byte[] signature = signatures.get(i);
-                        byte[] unsigned = writer.unsignMessage(ArrayOps.concat(signature, data.get(i)));
-                        if (!Arrays.equals(unsigned, data.get(i)))
-                            throw new IllegalStateException("Invalid signature for block!");
-                    }
+                    CompletableFuture<PublicSigningKey> fromDht = signatures.size() > 1 ?
+                            getSigningKey(writerHash) :
+                            null;
+                    MultipartReceiver.parse(httpExchange.getRequestBody(), boundary, MAX_BLOCK_PUT_SIZE,
+                            MAX_BLOCK_PUT_TOTAL_SIZE, block -> {
+                        int index = verified.size();
+                        if (index >= signatures.size())
+                            throw new IllegalStateException("More blocks than signatures in put!");
+                        verified.add(verifyBlock(writerHash, fromDht, signatures.get(index), block));
+                    });
+                    if (verified.size() != signatures.size())
+                        throw new IllegalStateException("Fewer blocks than signatures in put!");
 
-                    List<Multihash> hashes = (isRaw ?
-                            dht.putRaw(ownerHash, writerHash, signatures, data) :
-                            dht.put(ownerHash, writerHash, signatures, data)).get();
-                    List<Object> json = hashes.stream()
-                            .map(h -> wrapHash(h))
-                            .collect(Collectors.toList());
-                    // make stream of JSON objects
-                    String jsonStream = json.stream()
-                            .map(m -> JSONParser.toString(m))
-                            .reduce("", (a, b) -> a + b);
-                    replyJson(httpExchange, jsonStream, Optional.empty());
+                    reply = Futures.combineAllInOrder(verified)
+                            .thenCompose(blocks -> putVerified(ownerHash, writerHash, isRaw, signatures, blocks))
+                            .thenAccept(hashes -> {
+                                List<Object> json = hashes.stream()
+                                        .map(h -> wrapHash(h))
+                                        .collect(Collectors.toList());
+                                // make stream of JSON objects
+                                String jsonStream = json.stream()
+                                        .map(m -> JSONParser.toString(m))
+                                        .reduce("", (a, b) -> a + b);
+                                replyJson(httpExchange, jsonStream, Optional.empty());
+                            });
                     break;
                 }
                 case "block/get":{
                     Multihash hash = Cid.decode(args.get(0));
-                    (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw ?
+                    if (isNotModified(httpExchange, hash)) {
+                        setBlockCacheHeaders(httpExchange, hash);
+                        httpExchange.sendResponseHeaders(304, -1);
+                        break;
+                    }
+                    // stream blocks held in local files straight to the response, without copying them onto the heap
+                    Optional<BlockRegion> region = localBlocks.isPresent() ?
+                            localBlocks.get().openBlock(hash) :
+                            Optional.empty();
+                    if (region.isPresent()) {
+                        try (BlockRegion block = region.get()) {
+                            replyRegion(httpExchange, block, hash);
+                        }
+                        break;
+                    }
+                    reply = (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw ?
                             dht.getRaw(hash) :
                             dht.get(hash).thenApply(opt -> opt.map(CborObject::toByteArray)))
-                            .thenAccept(opt -> replyBytes(httpExchange,
-                                    opt.orElse(new byte[0]), opt.map(x -> hash)))
-                            .exceptionally(Futures::logError).get();
+                            .thenAccept(opt -> replyBlockBytes(httpExchange, opt.orElse(new byte[0]), opt.map(x -> hash)))
+                            .exceptionally(Futures::logError);
+                    break;
+                }
+                case "block/getMany": {
+                    if (args == null || args.isEmpty())
+                        throw new IllegalStateException("block/getMany requires at least one arg!");
+                    if (args.size() > MAX_BLOCKS_PER_GET_MANY)
+                        throw new IllegalStateException("Too many blocks requested: " + args.size());
+                    List<Multihash> hashes = args.stream()
+                            .map(Cid::decode)
+                            .collect(Collectors.toList());
+                    reply = replyBlocks(httpExchange, hashes);
                     break;
                 }
                 case "pin/add": {
                     PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
                     Multihash hash = Cid.decode(args.get(0));
-                    dht.recursivePin(ownerHash, hash).thenAccept(pinned -> {
+                    reply = dht.recursivePin(ownerHash, hash).thenAccept(pinned -> {
                         Map<String, Object> json = new TreeMap<>();
                         json.put("Pins", pinned.stream().map(h -> h.toString()).collect(Collectors.toList()));
                         replyJson(httpExchange, JSONParser.toString(json), Optional.empty());
-                    }).exceptionally(Futures::logError).get();
+                    }).exceptionally(Futures::logError);
                     break;
                 }
                 case "pin/update": {
                     PublicKeyHash ownerHash = PublicKeyHash.fromString(last.apply("owner"));
                     Multihash existing = Cid.decode(args.get(0));
                     Multihash updated = Cid.decode(args.get(1));
-                    dht.pinUpdate(ownerHash, existing, updated).thenAccept(pinned -> {
+                    reply = dht.pinUpdate(ownerHash, existing, updated).thenAccept(pinned -> {
                         Map<String, Object> json = new TreeMap<>();
                         json.put("Pins", pinned.stream().map(h -> h.toString()).collect(Collectors.toList()));
                         replyJson(httpExchange, JSONParser.toString(json), Optional.empty());
-                    }).exceptionally(Futures::logError).get();
+                    }).exceptionally(Futures::logError);
                     break;
                 }
                 case "pin/rm": {
@@ -154,38 +220,38 @@ public class DHTHandler implements HttpHandler {
                     if (!recursive)
                         throw new IllegalStateException("Unimplemented: non recursive unpin!");
                     Multihash hash = Cid.decode(args.get(0));
-                    dht.recursiveUnpin(ownerHash, hash).thenAccept(unpinned -> {
+                    reply = dht.recursiveUnpin(ownerHash, hash).thenAccept(unpinned -> {
                         Map<String, Object> json = new TreeMap<>();
                         json.put("Pins", unpinned.stream().map(h -> h.toString()).collect(Collectors.toList()));
                         replyJson(httpExchange, JSONParser.toString(json), Optional.empty());
-                    }).exceptionally(Futures::logError).get();
+                    }).exceptionally(Futures::logError);
                     break;
                 }
                 case "block/stat": {
                     Multihash block = Cid.decode(args.get(0));
-                    dht.getSize(block).thenAccept(sizeOpt -> {
+                    reply = dht.getSize(block).thenAccept(sizeOpt -> {
                         Map<String, Object> res = new HashMap<>();
                         res.put("Size", sizeOpt.orElse(0));
                         String json = JSONParser.toString(res);
                         replyJson(httpExchange, json, Optional.of(block));
-                    }).exceptionally(Futures::logError).get();
+                    }).exceptionally(Futures::logError);
                     break;
                 }
                 case "refs": {
                     Multihash block = Cid.decode(args.get(0));
-                    dht.getLinks(block).thenAccept(links -> {
+                    reply = dht.getLinks(block).thenAccept(links -> {
                         List<Object> json = links.stream().map(h -> wrapHash("Ref", h)).collect(Collectors.toList());
                         // make stream of JSON objects
                         String jsonStream = json.stream().map(m -> JSONParser.toString(m)).reduce("", (a, b) -> a + b);
                         replyJson(httpExchange, jsonStream, Optional.of(block));
-                    }).exceptionally(Futures::logError).get();
+                    }).exceptionally(Futures::logError);
                     break;
                 }
                 case "id": {
-                    dht.id().thenAccept(id -> {
+                    reply = dht.id().thenAccept(id -> {
                         Object json = wrapHash("ID", id);
                         replyJson(httpExchange, JSONParser.toString(json), Optional.empty());
-                    }).exceptionally(Futures::logError).get();
+                    }).exceptionally(Futures::logError);
                     break;
                 }
                 default: {
@@ -193,15 +259,137 @@ public class DHTHandler implements HttpHandler {
                 }
             }
         } catch (Exception e) {
-            LOG.severe("Error handling " +httpExchange.getRequestURI());
-            LOG.log(Level.WARNING, e.getMessage(), e);
-            replyError(httpExchange, e);
-        } finally {
+            CompletableFuture<?> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            reply = failed;
+        }
+        String handled = TIMES.containsKey(path) ? path : "unknown";
+        return reply.handle((x, t) -> {
+            if (t != null) {
+                ERRORS.get(handled).inc();
+                LOG.severe("Error handling " +httpExchange.getRequestURI());
+                LOG.log(Level.WARNING, t.getMessage(), t);
+                replyError(httpExchange, t);
+            }
             httpExchange.close();
-            long t2 = System.currentTimeMillis();
-            if (LOGGING)
-                LOG.info("DHT Handler handled " + path + " query in: " + (t2 - t1) + " mS");
+            TIMES.get(handled).recordSince(t1);
+            return null;
+        });
+    }
+
+    /**
+     * Check the writer is allowed to write the block, then verify its signature on a worker
+     *
+     * @param fromDht the writer's key, or null to use the key in the block if it is signed by itself
+     * @return the block, once its signature has been verified
+     */
+    private CompletableFuture<byte[]> verifyBlock(PublicKeyHash writerHash,
+                                                  CompletableFuture<PublicSigningKey> fromDht,
+                                                  byte[] signature,
+                                                  byte[] block) {
+        // check writer is allowed to write to this server, and check their free space
+        if (! keyFilter.apply(writerHash, block.length))
+            throw new IllegalStateException("Key not allowed to write to this server: " + writerHash);
+        CompletableFuture<PublicSigningKey> writer = fromDht != null ?
+                fromDht :
+                CompletableFuture.supplyAsync(() -> inBandSigningKey(writerHash, signature, block), putWorkers)
+                        .thenCompose(inBand -> inBand.isPresent() ?
+                                CompletableFuture.completedFuture(inBand.get()) :
+                                getSigningKey(writerHash));
+        return writer.thenApplyAsync(key -> {
+            if (! key.isValidSignature(signature, block))
+                throw new IllegalStateException("Invalid signature for block!");
+            return block;
+        }, putWorkers);
+    }
+
+    /**
+     * Write verified blocks in batches of bounded count and size, so the store can group commit each batch
+     *
+     * @return the hashes of the blocks, in order
+     */
+    private CompletableFuture<List<Multihash>> putVerified(PublicKeyHash ownerHash,
+                                                           PublicKeyHash writerHash,
+                                                           boolean isRaw,
+                                                           List<byte[]> signatures,
+                                                           List<byte[]> blocks) {
+        List<CompletableFuture<List<Multihash>>> batches = new ArrayList<>();
+        int start = 0;
+        long batchBytes = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            batchBytes += blocks.get(i).length;
+            boolean isLast = i == blocks.size() - 1;
+            if (isLast || i + 1 - start >= MAX_BLOCKS_PER_PUT_BATCH ||
+                    batchBytes + blocks.get(i + 1).length > MAX_BYTES_PER_PUT_BATCH) {
+                List<byte[]> batchSignatures = new ArrayList<>(signatures.subList(start, i + 1));
+                List<byte[]> batch = new ArrayList<>(blocks.subList(start, i + 1));
+                batches.add(isRaw ?
+                        dht.putRaw(ownerHash, writerHash, batchSignatures, batch) :
+                        dht.put(ownerHash, writerHash, batchSignatures, batch));
+                start = i + 1;
+                batchBytes = 0;
+            }
+        }
+        return Futures.combineAllInOrder(batches)
+                .thenApply(hashes -> hashes.stream()
+                        .flatMap(List::stream)
+                        .collect(Collectors.toList()));
+    }
+
+    /**
+     * Parse a binary block put body, which is a 4 byte big endian length followed by a cbor list of
+     * [signature, block], for each block.
+     *
+     * @param onBlock called with the signature and block of each frame, in order, as soon as it has been read
+     */
+    public static void parseCborBlocks(InputStream in, BiConsumer<byte[], byte[]> onBlock) throws IOException {
+        DataInputStream din = new DataInputStream(new BufferedInputStream(in));
+        long total = 0;
+        while (true) {
+            int b0 = din.read();
+            if (b0 < 0)
+                return;
+            int length = (b0 << 24) | (din.readUnsignedByte() << 16) | din.readUnsignedShort();
+            if (length < 0 || length > MAX_BLOCK_PUT_SIZE + MAX_SIGNATURE_FRAME_OVERHEAD)
+                throw new IllegalStateException("Block put frame larger than " + MAX_BLOCK_PUT_SIZE + " bytes");
+            total += length;
+            if (total > MAX_BLOCK_PUT_TOTAL_SIZE)
+                throw new IllegalStateException("Block put body larger than " + MAX_BLOCK_PUT_TOTAL_SIZE + " bytes");
+            byte[] frame = new byte[length];
+            din.readFully(frame);
+            CborObject cbor = CborObject.fromByteArray(frame);
+            if (! (cbor instanceof CborObject.CborList) || ((CborObject.CborList) cbor).value.size() != 2)
+                throw new IllegalStateException("Invalid block put frame!");
+            List<? extends Cborable> parts = ((CborObject.CborList) cbor).value;
+            if (! (parts.get(0) instanceof CborObject.CborByteArray) || ! (parts.get(1) instanceof CborObject.CborByteArray))
+                throw new IllegalStateException("Invalid block put frame!");
+            onBlock.accept(((CborObject.CborByteArray) parts.get(0)).value, ((CborObject.CborByteArray) parts.get(1)).value);
+        }
+    }
+
+    private CompletableFuture<PublicSigningKey> getSigningKey(PublicKeyHash writerHash) {
+        return dht.get(writerHash.multihash)
+                .thenApply(cbor -> PublicSigningKey.fromCbor(cbor.orElseThrow(() ->
+                        new IllegalStateException("Unknown writer key: " + writerHash))));
+    }
+
+    /**
+     * In the initial put of a signing key during sign up the key signs itself (we still check the hash against the
+     * core node)
+     *
+     * @return the key in block, if it is the writer's key and signed by itself
+     */
+    private static Optional<PublicSigningKey> inBandSigningKey(PublicKeyHash writerHash, byte[] signature, byte[] block) {
+        try {
+            PublicSigningKey candidateKey = PublicSigningKey.fromByteArray(block);
+            PublicKeyHash calculatedHash = ContentAddressedStorage.hashKey(candidateKey);
+            if (calculatedHash.equals(writerHash) && candidateKey.isValidSignature(signature, block))
+                return Optional.of(candidateKey);
+        } catch (Throwable e) {
+            // If the block isn't a key then the signing key has already been written, retrieve it
+            // This happens for the boxing key during sign up for example
         }
+        return Optional.empty();
     }
 
     private static Map<String, Object> wrapHash(Multihash h) {
@@ -227,8 +415,8 @@ public class DHTHandler implements HttpHandler {
     private static void replyJson(HttpExchange exchange, String json, Optional<Multihash> key) {
         try {
             if (key.isPresent()) {
-                exchange.getResponseHeaders().set("Cache-Control", "public, max-age=31622400 immutable");
-                exchange.getResponseHeaders().set("ETag", "\"" + key.get().toString() + "\"");
+                exchange.getResponseHeaders().set("Cache-Control", IMMUTABLE_CACHE_CONTROL);
+                exchange.getResponseHeaders().set("ETag", etag(key.get()));
             }
             byte[] raw = json.getBytes();
             exchange.sendResponseHeaders(200, raw.length);
@@ -242,17 +430,161 @@ public class DHTHandler implements HttpHandler {
         }
     }
 
-    private static void replyBytes(HttpExchange exchange, byte[] body, Optional<Multihash> key) {
+    private static void replyCbor(HttpExchange exchange, CborObject cbor) {
+        try {
+            byte[] raw = cbor.toByteArray();
+            exchange.getResponseHeaders().set("Content-Type", "application/cbor");
+            exchange.sendResponseHeaders(200, raw.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(raw);
+            out.close();
+        } catch (IOException e)
+        {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
+
+    private static String etag(Multihash key) {
+        return "\"" + key.toString() + "\"";
+    }
+
+    private static void setBlockCacheHeaders(HttpExchange exchange, Multihash key) {
+        exchange.getResponseHeaders().set("Cache-Control", IMMUTABLE_CACHE_CONTROL);
+        exchange.getResponseHeaders().set("ETag", etag(key));
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+    }
+
+    /**
+     *
+     * @return whether the client already has this block, according to its If-None-Match header. Only this block's
+     * etag matches; "*" would also match blocks we don't have, because this is checked before looking the block up.
+     */
+    private static boolean isNotModified(HttpExchange exchange, Multihash key) {
+        List<String> conditions = exchange.getRequestHeaders().get("If-None-Match");
+        if (conditions == null)
+            return false;
+        String etag = etag(key);
+        return conditions.stream()
+                .flatMap(header -> Arrays.stream(header.split(",")))
+                .map(String::trim)
+                .map(tag -> tag.startsWith("W/") ? tag.substring(2) : tag)
+                .anyMatch(tag -> tag.equals(etag));
+    }
+
+    /**
+     *
+     * @return the single byte range requested, unless there is none or an If-Range condition doesn't match this block
+     */
+    private static Optional<ByteRange> requestedRange(HttpExchange exchange, Multihash key, long length) {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range == null)
+            return Optional.empty();
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        if (ifRange != null && ! ifRange.trim().equals(etag(key)))
+            return Optional.empty();
+        return ByteRange.parse(range, length);
+    }
+
+    private interface BlockWriter {
+        void write(OutputStream out, long start, long count) throws IOException;
+    }
+
+    /**
+     * Reply with the whole block, or the byte range requested, with headers allowing it to be cached forever
+     */
+    private static void replyBlock(HttpExchange exchange, Multihash key, long length, BlockWriter body) throws IOException {
+        setBlockCacheHeaders(exchange, key);
+        Optional<ByteRange> range = requestedRange(exchange, key, length);
+        if (range.isPresent() && ! range.get().isSatisfiable()) {
+            exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+            exchange.sendResponseHeaders(416, -1);
+            return;
+        }
+        long start = range.map(r -> r.start).orElse(0L);
+        long count = range.map(ByteRange::length).orElse(length);
+        if (range.isPresent()) {
+            exchange.getResponseHeaders().set("Content-Range", range.get().contentRange(length));
+            exchange.sendResponseHeaders(206, count);
+        } else
+            exchange.sendResponseHeaders(200, count == 0 ? -1 : count);
+        OutputStream out = exchange.getResponseBody();
+        body.write(out, start, count);
+        out.flush();
+        out.close();
+    }
+
+    private static void replyRegion(HttpExchange exchange, BlockRegion block, Multihash key) throws IOException {
+        replyBlock(exchange, key, block.length, block::transferTo);
+    }
+
+    /**
+     * Reply with a 4 byte big endian length followed by the block, for each block, or just a length of -1 if it is
+     * absent. Blocks held in local files are streamed straight to the response.
+     */
+    private CompletableFuture<Void> replyBlocks(HttpExchange exchange, List<Multihash> hashes) throws IOException {
+        List<Optional<BlockRegion>> regions = new ArrayList<>();
+        try {
+            for (Multihash hash : hashes)
+                regions.add(localBlocks.isPresent() ? localBlocks.get().openBlock(hash) : Optional.empty());
+        } catch (IOException e) {
+            closeAll(regions);
+            throw e;
+        }
+        List<Multihash> remaining = IntStream.range(0, hashes.size())
+                .filter(i -> ! regions.get(i).isPresent())
+                .mapToObj(hashes::get)
+                .collect(Collectors.toList());
+        return dht.getRawMany(remaining).thenAccept(fetchedBlocks -> {
+            Iterator<Optional<byte[]>> fetched = fetchedBlocks.iterator();
+            List<Optional<byte[]>> blocks = regions.stream()
+                    .map(r -> r.isPresent() ? Optional.<byte[]>empty() : fetched.next())
+                    .collect(Collectors.toList());
+            try {
+                long length = 0;
+                for (int i = 0; i < hashes.size(); i++)
+                    length += 4 + (regions.get(i).isPresent() ?
+                            regions.get(i).get().length :
+                            blocks.get(i).map(b -> b.length).orElse(0));
+                exchange.sendResponseHeaders(200, length);
+                DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(exchange.getResponseBody()));
+                for (int i = 0; i < hashes.size(); i++) {
+                    if (regions.get(i).isPresent()) {
+                        BlockRegion region = regions.get(i).get();
+                        dout.writeInt(region.length);
+                        region.transferTo(dout);
+                    } else if (blocks.get(i).isPresent()) {
+                        dout.writeInt(blocks.get(i).get().length);
+                        dout.write(blocks.get(i).get());
+                    } else
+                        dout.writeInt(-1);
+                }
+                dout.flush();
+                dout.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }).whenComplete((x, t) -> closeAll(regions));
+    }
+
+    private static void closeAll(List<Optional<BlockRegion>> regions) {
+        for (Optional<BlockRegion> region : regions)
+            if (region.isPresent())
+                try {
+                    region.get().close();
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                }
+    }
+
+    private static void replyBlockBytes(HttpExchange exchange, byte[] body, Optional<Multihash> key) {
         try {
             if (key.isPresent()) {
-                exchange.getResponseHeaders().set("Cache-Control", "public, max-age=31622400 immutable");
-                exchange.getResponseHeaders().set("ETag", "\"" + key.get().toString() + "\"");
+                replyBlock(exchange, key.get(), body.length, (out, start, count) -> out.write(body, (int) start, (int) count));
+                return;
             }
-            exchange.sendResponseHeaders(200, body.length);
-            DataOutputStream dout = new DataOutputStream(exchange.getResponseBody());
-            dout.write(body);
-            dout.flush();
-            dout.close();
+            // an absent block mustn't be cached
+            exchange.sendResponseHeaders(200, -1);
+            exchange.getResponseBody().close();
         } catch (IOException e)
         {
             LOG.log(Level.WARNING, e.getMessage(), e);
@@ -0,0 +1,184 @@
+package peergos.server.net;
+
+import com.sun.net.httpserver.*;
+import peergos.server.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/** Limits how many requests to a route are handled at once.
+ *
+ *  Up to maxQueued more requests wait for a slot, and anything beyond that is answered immediately with a 503, so a
+ *  slow backend behind one route sheds load rather than exhausting the server's threads or memory. Asynchronous
+ *  handlers hold a slot until their exchange is finished, but not a thread. Queued requests don't hold a thread
+ *  either; they are started on the executor when a slot frees up.
+ *
+ *  Synchronous handlers hold a thread for as long as they hold a slot, so their limit should be below the number of
+ *  server threads, and the server should use a boundedExecutor so that requests beyond its queue are also shed.
+ */
+public class LoadSheddingHandler implements AsyncHttpHandler {
+    private static final Logger LOG = Logging.LOG();
+    private static final int OVERFLOW_THREADS = 2;
+
+    private final HttpHandler target;
+    private final int maxInFlight, maxQueued;
+    private final Executor executor;
+    // guarded by this
+    private final Queue<Pending> queue = new ArrayDeque<>();
+    private int inFlight;
+    private long shed;
+
+    private static class Pending {
+        final HttpExchange exchange;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+    }
+
+    /** A request started on the executor from the queue, which can be rejected if the executor is full */
+    private class QueuedRequest implements Runnable {
+        final Pending pending;
+
+        QueuedRequest(Pending pending) {
+            this.pending = pending;
+        }
+
+        @Override
+        public void run() {
+            LoadSheddingHandler.this.run(pending.exchange).whenComplete((x, t) -> {
+                if (t == null)
+                    pending.done.complete(null);
+                else
+                    pending.done.completeExceptionally(t);
+            });
+        }
+
+        void reject() {
+            synchronized (LoadSheddingHandler.this) {
+                shed++;
+            }
+            LoadSheddingHandler.reject(pending.exchange);
+            pending.done.complete(null);
+            finished();
+        }
+    }
+
+    /** Runs requests which the server couldn't queue, only so that they can be answered with a 503 */
+    private static class OverflowThread extends Thread {
+        OverflowThread(Runnable r) {
+            super(r, "Overflow request rejector");
+            setDaemon(true);
+        }
+    }
+
+    public LoadSheddingHandler(HttpHandler target, int maxInFlight, int maxQueued, Executor executor) {
+        this.target = target;
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.executor = executor;
+    }
+
+    /**
+     * An executor for an HttpServer whose handlers are all wrapped in a LoadSheddingHandler, with a fixed number of
+     * threads and at most maxQueued waiting requests. The server hasn't read a request when it hands it to the
+     * executor, so a request beyond that is run on an overflow thread instead, where the LoadSheddingHandler replies
+     * with a 503 rather than calling its handler.
+     */
+    public static ExecutorService boundedExecutor(int threads, int maxQueued) {
+        ExecutorService overflow = Executors.newFixedThreadPool(OVERFLOW_THREADS, OverflowThread::new);
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(maxQueued),
+                (r, pool) -> {
+                    if (r instanceof LoadSheddingHandler.QueuedRequest)
+                        ((LoadSheddingHandler.QueuedRequest) r).reject();
+                    else
+                        overflow.execute(r);
+                });
+    }
+
+    @Override
+    public CompletableFuture<Void> handleAsync(HttpExchange exchange) {
+        if (Thread.currentThread() instanceof OverflowThread) {
+            synchronized (this) {
+                shed++;
+            }
+            return reject(exchange);
+        }
+        synchronized (this) {
+            if (inFlight >= maxInFlight) {
+                if (queue.size() < maxQueued) {
+                    Pending pending = new Pending(exchange);
+                    queue.add(pending);
+                    return pending.done;
+                }
+                shed++;
+                return reject(exchange);
+            }
+            inFlight++;
+        }
+        return run(exchange);
+    }
+
+    private static CompletableFuture<Void> reject(HttpExchange exchange) {
+        try {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            exchange.sendResponseHeaders(503, -1);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        } finally {
+            exchange.close();
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private CompletableFuture<Void> run(HttpExchange exchange) {
+        CompletableFuture<Void> done;
+        try {
+            done = AsyncHttpHandler.handleAsync(target, exchange);
+        } catch (Throwable t) {
+            done = new CompletableFuture<>();
+            done.completeExceptionally(t);
+        }
+        return done.whenComplete((x, t) -> finished());
+    }
+
+    /**
+     * Hand the finished request's slot straight to the next queued request, if any
+     */
+    private void finished() {
+        Pending next;
+        synchronized (this) {
+            next = queue.poll();
+            if (next == null) {
+                inFlight--;
+                return;
+            }
+        }
+        executor.execute(new QueuedRequest(next));
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    public synchronized int queued() {
+        return queue.size();
+    }
+
+    /**
+     *
+     * @return the number of requests rejected with a 503
+     */
+    public synchronized long shed() {
+        return shed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LoadSheddingHandler(in flight: " + inFlight + "/" + maxInFlight + ", queued: " + queue.size() + "/" +
+                maxQueued + ", shed: " + shed + ")";
+    }
+}
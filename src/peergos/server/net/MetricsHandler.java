@@ -0,0 +1,29 @@
+package peergos.server.net;
+
+import com.sun.net.httpserver.*;
+import peergos.server.metrics.*;
+
+import java.io.*;
+
+/** Serves every metric in the Prometheus text format */
+public class MetricsHandler implements HttpHandler {
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (! exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = Metrics.toPrometheusText().getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-store");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        } finally {
+            exchange.close();
+        }
+    }
+}
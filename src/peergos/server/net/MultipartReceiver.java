@@ -2,83 +2,181 @@ package peergos.server.net;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.*;
 
+/** A streaming multipart/form-data parser.
+ *
+ *  The body is read in large chunks and each chunk is searched for the part delimiter with Boyer-Moore-Horspool, so
+ *  the cost per byte is a fraction of a comparison rather than a stream read. Parts are handed to a callback as they
+ *  complete, and parts or bodies over the given limits are rejected as soon as they are exceeded, before they are
+ *  fully read.
+ */
 public class MultipartReceiver {
     private static final byte[] DOUBLE_NEW_LINE = "\r\n\r\n".getBytes();
+    private static final byte[] CLOSE_DELIMITER = "--".getBytes();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADERS_SIZE = 8 * 1024;
 
-    public static List<byte[]> extractFiles(InputStream rawIn, String boundary) {
-        try {
-            int maxLineSize = 1024;
-            InputStream in = new BufferedInputStream(rawIn);
-            String first = readLine(in, maxLineSize);
-            if (!first.substring(2).equals(boundary))
-                throw new IllegalStateException("Incorrect boundary! " + boundary + " != " + first.substring(2));
-            byte[] firstHeaders = readUntil(DOUBLE_NEW_LINE, in);
+    public static List<byte[]> extractFiles(InputStream in, String boundary) {
+        return extractFiles(in, boundary, Integer.MAX_VALUE - 8, Long.MAX_VALUE);
+    }
+
+    public static List<byte[]> extractFiles(InputStream in, String boundary, int maxPartSize, long maxTotalSize) {
+        List<byte[]> files = new ArrayList<>();
+        parse(in, boundary, maxPartSize, maxTotalSize, files::add);
+        return files;
+    }
 
-            byte[] boundaryBytes = ("\r\n--" + boundary).getBytes();
-            List<byte[]> files = new ArrayList<>();
+    /**
+     *
+     * @param in the request body
+     * @param boundary the boundary from the request's Content-Type
+     * @param maxPartSize the maximum size of any single part
+     * @param maxTotalSize the maximum combined size of all the parts
+     * @param onPart called with the contents of each part, in order, as soon as it has been read
+     */
+    public static void parse(InputStream in, String boundary, int maxPartSize, long maxTotalSize, Consumer<byte[]> onPart) {
+        try {
+            Scanner scanner = new Scanner(in);
+            byte[] firstBoundary = ("--" + boundary).getBytes();
+            if (! scanner.startsWith(firstBoundary))
+                throw new IllegalStateException("Incorrect boundary! Multipart body doesn't start with " + boundary);
+            scanner.skipPast(DOUBLE_NEW_LINE, MAX_HEADERS_SIZE);
 
+            byte[] delimiter = ("\r\n--" + boundary).getBytes();
+            int[] shifts = badCharShifts(delimiter);
+            long total = 0;
             while (true) {
-                byte[] file = readUntil(boundaryBytes, in);
-                files.add(file);
-                byte[] headers = readUntil(DOUBLE_NEW_LINE, in);
-                if (headers.length == 0 || Arrays.equals(headers, "--".getBytes()))
-                    return files;
+                byte[] part = scanner.readUntil(delimiter, shifts, maxPartSize);
+                total += part.length;
+                if (total > maxTotalSize)
+                    throw new IllegalStateException("Multipart body larger than " + maxTotalSize + " bytes");
+                onPart.accept(part);
+                if (scanner.startsWith(CLOSE_DELIMITER) || ! scanner.ensure(1))
+                    return;
+                scanner.skipPast(DOUBLE_NEW_LINE, MAX_HEADERS_SIZE);
             }
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            throw new RuntimeException(e.getMessage(), e);
         }
     }
 
     /**
      *
-     * @param pattern the pattern of bytes to search until
-     * @param in
-     * @return the bytes in this stream until pattern is encountered, or the end of the stream is reached
-     * @throws IOException
+     * @return the Boyer-Moore-Horspool shift for each byte value, i.e. the distance from its last occurrence in
+     * pattern, excluding the final position, to the end of pattern
      */
-    private static byte[] readUntil(byte[] pattern, InputStream in) throws IOException {
-        ByteArrayOutputStream prior = new ByteArrayOutputStream();
-        int r;
-        int indexInPattern = 0;
-        while ((r = in.read()) != -1) {
-            if ((byte) r == pattern[indexInPattern]) {
-                indexInPattern++;
-                if (indexInPattern == pattern.length)
-                    return prior.toByteArray();
-            } else {
-                if (indexInPattern > 0)
-                    prior.write(pattern, 0, indexInPattern);
-                indexInPattern = 0;
-                // be careful of case where last byte before pattern == first byte of pattern
-                if ((byte) r == pattern[0]) {
-                    indexInPattern = 1;
-                    if (pattern.length == 1)
-                        return prior.toByteArray();
-                } else
-                    prior.write(r);
+    private static int[] badCharShifts(byte[] pattern) {
+        int[] shifts = new int[256];
+        Arrays.fill(shifts, pattern.length);
+        for (int i = 0; i < pattern.length - 1; i++)
+            shifts[pattern[i] & 0xff] = pattern.length - 1 - i;
+        return shifts;
+    }
+
+    /**
+     *
+     * @return the index of the first occurrence of pattern in data[from, to), or -1
+     */
+    private static int indexOf(byte[] data, int from, int to, byte[] pattern, int[] shifts) {
+        int last = pattern.length - 1;
+        int i = from;
+        while (i + last < to) {
+            int j = last;
+            while (data[i + j] == pattern[j]) {
+                if (j == 0)
+                    return i;
+                j--;
             }
+            i += shifts[data[i + last] & 0xff];
         }
-        return prior.toByteArray();
+        return -1;
     }
 
-    private static String readLine(InputStream in, int maxSize) throws IOException {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        int r, total = 0;
-        while ((r = in.read()) >= 0) {
-            total++;
+    /** The unread bytes of the body are buf[start, end) */
+    private static final class Scanner {
+        private final InputStream in;
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private int start, end;
+        private boolean eof;
+
+        Scanner(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Move the unread bytes to the start of the buffer and read more after them
+         */
+        private void fill() throws IOException {
+            if (start > 0) {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            int read = in.read(buf, end, buf.length - end);
+            if (read < 0)
+                eof = true;
+            else
+                end += read;
+        }
+
+        /**
+         *
+         * @return whether at least n unread bytes are buffered, reading more if needed
+         */
+        boolean ensure(int n) throws IOException {
+            while (end - start < n && ! eof)
+                fill();
+            return end - start >= n;
+        }
+
+        boolean startsWith(byte[] prefix) throws IOException {
+            if (! ensure(prefix.length))
+                return false;
+            for (int i = 0; i < prefix.length; i++)
+                if (buf[start + i] != prefix[i])
+                    return false;
+            return true;
+        }
 
-            if (r == '\r') {
-                int next = in.read();
-                if (next == '\n')
-                    break;
-                bout.write(r);
-                bout.write(next);
-            } else
-                bout.write(r);
-            if (total > maxSize)
-                break;
+        void skipPast(byte[] pattern, int maxSkip) throws IOException {
+            int[] shifts = badCharShifts(pattern);
+            while (true) {
+                int index = indexOf(buf, start, end, pattern, shifts);
+                if (index >= 0) {
+                    start = index + pattern.length;
+                    return;
+                }
+                if (end - start > maxSkip)
+                    throw new IllegalStateException("Multipart headers larger than " + maxSkip + " bytes");
+                if (eof)
+                    throw new IllegalStateException("Truncated multipart body");
+                fill();
+            }
+        }
+
+        /**
+         *
+         * @return the bytes before the next occurrence of delimiter, consuming the delimiter as well
+         */
+        byte[] readUntil(byte[] delimiter, int[] shifts, int maxSize) throws IOException {
+            ByteArrayOutputStream part = new ByteArrayOutputStream();
+            while (true) {
+                int index = indexOf(buf, start, end, delimiter, shifts);
+                // keep back a possible partial delimiter at the end of the buffer
+                int available = index >= 0 ? index - start : Math.max(0, end - start - (delimiter.length - 1));
+                if (part.size() + available > maxSize)
+                    throw new IllegalStateException("Multipart part larger than " + maxSize + " bytes");
+                part.write(buf, start, available);
+                start += available;
+                if (index >= 0) {
+                    start += delimiter.length;
+                    return part.toByteArray();
+                }
+                if (eof)
+                    throw new IllegalStateException("Truncated multipart body");
+                fill();
+            }
         }
-        return new String(bout.toByteArray());
     }
 }
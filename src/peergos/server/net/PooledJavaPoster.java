@@ -0,0 +1,159 @@
+package peergos.server.net;
+
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/** An HttpPoster which reuses connections.
+ *
+ *  Connections are never disconnected, and every response and error body is read to the end, so the JDK keeps the
+ *  connection alive and hands it to the next request to the same host, skipping TCP and TLS setup. At most
+ *  maxInFlight requests are sent at once. Requests are sent on the calling thread and the returned futures are
+ *  already complete, like JavaPoster, which the client code is written against.
+ *
+ *  The JDK's keep-alive cache holds http.maxConnections idle connections per host, which defaults to 5, and only
+ *  reads it when the first connection is made, so constructing a poster raises it to maxInFlight.
+ */
+public class PooledJavaPoster implements HttpPoster {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+    private static final String LINE_FEED = "\r\n";
+
+    private final URL base;
+    private final Semaphore inFlight;
+
+    public PooledJavaPoster(URL base, int maxInFlight) {
+        this.base = base;
+        this.inFlight = new Semaphore(maxInFlight);
+        raiseKeepAliveLimit(maxInFlight);
+    }
+
+    public PooledJavaPoster(URL base) {
+        this(base, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Only takes effect before the first HTTP connection in this JVM
+     */
+    public static synchronized void raiseKeepAliveLimit(int maxInFlight) {
+        try {
+            String current = System.getProperty("http.maxConnections");
+            if (current != null && Integer.parseInt(current) >= maxInFlight)
+                return;
+        } catch (NumberFormatException e) {}
+        System.setProperty("http.maxConnections", Integer.toString(maxInFlight));
+    }
+
+    private interface Request {
+        byte[] send() throws IOException;
+    }
+
+    private byte[] send(Request request) throws IOException {
+        inFlight.acquireUninterruptibly();
+        try {
+            return request.send();
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    private CompletableFuture<byte[]> submit(Request request) {
+        CompletableFuture<byte[]> res = new CompletableFuture<>();
+        try {
+            res.complete(send(request));
+        } catch (Throwable t) {
+            res.completeExceptionally(t);
+        }
+        return res;
+    }
+
+    private HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(base, url).openConnection();
+        conn.setDoInput(true);
+        return conn;
+    }
+
+    /**
+     * Read the whole response, and the error body if there is one, so the connection can be reused
+     */
+    private static byte[] readResponse(HttpURLConnection conn, boolean unzip) throws IOException {
+        try {
+            InputStream in = conn.getInputStream();
+            boolean isGzipped = "gzip".equals(conn.getContentEncoding());
+            try (DataInputStream din = new DataInputStream(isGzipped && unzip ? new GZIPInputStream(in) : in)) {
+                return Serialize.readFully(din);
+            }
+        } catch (IOException e) {
+            InputStream err = conn.getErrorStream();
+            if (err != null)
+                try (InputStream toDrain = err) {
+                    Serialize.readFully(toDrain);
+                } catch (IOException ignored) {}
+            String trailer = conn.getHeaderField("Trailer");
+            if (trailer != null)
+                throw new RuntimeException(trailer);
+            throw e;
+        }
+    }
+
+    private static byte[] send(HttpURLConnection conn, byte[] payload, boolean unzip) throws IOException {
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(payload.length);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(payload);
+        }
+        return readResponse(conn, unzip);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> postUnzip(String url, byte[] payload) {
+        return post(url, payload, true);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> post(String url, byte[] payload, boolean unzip) {
+        return submit(() -> send(open(url), payload, unzip));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> postMultipart(String url, List<byte[]> files) {
+        return submit(() -> {
+            String boundary = "===" + System.currentTimeMillis() + "_" + ThreadLocalRandom.current().nextLong() + "===";
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            for (byte[] file : files) {
+                body.write(("--" + boundary + LINE_FEED +
+                        "Content-Disposition: file; name=\"file\";" + LINE_FEED +
+                        "Content-Type: application/octet-stream" + LINE_FEED +
+                        "Content-Transfer-Encoding: binary" + LINE_FEED + LINE_FEED).getBytes());
+                body.write(file);
+                body.write(LINE_FEED.getBytes());
+            }
+            body.write(("--" + boundary + "--" + LINE_FEED).getBytes());
+            HttpURLConnection conn = open(url);
+            conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+            return send(conn, body.toByteArray(), false);
+        });
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(String url) {
+        return submit(() -> readResponse(open(url), true));
+    }
+
+    /**
+     *
+     * @return the number of requests waiting for a free slot
+     */
+    public int queued() {
+        return inFlight.getQueueLength();
+    }
+
+    @Override
+    public String toString() {
+        return base.toString();
+    }
+}
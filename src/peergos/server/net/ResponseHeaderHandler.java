@@ -4,8 +4,9 @@ import com.sun.net.httpserver.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
-public class ResponseHeaderHandler implements HttpHandler {
+public class ResponseHeaderHandler implements AsyncHttpHandler {
 
     private final Map<String, String> responseHeaders;
     private final HttpHandler handler;
@@ -15,10 +16,23 @@ public class ResponseHeaderHandler implements HttpHandler {
         this.handler = handler;
     }
 
-    @Override
-    public void handle(HttpExchange httpExchange) throws IOException {
+    private void setHeaders(HttpExchange httpExchange) {
         for (String key: responseHeaders.keySet())
             httpExchange.getResponseHeaders().set(key, responseHeaders.get(key));
-        handler.handle(httpExchange);
+    }
+
+    @Override
+    public void handle(HttpExchange httpExchange) throws IOException {
+        setHeaders(httpExchange);
+        if (handler instanceof AsyncHttpHandler)
+            ((AsyncHttpHandler) handler).handleAsync(httpExchange);
+        else
+            handler.handle(httpExchange);
+    }
+
+    @Override
+    public CompletableFuture<Void> handleAsync(HttpExchange httpExchange) {
+        setHeaders(httpExchange);
+        return AsyncHttpHandler.handleAsync(handler, httpExchange);
     }
 }
@@ -2,6 +2,7 @@ package peergos.server.social;
 import java.util.logging.*;
 
 import peergos.server.util.Args;
+import peergos.server.metrics.*;
 import peergos.server.util.Logging;
 
 import com.sun.net.httpserver.*;
@@ -14,12 +15,19 @@ import peergos.shared.util.*;
 
 import java.io.*;
 import java.net.*;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
 public class HttpSocialNetworkServer  {
 	private static final Logger LOG = Logging.LOG();
 
-    private static final boolean LOGGING = true;
+    private static final Map<String, LatencyHistogram> TIMES = Metrics.histograms("peergos_social_request_seconds",
+            "Time to handle social network api requests", "method",
+            "followRequest", "getFollowRequests", "removeFollowRequest", "unknown");
+    private static final Map<String, Counter> ERRORS = TIMES.keySet().stream()
+            .collect(Collectors.toMap(m -> m, m -> Metrics.counter("peergos_social_request_errors_total",
+                    "Number of failed social network api requests", "method", m)));
     private static final int CONNECTION_BACKLOG = 100;
     private static final int HANDLER_THREAD_COUNT = 100;
 
@@ -36,7 +44,7 @@ public class HttpSocialNetworkServer  {
 
         public void handle(HttpExchange exchange) throws IOException
         {
-            long t1 = System.currentTimeMillis();
+            long t1 = System.nanoTime();
             DataInputStream din = new DataInputStream(exchange.getRequestBody());
 
             ByteArrayOutputStream bout = new ByteArrayOutputStream();
@@ -71,6 +79,7 @@ public class HttpSocialNetworkServer  {
                 exchange.sendResponseHeaders(200, b.length);
                 exchange.getResponseBody().write(b);
             } catch (Exception e) {
+                ERRORS.getOrDefault(method, ERRORS.get("unknown")).inc();
                 Throwable cause = e.getCause();
                 if (cause != null)
                     exchange.getResponseHeaders().set("Trailer", cause.getMessage());
@@ -80,9 +89,7 @@ public class HttpSocialNetworkServer  {
                 exchange.sendResponseHeaders(400, 0);
             } finally {
                 exchange.close();
-                long t2 = System.currentTimeMillis();
-                if (LOGGING)
-                    LOG.info("Social Network server handled " + method + " request in: " + (t2 - t1) + " mS");
+                TIMES.getOrDefault(method, TIMES.get("unknown")).recordSince(t1);
             }
 
         }
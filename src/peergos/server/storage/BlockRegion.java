@@ -0,0 +1,53 @@
+package peergos.server.storage;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/** A contiguous region of a local file which holds exactly one block.
+ *
+ *  This lets a block be streamed or mapped straight from the file rather than being copied onto the heap first.
+ */
+public class BlockRegion implements Closeable {
+    public final FileChannel channel;
+    public final long offset;
+    public final int length;
+
+    public BlockRegion(FileChannel channel, long offset, int length) {
+        this.channel = channel;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Write the whole block to out using FileChannel.transferTo
+     */
+    public void transferTo(OutputStream out) throws IOException {
+        transferTo(out, 0, length);
+    }
+
+    /**
+     * Write count bytes of the block, starting from start, to out using FileChannel.transferTo
+     */
+    public void transferTo(OutputStream out, long start, long count) throws IOException {
+        if (start < 0 || count < 0 || start + count > length)
+            throw new IllegalArgumentException("Range " + start + "+" + count + " outside block of length " + length);
+        WritableByteChannel target = Channels.newChannel(out);
+        long done = 0;
+        while (done < count) {
+            long transferred = channel.transferTo(offset + start + done, count - done, target);
+            if (transferred <= 0)
+                throw new EOFException("Block region truncated at " + (offset + done));
+            done += transferred;
+        }
+    }
+
+    public MappedByteBuffer map() throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
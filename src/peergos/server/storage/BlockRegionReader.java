@@ -0,0 +1,18 @@
+package peergos.server.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.io.*;
+import java.util.*;
+
+/** A local block store which can hand out the file region holding a block, for zero copy reads.
+ *
+ */
+public interface BlockRegionReader {
+
+    /**
+     *
+     * @return the region holding this block, if present. The caller must close it.
+     */
+    Optional<BlockRegion> openBlock(Multihash h) throws IOException;
+}
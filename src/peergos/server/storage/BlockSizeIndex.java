@@ -0,0 +1,200 @@
+package peergos.server.storage;
+
+import peergos.server.util.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/** An in memory map from block hash to size, backed by an append only log file, with a Bloom filter in front of it.
+ *
+ *  Negative lookups are answered by the Bloom filter without taking a lock. Each log record is
+ *  [short cid length][cid][int size], where a size of -1 records a deletion. Puts should be recorded before the
+ *  block becomes visible on disk, so after a crash the index can only claim too much, never too little.
+ */
+public class BlockSizeIndex {
+    private static final Logger LOG = Logging.LOG();
+    private static final int DELETED = -1;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    private static final int MIN_BLOOM_CAPACITY = 1024 * 1024;
+
+    private final Path logFile;
+    private final Map<Multihash, Integer> sizes = new EfficientHashMap<>();
+    private volatile BloomFilter bloom;
+    private long bloomCapacity;
+    private FileOutputStream logOut;
+    private DataOutputStream log;
+    private long logRecords;
+
+    private BlockSizeIndex(Path logFile) {
+        this.logFile = logFile;
+    }
+
+    /**
+     * Load the index from logFile, or if it doesn't exist, build it with initialScan and persist it.
+     */
+    public static BlockSizeIndex load(Path logFile, Supplier<Map<Multihash, Integer>> initialScan) {
+        BlockSizeIndex index = new BlockSizeIndex(logFile);
+        try {
+            if (logFile.toFile().exists()) {
+                index.replay();
+            } else {
+                long t0 = System.currentTimeMillis();
+                index.sizes.putAll(initialScan.get());
+                LOG.info("Built block index of " + index.sizes.size() + " blocks in " + (System.currentTimeMillis() - t0) + " mS");
+            }
+            if (! logFile.toFile().exists() || index.logRecords > 2L * index.sizes.size() + 1024)
+                index.rewrite();
+            index.logOut = new FileOutputStream(logFile.toFile(), true);
+            index.log = new DataOutputStream(new BufferedOutputStream(index.logOut));
+            index.rebuildBloom();
+            return index;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private void replay() throws IOException {
+        long validLength = 0;
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile.toFile()), 1024 * 1024))) {
+            while (true) {
+                int high = din.read();
+                if (high < 0)
+                    break;
+                byte[] rawCid = new byte[(high << 8) | din.readUnsignedByte()];
+                din.readFully(rawCid);
+                int size = din.readInt();
+                Cid cid = Cid.cast(rawCid);
+                if (size == DELETED)
+                    sizes.remove(cid);
+                else
+                    sizes.put(cid, size);
+                logRecords++;
+                validLength += 2 + rawCid.length + 4;
+            }
+        } catch (EOFException e) {
+            LOG.warning("Truncating partially written block index record in " + logFile + " at offset " + validLength);
+            try (RandomAccessFile raf = new RandomAccessFile(logFile.toFile(), "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+    }
+
+    private void rewrite() throws IOException {
+        Path tmp = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+        try (DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+            for (Map.Entry<Multihash, Integer> e : sizes.entrySet())
+                writeRecord(dout, e.getKey(), e.getValue());
+        }
+        Files.move(tmp, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logRecords = sizes.size();
+    }
+
+    private static void writeRecord(DataOutputStream dout, Multihash h, int size) throws IOException {
+        byte[] rawCid = h.toBytes();
+        dout.writeShort(rawCid.length);
+        dout.write(rawCid);
+        dout.writeInt(size);
+    }
+
+    private synchronized void rebuildBloom() {
+        bloomCapacity = Math.max(MIN_BLOOM_CAPACITY, 2L * sizes.size());
+        BloomFilter fresh = BloomFilter.create(bloomCapacity, FALSE_POSITIVE_RATE);
+        for (Multihash h : sizes.keySet())
+            fresh.add(h.getHash());
+        bloom = fresh;
+    }
+
+    public boolean mightContain(Multihash h) {
+        return bloom.mightContain(h.getHash());
+    }
+
+    public boolean contains(Multihash h) {
+        if (! mightContain(h))
+            return false;
+        synchronized (this) {
+            return sizes.containsKey(h);
+        }
+    }
+
+    public Optional<Integer> getSize(Multihash h) {
+        if (! mightContain(h))
+            return Optional.empty();
+        synchronized (this) {
+            return Optional.ofNullable(sizes.get(h));
+        }
+    }
+
+    public synchronized int count() {
+        return sizes.size();
+    }
+
+    /**
+     *
+     * @return a snapshot of every indexed block hash
+     */
+    public synchronized List<Multihash> all() {
+        return new ArrayList<>(sizes.keySet());
+    }
+
+    public void add(Multihash h, int size) {
+        synchronized (this) {
+            if (Objects.equals(sizes.put(h, size), size))
+                return;
+            append(h, size);
+            if (sizes.size() > bloomCapacity)
+                rebuildBloom();
+        }
+        bloom.add(h.getHash());
+    }
+
+    public synchronized void remove(Multihash h) {
+        if (sizes.remove(h) != null)
+            append(h, DELETED);
+    }
+
+    private void append(Multihash h, int size) {
+        try {
+            writeRecord(log, h, size);
+            logRecords++;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Push buffered records to the file system
+     */
+    public synchronized void flush() {
+        try {
+            log.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Push buffered records to durable storage
+     */
+    public synchronized void sync() {
+        try {
+            log.flush();
+            logOut.getFD().sync();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            log.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
+}
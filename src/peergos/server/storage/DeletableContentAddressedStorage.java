@@ -0,0 +1,50 @@
+package peergos.server.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+import java.util.function.*;
+
+/** A local ContentAddressedStorage which can enumerate and delete its blocks, which is what GC and pinning need.
+ *
+ */
+public interface DeletableContentAddressedStorage extends ContentAddressedStorage {
+
+    /**
+     * Call processor on the hash of every block in this store
+     */
+    void applyToAll(Consumer<Multihash> processor);
+
+    boolean contains(Multihash h);
+
+    /**
+     *
+     * @return true if the block was present and has been removed
+     */
+    boolean delete(Multihash h);
+
+    /**
+     * Register a listener to be called with the hash of every block put, before it is checked for or written
+     */
+    void addPutListener(Consumer<Multihash> listener);
+
+    /**
+     * Delete every block which isn't in pins
+     *
+     * @return the set of blocks removed
+     */
+    default Set<Multihash> retainOnly(Set<Multihash> pins) {
+        List<Multihash> toRemove = new ArrayList<>();
+        applyToAll(h -> {
+            if (! pins.contains(h))
+                toRemove.add(h);
+        });
+        Set<Multihash> removed = new HashSet<>();
+        for (Multihash h : toRemove) {
+            delete(h);
+            removed.add(h);
+        }
+        return removed;
+    }
+}
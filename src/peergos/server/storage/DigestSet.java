@@ -0,0 +1,130 @@
+package peergos.server.storage;
+
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.nio.*;
+
+/** An off heap, open addressing hash set of 32 byte block digests, for holding very large sets of block hashes
+ *  without adding to heap usage. Hashes with a digest of any other length are stored as the sha256 of their bytes.
+ *
+ *  This class is not thread safe.
+ */
+public class DigestSet {
+    private static final int SLOT_SIZE = 32;
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE / SLOT_SIZE + 1;
+
+    private ByteBuffer table;
+    private int capacity, size;
+    private boolean containsZero;
+
+    public DigestSet(int expectedSize) {
+        this.capacity = tableSize(expectedSize);
+        this.table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+    }
+
+    private static int tableSize(long entries) {
+        long slots = Math.max(16, Long.highestOneBit(Math.max(1, entries * 2 - 1)) << 1);
+        if (slots > MAX_CAPACITY)
+            throw new IllegalStateException("Too many entries for a DigestSet: " + entries);
+        return (int) slots;
+    }
+
+    private static byte[] digest(Multihash h) {
+        byte[] hash = h.getHash();
+        return hash.length == SLOT_SIZE ? hash : Hash.sha256(h.toBytes());
+    }
+
+    private static boolean isZero(byte[] digest) {
+        for (byte b : digest)
+            if (b != 0)
+                return false;
+        return true;
+    }
+
+    private static int start(byte[] digest, int capacity) {
+        return ((digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16 | (digest[2] & 0xff) << 8 | (digest[3] & 0xff)) & (capacity - 1);
+    }
+
+    private static boolean slotEquals(ByteBuffer table, int slot, byte[] digest) {
+        int base = slot * SLOT_SIZE;
+        for (int i = 0; i < SLOT_SIZE; i++)
+            if (table.get(base + i) != digest[i])
+                return false;
+        return true;
+    }
+
+    private static boolean slotEmpty(ByteBuffer table, int slot) {
+        int base = slot * SLOT_SIZE;
+        for (int i = 0; i < SLOT_SIZE; i += 8)
+            if (table.getLong(base + i) != 0)
+                return false;
+        return true;
+    }
+
+    /**
+     *
+     * @return the slot holding digest, or the empty slot where it would go
+     */
+    private static int find(ByteBuffer table, int capacity, byte[] digest) {
+        int slot = start(digest, capacity);
+        while (! slotEmpty(table, slot) && ! slotEquals(table, slot, digest))
+            slot = (slot + 1) & (capacity - 1);
+        return slot;
+    }
+
+    private static void write(ByteBuffer table, int slot, byte[] digest) {
+        int base = slot * SLOT_SIZE;
+        for (int i = 0; i < SLOT_SIZE; i++)
+            table.put(base + i, digest[i]);
+    }
+
+    public boolean contains(Multihash h) {
+        byte[] digest = digest(h);
+        if (isZero(digest))
+            return containsZero;
+        return ! slotEmpty(table, find(table, capacity, digest));
+    }
+
+    /**
+     *
+     * @return true if h was not already present
+     */
+    public boolean add(Multihash h) {
+        byte[] digest = digest(h);
+        if (isZero(digest)) {
+            boolean added = ! containsZero;
+            containsZero = true;
+            if (added)
+                size++;
+            return added;
+        }
+        int slot = find(table, capacity, digest);
+        if (! slotEmpty(table, slot))
+            return false;
+        write(table, slot, digest);
+        size++;
+        if (size * 2L > capacity)
+            grow();
+        return true;
+    }
+
+    private void grow() {
+        int newCapacity = tableSize(capacity);
+        ByteBuffer newTable = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+        byte[] digest = new byte[SLOT_SIZE];
+        for (int slot = 0; slot < capacity; slot++) {
+            if (slotEmpty(table, slot))
+                continue;
+            for (int i = 0; i < SLOT_SIZE; i++)
+                digest[i] = table.get(slot * SLOT_SIZE + i);
+            write(newTable, find(newTable, newCapacity, digest), digest);
+        }
+        table = newTable;
+        capacity = newCapacity;
+    }
+
+    public int size() {
+        return size;
+    }
+}
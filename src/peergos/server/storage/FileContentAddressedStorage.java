@@ -10,6 +10,7 @@ import peergos.shared.storage.*;
 import peergos.shared.util.*;
 
 import java.io.*;
+import java.nio.*;
 import java.nio.channels.*;
 import java.nio.file.*;
 import java.nio.file.attribute.*;
@@ -21,15 +22,35 @@ import java.util.stream.*;
 
 /** A local directory implementation of ContentAddressedStorage.
  *
+ *  The existence and size of every block is held in a BlockSizeIndex, so negative lookups, size queries and
+ *  enumeration never touch the file system. Delete the index file to force a rescan of the directory on startup.
+ *  Blocks are indexed before they are written, so a failed put removes its entries again, and on startup we drop any
+ *  entry whose file is missing, which a crash part way through a put can leave behind.
  */
-public class FileContentAddressedStorage implements ContentAddressedStorage {
+public class FileContentAddressedStorage implements DeletableContentAddressedStorage, BlockRegionReader {
     private static final Logger LOG = Logging.LOG();
     private static final int CID_V1 = 1;
     private static final int DIRECTORY_DEPTH = 5;
+    private static final String INDEX_FILENAME = "sizes.index";
+    private static final int WRITER_THREADS = 4;
+    private static final int LOCK_STRIPES = 64;
+    private static final FileAttribute<Set<PosixFilePermission>> READ_ONLY =
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("r--r--r--"));
     private final Path root;
+    private final BlockSizeIndex index;
+    private final List<Consumer<Multihash>> putListeners = new CopyOnWriteArrayList<>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final boolean isPosix;
+    private final ExecutorService writers = Executors.newFixedThreadPool(WRITER_THREADS, r -> {
+        Thread writer = new Thread(r, "File store writer");
+        writer.setDaemon(true);
+        return writer;
+    });
+    private final IoExecutor io;
 
-    public FileContentAddressedStorage(Path root) {
+    public FileContentAddressedStorage(Path root, IoExecutor io) {
         this.root = root;
+        this.io = io;
         File rootDir = root.toFile();
         if (!rootDir.exists()) {
             final boolean mkdirs = root.toFile().mkdirs();
@@ -38,6 +59,17 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
         }
         if (!rootDir.isDirectory())
             throw new IllegalStateException("File store path must be a directory! " + root);
+        this.index = BlockSizeIndex.load(root.resolve(INDEX_FILENAME), this::scanSizes);
+        this.isPosix = root.getFileSystem().supportedFileAttributeViews().contains("posix");
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+        int missing = reconcileIndex();
+        if (missing > 0)
+            LOG.info("Removed " + missing + " blocks missing from disk from the block index");
+    }
+
+    public FileContentAddressedStorage(Path root) {
+        this(root, new IoExecutor("File store I/O"));
     }
 
     @Override
@@ -56,9 +88,7 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
     }
 
     private CompletableFuture<List<Multihash>> put(PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks, boolean isRaw) {
-        return CompletableFuture.completedFuture(blocks.stream()
-                .map(b -> put(b, isRaw))
-                .collect(Collectors.toList()));
+        return io.submit(() -> put(blocks, isRaw));
     }
 
     @Override
@@ -114,88 +144,285 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
 
     @Override
     public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
-        try {
-            Path path = getFilePath(hash);
-            File file = root.resolve(path).toFile();
-            if (! file.exists()){
-                return CompletableFuture.completedFuture(Optional.empty());
-            }
-            try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
-                return CompletableFuture.completedFuture(Optional.of(Serialize.readFully(din)));
-            }
+        if (! index.mightContain(hash))
+            return CompletableFuture.completedFuture(Optional.empty());
+        return io.submit(() -> read(hash));
+    }
+
+    private Optional<byte[]> read(Multihash hash) {
+        try (FileChannel channel = FileChannel.open(root.resolve(getFilePath(hash)), StandardOpenOption.READ)) {
+            // read straight into an exactly sized array, rather than through stream buffers
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IllegalStateException("Block too large: " + hash);
+            ByteBuffer data = ByteBuffer.allocate((int) size);
+            while (data.hasRemaining())
+                if (channel.read(data) < 0)
+                    throw new EOFException("Block " + hash + " truncated");
+            return Optional.of(data.array());
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
         }
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getRawMany(List<Multihash> hashes) {
+        // each block is a separate file, so overlap their reads
+        return Futures.combineAllInOrder(hashes.stream()
+                .map(this::getRaw)
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public Optional<BlockRegion> openBlock(Multihash hash) throws IOException {
+        if (! index.mightContain(hash))
+            return Optional.empty();
+        try {
+            FileChannel channel = FileChannel.open(root.resolve(getFilePath(hash)), StandardOpenOption.READ);
+            return Optional.of(new BlockRegion(channel, 0, (int) channel.size()));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void addPutListener(Consumer<Multihash> listener) {
+        putListeners.add(listener);
+    }
+
     public Multihash put(byte[] data, boolean isRaw) {
+        return put(Collections.singletonList(data), isRaw).get(0);
+    }
+
+    /**
+     * Write a batch of blocks as a group commit. Blocks are hashed in parallel, every new block is logged to the index
+     * with a single sync, their data is written to temp files and then synced together on the writer threads, each is
+     * made visible with a rename, and finally every directory we renamed into is synced once to make the renames durable.
+     */
+    public List<Multihash> put(List<byte[]> blocks, boolean isRaw) {
+        List<Multihash> cids = (blocks.size() > 1 ? blocks.parallelStream() : blocks.stream())
+                .map(b -> RAMStorage.hashToCid(b, isRaw))
+                .collect(Collectors.toList());
+        Map<Multihash, byte[]> toWrite = new LinkedHashMap<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            Multihash cid = cids.get(i);
+            for (Consumer<Multihash> listener : putListeners)
+                listener.accept(cid);
+            if (toWrite.containsKey(cid) || (index.contains(cid) && root.resolve(getFilePath(cid)).toFile().exists()))
+                continue;
+            toWrite.put(cid, blocks.get(i));
+        }
+        if (toWrite.isEmpty())
+            return cids;
+
+        // index before any block becomes visible, so a crash can only leave the index claiming too much
+        toWrite.forEach((cid, data) -> index.add(cid, data.length));
+        index.sync();
+
+        Set<Multihash> committed = new HashSet<>();
+        List<CompletableFuture<Pair<Multihash, Path>>> written = toWrite.entrySet().stream()
+                .map(e -> CompletableFuture.supplyAsync(() -> new Pair<>(e.getKey(), writeTempFile(e.getValue())), writers))
+                .collect(Collectors.toList());
         try {
-            Multihash rawhash = new Multihash(Multihash.Type.sha2_256, RAMStorage.hash(data));
-            Cid cid = new Cid(CID_V1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor, rawhash);
-            Path filePath = getFilePath(cid);
-            Path target = root.resolve(filePath);
-            Path parent = target.getParent();
-            File parentDir = parent.toFile();
-
-            if (! parentDir.exists() && ! parentDir.mkdirs())
-                throw new IllegalStateException("Couldn't create directory: " + parent);
-            for (Path someParent = parent; !someParent.equals(root); someParent = someParent.getParent()) {
-                File someParentFile = someParent.toFile();
-                if (! someParentFile.canWrite()) {
-                    final boolean b = someParentFile.setWritable(true, false);
-                    if (!b)
-                        throw new IllegalStateException("Could not make " + someParent.toString() + ", ancestor of " + parentDir.toString() + " writable");
+            List<Pair<Multihash, Path>> tmps = written.stream()
+                    .map(CompletableFuture::join)
+                    .collect(Collectors.toList());
+            // sync every temp file before any rename, so a visible block is always complete
+            tmps.stream()
+                    .map(tmp -> CompletableFuture.runAsync(() -> syncTempFile(tmp.right), writers))
+                    .collect(Collectors.toList())
+                    .forEach(CompletableFuture::join);
+
+            Set<Path> dirty = new LinkedHashSet<>();
+            for (Pair<Multihash, Path> tmp : tmps) {
+                Path target = root.resolve(getFilePath(tmp.left));
+                Path dir = target.getParent();
+                if (ensureDirectory(dir))
+                    for (Path created = dir; !created.equals(root); created = created.getParent())
+                        dirty.add(created.getParent());
+                synchronized (lockFor(tmp.left)) {
+                    // a concurrent delete may have removed the index entry since we added it
+                    index.add(tmp.left, toWrite.get(tmp.left).length);
+                    Files.move(tmp.right, target, StandardCopyOption.ATOMIC_MOVE);
                 }
+                committed.add(tmp.left);
+                dirty.add(dir);
             }
-            File targetFile = target.toFile();
-            Path tmp = Files.createTempFile(root, "tmp", "");
-            File tmpFile = tmp.toFile();
-            Path lockPath = parent.resolve("lock." + filePath.toFile().getName());
-            try (RandomAccessFile rw = new RandomAccessFile(lockPath.toFile(), "rw");
-                 FileLock lock = rw.getChannel().lock();
-                 DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
-
-                dout.write(data, 0, data.length);
-                boolean setWritableSuccess = tmpFile.setWritable(false, false);
-                boolean setReadableSuccess = tmpFile.setReadable(true, false);
-                boolean renameSuccess = tmpFile.renameTo(targetFile);
-                boolean deleteSuccess = lockPath.toFile().delete();
-                boolean lockExists = lockPath.toFile().exists();
-                if (!setWritableSuccess)
-                    throw new IllegalStateException("Error setting " + tmpFile.getName() + " to writable");
-                if (!setReadableSuccess)
-                    throw new IllegalStateException("Error setting " + tmpFile.getName() + " to readable");
-                if (!renameSuccess)
-                    throw new IllegalStateException("Error renaming " + tmpFile.getName() + " to " + targetFile.getName());
-                if (!deleteSuccess && lockExists)
-                    throw new IllegalStateException("Error deleting " + lockPath.toFile().getName());
-            } finally {
-                if (tmpFile.exists())
-                    tmpFile.delete();
+            if (isPosix)
+                dirty.forEach(FileContentAddressedStorage::syncDirectory);
+            index.flush();
+            return cids;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            // remove the temp files and index entries of any blocks we didn't commit
+            for (CompletableFuture<Pair<Multihash, Path>> fut : written) {
+                try {
+                    fut.join().right.toFile().delete();
+                } catch (CompletionException e) {}
+            }
+            if (committed.size() < toWrite.size()) {
+                for (Multihash cid : toWrite.keySet())
+                    if (! committed.contains(cid))
+                        removeIfMissing(cid);
+                index.flush();
             }
-            return cid;
+        }
+    }
+
+    /**
+     * Remove h from the index unless its file exists, e.g. because a concurrent put of the same block succeeded
+     */
+    private boolean removeIfMissing(Multihash h) {
+        synchronized (lockFor(h)) {
+            if (root.resolve(getFilePath(h)).toFile().exists())
+                return false;
+            index.remove(h);
+            return true;
+        }
+    }
+
+    /**
+     * Remove every index entry whose file is missing
+     *
+     * @return the number of entries removed
+     */
+    private int reconcileIndex() {
+        List<Multihash> missing = index.all().parallelStream()
+                .filter(h -> ! root.resolve(getFilePath(h)).toFile().exists())
+                .collect(Collectors.toList());
+        int removed = 0;
+        for (Multihash h : missing)
+            if (removeIfMissing(h))
+                removed++;
+        index.flush();
+        return removed;
+    }
+
+    private Path writeTempFile(byte[] data) {
+        Path tmp = root.resolve("tmp" + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()));
+        try {
+            FileChannel channel = isPosix ?
+                    FileChannel.open(tmp, EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), READ_ONLY) :
+                    FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            try (FileChannel out = channel) {
+                ByteBuffer buf = ByteBuffer.wrap(data);
+                while (buf.hasRemaining())
+                    out.write(buf);
+            }
+            return tmp;
         } catch (IOException e) {
+            tmp.toFile().delete();
             throw new RuntimeException(e.getMessage(), e);
         }
     }
 
+    /**
+     * Flush a temp file to disk. A posix temp file is created read only, and reading is enough for an fsync, otherwise
+     * we sync it through a writable channel before making it read only.
+     */
+    private void syncTempFile(Path tmp) {
+        try (FileChannel channel = FileChannel.open(tmp, isPosix ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        if (! isPosix) {
+            File tmpFile = tmp.toFile();
+            if (! tmpFile.setWritable(false, false))
+                throw new IllegalStateException("Error setting " + tmpFile.getName() + " to writable");
+            if (! tmpFile.setReadable(true, false))
+                throw new IllegalStateException("Error setting " + tmpFile.getName() + " to readable");
+        }
+    }
+
+    /**
+     * Flush the entries of a directory to disk, which only posix file systems support
+     */
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     *
+     * @return whether the directory had to be created
+     */
+    private boolean ensureDirectory(Path dir) {
+        File dirFile = dir.toFile();
+        if (dirFile.exists())
+            return false;
+        if (! dirFile.mkdirs() && ! dirFile.isDirectory())
+            throw new IllegalStateException("Couldn't create directory: " + dir);
+        for (Path someParent = dir; !someParent.equals(root); someParent = someParent.getParent()) {
+            File someParentFile = someParent.toFile();
+            if (! someParentFile.canWrite()) {
+                final boolean b = someParentFile.setWritable(true, false);
+                if (!b)
+                    throw new IllegalStateException("Could not make " + someParent.toString() + ", ancestor of " + dir.toString() + " writable");
+            }
+        }
+        return true;
+    }
+
+    private Object lockFor(Multihash h) {
+        byte[] hash = h.getHash();
+        return locks[(hash[hash.length - 1] & 0xff) % locks.length];
+    }
+
     protected List<Multihash> getFiles() {
-        List<Multihash> existing = new ArrayList<>();
-        getFilesRecursive(root, existing::add);
-        return existing;
+        return index.all();
+    }
+
+    /**
+     * Find the size of every block on disk, scanning the top level directories in parallel
+     */
+    private Map<Multihash, Integer> scanSizes() {
+        Map<Multihash, Integer> sizes = new ConcurrentHashMap<>();
+        String[] filenames = root.toFile().list();
+        if (filenames == null)
+            throw new IllegalStateException("Couldn't retrieve children of directory: " + root);
+        Arrays.stream(filenames)
+                .parallel()
+                .map(root::resolve)
+                .forEach(child -> {
+                    if (child.toFile().isDirectory())
+                        getFilesRecursive(child, h -> sizes.put(h, (int) root.resolve(getFilePath(h)).toFile().length()));
+                    else if (isBlockFilename(child.getFileName().toString())) { // legacy flat layout
+                        try {
+                            sizes.put(Cid.decode(child.getFileName().toString()), (int) child.toFile().length());
+                        } catch (IllegalStateException e) {
+                            LOG.info("Ignoring file "+ child +" since name is not a valid multihash");
+                        }
+                    }
+                });
+        return sizes;
+    }
+
+    private static boolean isBlockFilename(String filename) {
+        return filename.startsWith("Q") || filename.startsWith("z");
     }
 
     @Override
     public CompletableFuture<Optional<Integer>> getSize(Multihash h) {
-        Path path = getFilePath(h);
-        File file = root.resolve(path).toFile();
-        return CompletableFuture.completedFuture(file.exists() ? Optional.of((int) file.length()) : Optional.empty());
+        return CompletableFuture.completedFuture(index.getSize(h));
     }
 
-    protected boolean delete(Multihash h) {
+    @Override
+    public boolean delete(Multihash h) {
         Path path = getFilePath(h);
         File file = root.resolve(path).toFile();
-        return file.exists() && file.delete();
+        synchronized (lockFor(h)) {
+            boolean deleted = file.delete();
+            index.remove(h);
+            index.flush();
+            return deleted;
+        }
     }
 
     public Optional<Long> getLastAccessTimeMillis(Multihash h) {
@@ -214,8 +441,9 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
         }
     }
 
+    @Override
     public void applyToAll(Consumer<Multihash> processor) {
-        getFilesRecursive(root, processor);
+        getFiles().forEach(processor);
     }
 
     private void getFilesRecursive(Path path, Consumer<Multihash> accumulator) {
@@ -234,7 +462,7 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
             Path child = path.resolve(filename);
             if (child.toFile().isDirectory()) {
                 getFilesRecursive(child, accumulator);
-            } else if (filename.startsWith("Q") || filename.startsWith("z")) { // tolerate non content addressed files in the same space
+            } else if (isBlockFilename(filename)) { // tolerate non content addressed files in the same space
                 try {
                     accumulator.accept(Cid.decode(child.toFile().getName()));
                 } catch (IllegalStateException e) {
@@ -245,6 +473,7 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
         }
     }
 
+    @Override
     public Set<Multihash> retainOnly(Set<Multihash> pins) {
         List<Multihash> existing = getFiles();
         Set<Multihash> removed = new HashSet<>();
@@ -257,22 +486,20 @@ public class FileContentAddressedStorage implements ContentAddressedStorage {
                 File legacy = root.resolve(h.toBase58()).toFile();
                 if (legacy.exists() && ! legacy.delete())
                     LOG.warning("Could not delete " + legacy);
+                index.remove(h);
             }
         }
+        index.flush();
         return removed;
     }
 
+    @Override
     public boolean contains(Multihash multihash) {
-        Path path = getFilePath(multihash);
-        File file = root.resolve(path).toFile();
-        if (! file.exists()) { // for backwards compatibility with existing data
-            file = root.resolve(path.getFileName()).toFile();
-        }
-        return file.exists();
+        return index.contains(multihash);
     }
 
     @Override
     public String toString() {
-        return "FileContentAddressedStorage " + root;
+        return "FileContentAddressedStorage " + root + " " + io;
     }
 }
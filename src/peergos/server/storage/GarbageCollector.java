@@ -0,0 +1,179 @@
+package peergos.server.storage;
+
+import peergos.server.util.Logging;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/** An incremental mark and sweep garbage collector for a local block store, which runs alongside reads and writes.
+ *
+ *  Marking walks the links of every root, recording reached blocks in an off heap DigestSet, then walks the roots
+ *  again to pick up anything committed during the first pass. Every block put in the last grace period is recorded in
+ *  rotating epochs and is never swept, which protects blocks that are written but not yet reachable from a root,
+ *  including those written while a collection is running. Sweeping deletes unmarked blocks in small batches, pausing
+ *  between batches so normal traffic isn't starved.
+ */
+public class GarbageCollector {
+    private static final Logger LOG = Logging.LOG();
+
+    private final DeletableContentAddressedStorage storage;
+    private final Supplier<CompletableFuture<List<Multihash>>> roots;
+    private final long gracePeriodMillis;
+    private final int batchSize;
+    private final long batchPauseMillis;
+    // newest epoch first, guarded by this
+    private final LinkedList<Pair<Long, DigestSet>> epochs = new LinkedList<>();
+    private long collectionStart = -1;
+    private volatile boolean isFinished;
+
+    public GarbageCollector(DeletableContentAddressedStorage storage,
+                            Supplier<CompletableFuture<List<Multihash>>> roots,
+                            long gracePeriodMillis,
+                            int batchSize,
+                            long batchPauseMillis) {
+        this.storage = storage;
+        this.roots = roots;
+        this.gracePeriodMillis = gracePeriodMillis;
+        this.batchSize = batchSize;
+        this.batchPauseMillis = batchPauseMillis;
+        storage.addPutListener(this::protect);
+    }
+
+    public GarbageCollector(DeletableContentAddressedStorage storage, Supplier<CompletableFuture<List<Multihash>>> roots) {
+        this(storage, roots, 60 * 60 * 1000, 256, 10);
+    }
+
+    private synchronized void protect(Multihash h) {
+        long now = System.currentTimeMillis();
+        if (epochs.isEmpty() || now - epochs.getFirst().left > gracePeriodMillis / 4)
+            epochs.addFirst(new Pair<>(now, new DigestSet(1024)));
+        epochs.getFirst().right.add(h);
+        expireEpochs(now);
+    }
+
+    private void expireEpochs(long now) {
+        long cutoff = now - gracePeriodMillis;
+        if (collectionStart >= 0)
+            cutoff = Math.min(cutoff, collectionStart - gracePeriodMillis);
+        // an epoch only holds puts from before its successor started
+        while (epochs.size() > 1 && epochs.get(epochs.size() - 2).left < cutoff)
+            epochs.removeLast();
+    }
+
+    private boolean isProtected(Multihash h) {
+        for (Pair<Long, DigestSet> epoch : epochs)
+            if (epoch.right.contains(h))
+                return true;
+        return false;
+    }
+
+    /**
+     * Run a full collection
+     *
+     * @return the number of blocks deleted
+     */
+    public long collect() {
+        long t0 = System.currentTimeMillis();
+        synchronized (this) {
+            if (collectionStart >= 0)
+                throw new IllegalStateException("Garbage collection already in progress!");
+            collectionStart = t0;
+        }
+        try {
+            DigestSet reachable = new DigestSet(64 * 1024);
+            mark(roots.get().join(), reachable);
+            // roots committed during the first pass share most of their blocks with it, so this is cheap
+            mark(roots.get().join(), reachable);
+            long t1 = System.currentTimeMillis();
+
+            List<Multihash> candidates = new ArrayList<>();
+            long[] deleted = new long[1];
+            storage.applyToAll(h -> {
+                if (reachable.contains(h))
+                    return;
+                candidates.add(h);
+                if (candidates.size() >= batchSize) {
+                    deleted[0] += sweep(candidates);
+                    candidates.clear();
+                    pause();
+                }
+            });
+            deleted[0] += sweep(candidates);
+            long t2 = System.currentTimeMillis();
+            LOG.info("GC marked " + reachable.size() + " blocks in " + (t1 - t0) + " mS, deleted " + deleted[0] +
+                    " blocks in " + (t2 - t1) + " mS");
+            return deleted[0];
+        } finally {
+            synchronized (this) {
+                collectionStart = -1;
+            }
+        }
+    }
+
+    private void mark(List<Multihash> roots, DigestSet reachable) {
+        Deque<Multihash> toVisit = new ArrayDeque<>(roots);
+        long visited = 0;
+        while (! toVisit.isEmpty()) {
+            Multihash h = toVisit.pop();
+            if (! reachable.add(h))
+                continue;
+            for (Multihash link : storage.getLinks(h).join())
+                toVisit.push(link);
+            if (++visited % batchSize == 0)
+                pause();
+        }
+    }
+
+    /**
+     *  Deletes are done holding the same monitor as put listeners, so a block is either protected by a concurrent
+     *  put, or deleted before that put checks whether it already has it.
+     */
+    private synchronized long sweep(List<Multihash> candidates) {
+        long deleted = 0;
+        for (Multihash h : candidates)
+            if (! isProtected(h) && storage.delete(h))
+                deleted++;
+        return deleted;
+    }
+
+    private void pause() {
+        if (isFinished)
+            throw new IllegalStateException("Garbage collector stopped");
+        try {
+            Thread.sleep(batchPauseMillis);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Start a daemon thread which runs a collection periodically. The first run is at least a grace period after
+     * this collector was created, so blocks written before a restart are not swept before they are committed.
+     */
+    public void start(long periodMillis) {
+        Thread collector = new Thread(() -> {
+            long delay = Math.max(periodMillis, gracePeriodMillis);
+            while (! isFinished) {
+                try {
+                    Thread.sleep(delay);
+                    delay = periodMillis;
+                    collect();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Throwable t) {
+                    LOG.log(Level.WARNING, t.getMessage(), t);
+                }
+            }
+        }, "Garbage collector");
+        collector.setDaemon(true);
+        collector.start();
+    }
+
+    public void stop() {
+        isFinished = true;
+    }
+}
@@ -0,0 +1,113 @@
+package peergos.server.storage;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/** A bounded thread pool for blocking storage I/O, so that the futures returned by a blocking store complete
+ *  asynchronously, and a stalled disk only ties up this pool rather than its callers' threads.
+ *
+ *  Results are completed from the common fork join pool, so that continuations never run on, or block, an I/O
+ *  thread. When the queue is full the caller runs the task itself, which pushes back on callers rather than queueing
+ *  without bound. Queue depth and wait and service times are tracked for sizing the pool.
+ */
+public class IoExecutor {
+    public static final int DEFAULT_THREADS = 16;
+    public static final int DEFAULT_MAX_QUEUED = 1024;
+
+    private final String name;
+    private final ThreadPoolExecutor pool;
+    private final AtomicLong submitted = new AtomicLong(), callerRuns = new AtomicLong(), completed = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong(), maxWaitNanos = new AtomicLong(), totalServiceNanos = new AtomicLong();
+
+    public IoExecutor(String name, int threads, int maxQueued) {
+        this.name = name;
+        this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(maxQueued), r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    public IoExecutor(String name) {
+        this(name, DEFAULT_THREADS, DEFAULT_MAX_QUEUED);
+    }
+
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        long queued = System.nanoTime();
+        submitted.incrementAndGet();
+        Runnable run = () -> {
+            long start = System.nanoTime();
+            long wait = start - queued;
+            totalWaitNanos.addAndGet(wait);
+            maxWaitNanos.accumulateAndGet(wait, Math::max);
+            try {
+                T value = task.get();
+                ForkJoinPool.commonPool().execute(() -> res.complete(value));
+            } catch (Throwable t) {
+                ForkJoinPool.commonPool().execute(() -> res.completeExceptionally(t));
+            } finally {
+                totalServiceNanos.addAndGet(System.nanoTime() - start);
+                completed.incrementAndGet();
+            }
+        };
+        try {
+            pool.execute(run);
+        } catch (RejectedExecutionException e) {
+            callerRuns.incrementAndGet();
+            run.run();
+        }
+        return res;
+    }
+
+    public int queueDepth() {
+        return pool.getQueue().size();
+    }
+
+    public int activeThreads() {
+        return pool.getActiveCount();
+    }
+
+    public long completed() {
+        return completed.get();
+    }
+
+    /**
+     *
+     * @return the number of tasks run on the submitting thread because the queue was full
+     */
+    public long callerRuns() {
+        return callerRuns.get();
+    }
+
+    public long totalWaitMicros() {
+        return totalWaitNanos.get() / 1000;
+    }
+
+    public long totalServiceMicros() {
+        return totalServiceNanos.get() / 1000;
+    }
+
+    public double meanWaitMillis() {
+        long n = completed.get();
+        return n == 0 ? 0 : totalWaitNanos.get() / 1e6 / n;
+    }
+
+    public double meanServiceMillis() {
+        long n = completed.get();
+        return n == 0 ? 0 : totalServiceNanos.get() / 1e6 / n;
+    }
+
+    public double maxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s(queued: %d, active: %d, submitted: %d, caller runs: %d, mean wait: %.2f mS, " +
+                        "max wait: %.2f mS, mean service: %.2f mS)", name, queueDepth(), activeThreads(), submitted.get(),
+                callerRuns.get(), meanWaitMillis(), maxWaitMillis(), meanServiceMillis());
+    }
+}
@@ -0,0 +1,85 @@
+package peergos.server.storage;
+
+import peergos.server.metrics.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multiaddr.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Records the latency of every call to a storage backend, by operation */
+public class MetricsStorage implements ContentAddressedStorage {
+    private static final Map<String, LatencyHistogram> TIMES = Metrics.histograms("peergos_storage_seconds",
+            "Time taken by calls to the block store", "op",
+            "id", "put", "putRaw", "get", "getRaw", "getRawMany", "pinUpdate", "recursivePin", "recursiveUnpin",
+            "getLinks", "getSize");
+
+    private final ContentAddressedStorage target;
+
+    public MetricsStorage(ContentAddressedStorage target) {
+        this.target = target;
+    }
+
+    @Override
+    public CompletableFuture<Multihash> id() {
+        return TIMES.get("id").time(target::id);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return TIMES.get("put").time(() -> target.put(owner, writer, signatures, blocks));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return TIMES.get("putRaw").time(() -> target.putRaw(owner, writer, signatures, blocks));
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash key) {
+        return TIMES.get("get").time(() -> target.get(key));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
+        return TIMES.get("getRaw").time(() -> target.getRaw(key));
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getRawMany(List<Multihash> keys) {
+        return TIMES.get("getRawMany").time(() -> target.getRawMany(keys));
+    }
+
+    @Override
+    public CompletableFuture<List<MultiAddress>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return TIMES.get("pinUpdate").time(() -> target.pinUpdate(owner, existing, updated));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h) {
+        return TIMES.get("recursivePin").time(() -> target.recursivePin(owner, h));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash h) {
+        return TIMES.get("recursiveUnpin").time(() -> target.recursiveUnpin(owner, h));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+        return TIMES.get("getLinks").time(() -> target.getLinks(root));
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+        return TIMES.get("getSize").time(() -> target.getSize(block));
+    }
+
+    @Override
+    public String toString() {
+        return target.toString();
+    }
+}
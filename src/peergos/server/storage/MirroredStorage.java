@@ -0,0 +1,390 @@
+package peergos.server.storage;
+
+import peergos.server.util.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multiaddr.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** Keeps a copy of every block on each of several local stores, e.g. on different disks.
+ *
+ *  Writes go to every replica, and complete once writeQuorum of them have succeeded. Reads go to the replica with the
+ *  lowest observed latency, and if it hasn't answered within a few multiples of its usual latency the read is also
+ *  sent to the next fastest, and the first answer wins. So a slow disk only delays reads by the hedge delay. A block
+ *  found to be missing from a replica is copied to it, and a background repair pass does the same for every block.
+ */
+public class MirroredStorage implements DeletableContentAddressedStorage, BlockRegionReader {
+    private static final Logger LOG = Logging.LOG();
+    private static final long MIN_HEDGE_MICROS = 2_000;
+    private static final long MAX_HEDGE_MICROS = 200_000;
+    private static final double LATENCY_WEIGHT = 0.1;
+
+    private final List<DeletableContentAddressedStorage> replicas;
+    private final int writeQuorum;
+    // exponentially weighted moving average of each replica's read latency
+    private final long[] latencyMicros;
+    private final AtomicLong hedgedReads = new AtomicLong(), repairedBlocks = new AtomicLong();
+    private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "Mirror read hedging");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ExecutorService repairer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Mirror repair");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public MirroredStorage(List<DeletableContentAddressedStorage> replicas, int writeQuorum) {
+        if (writeQuorum < 1 || writeQuorum > replicas.size())
+            throw new IllegalStateException("Write quorum must be between 1 and the number of replicas!");
+        this.replicas = Collections.unmodifiableList(new ArrayList<>(replicas));
+        this.writeQuorum = writeQuorum;
+        this.latencyMicros = new long[replicas.size()];
+        Arrays.fill(latencyMicros, MIN_HEDGE_MICROS / 4);
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private static boolean isRaw(Multihash h) {
+        return h instanceof Cid && ((Cid) h).codec == Cid.Codec.Raw;
+    }
+
+    /**
+     * @return replica indices, fastest first
+     */
+    private synchronized List<Integer> byLatency() {
+        return IntStream.range(0, replicas.size())
+                .boxed()
+                .sorted(Comparator.comparingLong(i -> latencyMicros[i]))
+                .collect(Collectors.toList());
+    }
+
+    private synchronized void recordLatency(int replica, long micros) {
+        latencyMicros[replica] = (long) (LATENCY_WEIGHT * micros + (1 - LATENCY_WEIGHT) * latencyMicros[replica]);
+    }
+
+    private synchronized long hedgeDelayMicros(int replica) {
+        return Math.min(MAX_HEDGE_MICROS, Math.max(MIN_HEDGE_MICROS, 3 * latencyMicros[replica]));
+    }
+
+    private <T> CompletableFuture<T> timed(int replica, Supplier<CompletableFuture<T>> read) {
+        long start = System.nanoTime();
+        CompletableFuture<T> res = read.get();
+        res.whenComplete((v, t) -> recordLatency(replica, (System.nanoTime() - start) / 1000));
+        return res;
+    }
+
+    /**
+     * Read from the fastest replica, also asking the next fastest if it is slow to answer or doesn't have the block
+     */
+    private <T> CompletableFuture<Optional<T>> hedgedRead(Multihash h, BiFunction<Integer, Multihash, CompletableFuture<Optional<T>>> read) {
+        List<Integer> order = byLatency();
+        CompletableFuture<Optional<T>> res = new CompletableFuture<>();
+        AtomicInteger outstanding = new AtomicInteger(order.size());
+        List<Integer> missing = Collections.synchronizedList(new ArrayList<>());
+        AtomicReference<Throwable> lastError = new AtomicReference<>();
+        AtomicInteger next = new AtomicInteger(0);
+        Runnable[] launch = new Runnable[1];
+        launch[0] = () -> {
+            int i = next.getAndIncrement();
+            if (i >= order.size() || res.isDone())
+                return;
+            int replica = order.get(i);
+            if (i > 0)
+                hedgedReads.incrementAndGet();
+            else if (order.size() > 1) {
+                ScheduledFuture<?> hedge = timer.schedule(launch[0], hedgeDelayMicros(replica), TimeUnit.MICROSECONDS);
+                res.whenComplete((v, t) -> hedge.cancel(false));
+            }
+            CompletableFuture<Optional<T>> attempt;
+            try {
+                attempt = timed(replica, () -> read.apply(replica, h));
+            } catch (Throwable t) {
+                attempt = new CompletableFuture<>();
+                attempt.completeExceptionally(t);
+            }
+            attempt.whenComplete((value, err) -> {
+                if (err == null && value.isPresent()) {
+                    if (res.complete(value) && ! missing.isEmpty())
+                        repair(h, replica, new ArrayList<>(missing));
+                } else {
+                    if (err == null)
+                        missing.add(replica);
+                    else {
+                        lastError.set(err);
+                        LOG.log(Level.WARNING, "Replica " + replica + " read of " + h + " failed: " + err.getMessage());
+                    }
+                    // try the next replica straight away
+                    launch[0].run();
+                }
+                if (outstanding.decrementAndGet() == 0) {
+                    // a replica which failed might have the block, so only say it is absent if none failed
+                    if (lastError.get() != null)
+                        res.completeExceptionally(lastError.get());
+                    else
+                        res.complete(Optional.empty());
+                }
+            });
+        };
+        launch[0].run();
+        return res;
+    }
+
+    /**
+     * Copy a block from one replica to others which don't have it, in the background
+     */
+    private void repair(Multihash h, int source, List<Integer> targets) {
+        repairer.execute(() -> {
+            try {
+                Optional<byte[]> block = replicas.get(source).getRaw(h).join();
+                if (! block.isPresent())
+                    return;
+                for (int target : targets)
+                    if (copyTo(h, block.get(), replicas.get(target)))
+                        repairedBlocks.incrementAndGet();
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Couldn't repair " + h + ": " + e.getMessage(), e);
+            }
+        });
+    }
+
+    private static boolean copyTo(Multihash h, byte[] block, DeletableContentAddressedStorage target) {
+        if (target.contains(h))
+            return false;
+        List<byte[]> data = Arrays.asList(block);
+        List<byte[]> signatures = Arrays.asList(new byte[0]);
+        Multihash stored = (isRaw(h) ?
+                target.putRaw(PublicKeyHash.NULL, PublicKeyHash.NULL, signatures, data) :
+                target.put(PublicKeyHash.NULL, PublicKeyHash.NULL, signatures, data)).join().get(0);
+        if (! stored.equals(h)) {
+            target.delete(stored);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copy every block which is missing from a replica to it, in the background
+     *
+     * @return the number of blocks copied
+     */
+    public CompletableFuture<Long> startRepair() {
+        CompletableFuture<Long> res = new CompletableFuture<>();
+        repairer.execute(() -> {
+            try {
+                long t0 = System.currentTimeMillis();
+                long repaired = 0;
+                for (int source = 0; source < replicas.size(); source++) {
+                    DeletableContentAddressedStorage from = replicas.get(source);
+                    List<Multihash> blocks = new ArrayList<>();
+                    from.applyToAll(blocks::add);
+                    for (Multihash h : blocks) {
+                        List<DeletableContentAddressedStorage> lacking = replicas.stream()
+                                .filter(r -> r != from && ! r.contains(h))
+                                .collect(Collectors.toList());
+                        if (lacking.isEmpty())
+                            continue;
+                        Optional<byte[]> block = from.getRaw(h).join();
+                        if (! block.isPresent())
+                            continue;
+                        for (DeletableContentAddressedStorage target : lacking)
+                            if (copyTo(h, block.get(), target))
+                                repaired++;
+                    }
+                }
+                repairedBlocks.addAndGet(repaired);
+                LOG.info("Repaired " + repaired + " blocks over " + replicas.size() + " replicas in " + (System.currentTimeMillis() - t0) + " mS");
+                res.complete(repaired);
+            } catch (Throwable t) {
+                res.completeExceptionally(t);
+            }
+        });
+        return res;
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
+        return hedgedRead(key, (i, h) -> replicas.get(i).getRaw(h));
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash key) {
+        if (isRaw(key))
+            throw new IllegalStateException("Need to call getRaw if cid is not cbor!");
+        return getRaw(key).thenApply(opt -> opt.map(CborObject::fromByteArray));
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getRawMany(List<Multihash> hashes) {
+        int fastest = byLatency().get(0);
+        return timed(fastest, () -> replicas.get(fastest).getRawMany(hashes)).thenCompose(blocks -> {
+            List<CompletableFuture<Optional<byte[]>>> res = new ArrayList<>();
+            for (int i = 0; i < hashes.size(); i++)
+                res.add(blocks.get(i).isPresent() ?
+                        CompletableFuture.completedFuture(blocks.get(i)) :
+                        getRaw(hashes.get(i)));
+            return Futures.combineAllInOrder(res);
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+        if (isRaw(root))
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        return get(root).thenApply(opt -> opt
+                .map(CborObject::links)
+                .orElse(Collections.emptyList()));
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+        // ask each replica in turn, until one has the block, without blocking a thread
+        AtomicReference<Throwable> lastError = new AtomicReference<>();
+        CompletableFuture<Optional<Integer>> res = CompletableFuture.completedFuture(Optional.empty());
+        for (int i : byLatency()) {
+            DeletableContentAddressedStorage replica = replicas.get(i);
+            res = res.thenCompose(size -> size.isPresent() ?
+                    CompletableFuture.completedFuture(size) :
+                    replica.getSize(block).exceptionally(t -> {
+                        lastError.set(t);
+                        return Optional.empty();
+                    }));
+        }
+        return res.thenApply(size -> {
+            if (! size.isPresent() && lastError.get() != null)
+                throw new RuntimeException(lastError.get().getMessage(), lastError.get());
+            return size;
+        });
+    }
+
+    @Override
+    public Optional<BlockRegion> openBlock(Multihash h) throws IOException {
+        for (int i : byLatency()) {
+            DeletableContentAddressedStorage replica = replicas.get(i);
+            if (replica instanceof BlockRegionReader && replica.contains(h))
+                return ((BlockRegionReader) replica).openBlock(h);
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return quorumPut(r -> r.put(owner, writer, signatures, blocks));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return quorumPut(r -> r.putRaw(owner, writer, signatures, blocks));
+    }
+
+    /**
+     * Write to every replica, completing once writeQuorum have succeeded, or failing once that is impossible
+     */
+    private CompletableFuture<List<Multihash>> quorumPut(Function<DeletableContentAddressedStorage, CompletableFuture<List<Multihash>>> put) {
+        CompletableFuture<List<Multihash>> res = new CompletableFuture<>();
+        AtomicInteger succeeded = new AtomicInteger(), failed = new AtomicInteger();
+        for (DeletableContentAddressedStorage replica : replicas) {
+            CompletableFuture<List<Multihash>> attempt;
+            try {
+                attempt = put.apply(replica);
+            } catch (Throwable t) {
+                attempt = new CompletableFuture<>();
+                attempt.completeExceptionally(t);
+            }
+            attempt.whenComplete((hashes, err) -> {
+                if (err == null) {
+                    if (succeeded.incrementAndGet() == writeQuorum)
+                        res.complete(hashes);
+                    return;
+                }
+                LOG.log(Level.WARNING, "Replica write failed: " + err.getMessage(), err);
+                if (failed.incrementAndGet() == replicas.size() - writeQuorum + 1)
+                    res.completeExceptionally(err);
+            });
+        }
+        return res;
+    }
+
+    @Override
+    public void applyToAll(Consumer<Multihash> processor) {
+        // every block once, skipping those already seen on an earlier replica
+        for (int i = 0; i < replicas.size(); i++) {
+            List<DeletableContentAddressedStorage> earlier = replicas.subList(0, i);
+            replicas.get(i).applyToAll(h -> {
+                if (earlier.stream().noneMatch(r -> r.contains(h)))
+                    processor.accept(h);
+            });
+        }
+    }
+
+    @Override
+    public boolean contains(Multihash h) {
+        return replicas.stream().anyMatch(r -> r.contains(h));
+    }
+
+    @Override
+    public boolean delete(Multihash h) {
+        boolean deleted = false;
+        for (DeletableContentAddressedStorage replica : replicas)
+            deleted |= replica.delete(h);
+        return deleted;
+    }
+
+    @Override
+    public void addPutListener(Consumer<Multihash> listener) {
+        for (DeletableContentAddressedStorage replica : replicas)
+            replica.addPutListener(listener);
+    }
+
+    @Override
+    public Set<Multihash> retainOnly(Set<Multihash> pins) {
+        return replicas.parallelStream()
+                .flatMap(replica -> replica.retainOnly(pins).stream())
+                .collect(Collectors.toSet());
+    }
+
+    @Override
+    public CompletableFuture<Multihash> id() {
+        return replicas.get(0).id();
+    }
+
+    @Override
+    public CompletableFuture<List<MultiAddress>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return replicas.get(0).pinUpdate(owner, existing, updated);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h) {
+        return replicas.get(0).recursivePin(owner, h);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash h) {
+        return replicas.get(0).recursiveUnpin(owner, h);
+    }
+
+    public long hedgedReads() {
+        return hedgedReads.get();
+    }
+
+    public long repairedBlocks() {
+        return repairedBlocks.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MirroredStorage(" + replicas + ", latencies uS: " + Arrays.toString(latencyMicros) +
+                ", hedged reads: " + hedgedReads.get() + ", repaired: " + repairedBlocks.get() + ")";
+    }
+}
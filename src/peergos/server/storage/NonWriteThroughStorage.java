@@ -35,26 +35,16 @@ public class NonWriteThroughStorage implements ContentAddressedStorage {
 
     @Override
     public CompletableFuture<Optional<byte[]>> getRaw(Multihash object) {
-        try {
-            Optional<byte[]> modified = modifications.getRaw(object).get();
-            if ( modified.isPresent())
-                return CompletableFuture.completedFuture(modified);
-            return source.getRaw(object);
-        } catch (Exception e) {
-            throw new RuntimeException(e.getMessage(), e);
-        }
+        return modifications.getRaw(object).thenCompose(modified -> modified.isPresent() ?
+                CompletableFuture.completedFuture(modified) :
+                source.getRaw(object));
     }
 
     @Override
     public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
-        try {
-            Optional<CborObject> modified = modifications.get(hash).get();
-            if ( modified.isPresent())
-                return CompletableFuture.completedFuture(modified);
-            return source.get(hash);
-        } catch (Exception e) {
-            throw new RuntimeException(e.getMessage(), e);
-        }
+        return modifications.get(hash).thenCompose(modified -> modified.isPresent() ?
+                CompletableFuture.completedFuture(modified) :
+                source.get(hash));
     }
 
     @Override
@@ -74,25 +64,15 @@ public class NonWriteThroughStorage implements ContentAddressedStorage {
 
     @Override
     public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
-        try {
-            Optional<CborObject> modified = modifications.get(root).get();
-            if (modified.isPresent())
-                return CompletableFuture.completedFuture(modified.get().links());
-            return source.getLinks(root);
-        } catch (Exception e) {
-            throw new RuntimeException(e.getMessage(), e);
-        }
+        return modifications.get(root).thenCompose(modified -> modified.isPresent() ?
+                CompletableFuture.completedFuture(modified.get().links()) :
+                source.getLinks(root));
     }
 
     @Override
     public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
-        try {
-            Optional<CborObject> modified = modifications.get(block).get();
-            if (modified.isPresent())
-                return CompletableFuture.completedFuture(modified.map(cbor -> cbor.toByteArray().length));
-            return source.getSize(block);
-        } catch (Exception e) {
-            throw new RuntimeException(e.getMessage(), e);
-        }
+        return modifications.get(block).thenCompose(modified -> modified.isPresent() ?
+                CompletableFuture.completedFuture(modified.map(cbor -> cbor.toByteArray().length)) :
+                source.getSize(block));
     }
 }
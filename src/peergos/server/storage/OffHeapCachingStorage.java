@@ -0,0 +1,248 @@
+package peergos.server.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multiaddr.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/** A read through cache of small cbor blocks (CHAMP nodes, metadata and keys), held in direct memory so that a large
+ *  cache doesn't add to heap usage or GC pauses.
+ *
+ *  Blocks are appended to fixed size slabs of direct memory. When every slab is full, the slab which was least
+ *  recently read from is cleared and reused. Only the index from hash to slab location is on heap. Blocks are
+ *  immutable, so entries never need to be invalidated.
+ */
+public class OffHeapCachingStorage implements ContentAddressedStorage {
+    public static final int DEFAULT_SLAB_SIZE = 64 * 1024 * 1024;
+
+    private final ContentAddressedStorage target;
+    private final int maxValueSize;
+    private final int slabSize;
+    private final ByteBuffer[] slabs;
+    private final List<List<Multihash>> slabContents = new ArrayList<>();
+    private final long[] slabLastRead;
+    // slab index in the high 32 bits, offset in the low 32 bits
+    private final Map<Multihash, Long> index = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private int activeSlab, activeOffset;
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /**
+     *
+     * @param maxBytes The most direct memory to allocate, which must hold at least two slabs
+     * @param slabSize The size of each slab, which is reduced for a small maxBytes
+     */
+    public OffHeapCachingStorage(ContentAddressedStorage target, long maxBytes, int slabSize, int maxValueSize) {
+        // one slab is filled while the other is read from, so there must be at least two within the limit
+        int size = (int) Math.min(slabSize, maxBytes / 2);
+        if (maxValueSize + 4 > size)
+            throw new IllegalStateException("Off heap cache of " + maxBytes + " bytes, in slabs of " + slabSize +
+                    ", is too small for values of up to " + maxValueSize + " bytes!");
+        this.target = target;
+        this.maxValueSize = maxValueSize;
+        this.slabSize = size;
+        int nSlabs = (int) Math.min(Integer.MAX_VALUE, maxBytes / size);
+        this.slabs = new ByteBuffer[nSlabs];
+        this.slabLastRead = new long[nSlabs];
+        for (int i = 0; i < nSlabs; i++)
+            slabContents.add(new ArrayList<>());
+    }
+
+    public OffHeapCachingStorage(ContentAddressedStorage target, long maxBytes, int maxValueSize) {
+        this(target, maxBytes, DEFAULT_SLAB_SIZE, maxValueSize);
+    }
+
+    /**
+     *
+     * @return the direct memory used once every slab has been allocated, which is at most maxBytes
+     */
+    public long capacity() {
+        return (long) slabs.length * slabSize;
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    private static boolean isCacheable(Multihash h) {
+        return ! (h instanceof Cid) || ((Cid) h).codec != Cid.Codec.Raw;
+    }
+
+    private Optional<byte[]> getCached(Multihash h) {
+        lock.readLock().lock();
+        try {
+            Long location = index.get(h);
+            if (location == null) {
+                misses.incrementAndGet();
+                return Optional.empty();
+            }
+            hits.incrementAndGet();
+            int slab = (int) (location >>> 32);
+            int offset = (int) (long) location;
+            ByteBuffer source = slabs[slab].duplicate();
+            source.position(offset);
+            byte[] res = new byte[source.getInt()];
+            source.get(res);
+            slabLastRead[slab] = System.nanoTime();
+            return Optional.of(res);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void cache(Multihash h, byte[] value) {
+        if (value.length == 0 || value.length > maxValueSize)
+            return;
+        lock.writeLock().lock();
+        try {
+            if (index.containsKey(h))
+                return;
+            if (activeOffset + 4 + value.length > slabSize) {
+                activeSlab = nextSlab();
+                activeOffset = 0;
+            }
+            if (slabs[activeSlab] == null)
+                slabs[activeSlab] = ByteBuffer.allocateDirect(slabSize);
+            ByteBuffer dest = slabs[activeSlab].duplicate();
+            dest.position(activeOffset);
+            dest.putInt(value.length);
+            dest.put(value);
+            index.put(h, ((long) activeSlab << 32) | activeOffset);
+            slabContents.get(activeSlab).add(h);
+            slabLastRead[activeSlab] = System.nanoTime();
+            activeOffset += 4 + value.length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Pick an unused slab if there is one, otherwise clear the least recently read slab
+     */
+    private int nextSlab() {
+        int next = -1;
+        for (int i = 0; i < slabs.length; i++) {
+            if (i == activeSlab)
+                continue;
+            if (slabContents.get(i).isEmpty())
+                return i;
+            if (next < 0 || slabLastRead[i] < slabLastRead[next])
+                next = i;
+        }
+        List<Multihash> evicted = slabContents.get(next);
+        for (Multihash h : evicted)
+            index.remove(h);
+        evicted.clear();
+        return next;
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash key) {
+        Optional<byte[]> cached = getCached(key);
+        if (cached.isPresent())
+            return CompletableFuture.completedFuture(cached.map(CborObject::fromByteArray));
+        return target.get(key).thenApply(cborOpt -> {
+            cborOpt.ifPresent(cbor -> cache(key, cbor.toByteArray()));
+            return cborOpt;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
+        if (! isCacheable(key))
+            return target.getRaw(key);
+        Optional<byte[]> cached = getCached(key);
+        if (cached.isPresent())
+            return CompletableFuture.completedFuture(cached);
+        return target.getRaw(key).thenApply(rawOpt -> {
+            rawOpt.ifPresent(raw -> cache(key, raw));
+            return rawOpt;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return target.put(owner, writer, signatures, blocks).thenApply(hashes -> {
+            // newly written metadata is likely to be read again soon
+            for (int i = 0; i < hashes.size(); i++)
+                cache(hashes.get(i), blocks.get(i));
+            return hashes;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return target.putRaw(owner, writer, signatures, blocks);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+        if (! isCacheable(root))
+            return target.getLinks(root);
+        Optional<byte[]> cached = getCached(root);
+        if (cached.isPresent())
+            return CompletableFuture.completedFuture(CborObject.fromByteArray(cached.get()).links());
+        return target.getLinks(root);
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+        if (isCacheable(block)) {
+            lock.readLock().lock();
+            try {
+                Long location = index.get(block);
+                if (location != null)
+                    return CompletableFuture.completedFuture(Optional.of(slabs[(int) (location >>> 32)].getInt((int) (long) location)));
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        return target.getSize(block);
+    }
+
+    @Override
+    public CompletableFuture<Multihash> id() {
+        return target.id();
+    }
+
+    @Override
+    public CompletableFuture<List<MultiAddress>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return target.pinUpdate(owner, existing, updated);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h) {
+        return target.recursivePin(owner, h);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash h) {
+        return target.recursiveUnpin(owner, h);
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapCachingStorage(" + size() + " blocks, hits: " + hits.get() + ", misses: " + misses.get() + ")";
+    }
+}
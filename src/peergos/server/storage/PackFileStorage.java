@@ -0,0 +1,684 @@
+package peergos.server.storage;
+
+import peergos.server.util.Logging;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multiaddr.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A log structured ContentAddressedStorage which appends blocks to large segment files in a local directory.
+ *
+ *  Each segment record is [short cid length][cid][int data length][data]. An append only index log records every
+ *  put and delete as cid -> (segment, offset, length) and is replayed into memory on startup. Deleted blocks leave
+ *  dead space in their segment, which is reclaimed by compaction: the live records of a sparse segment are copied
+ *  to the active segment and the old segment file is removed. When the index is rewritten without its dead entries
+ *  it also records the end of each segment, so deleted records are never mistaken for unindexed ones on recovery.
+ */
+public class PackFileStorage implements DeletableContentAddressedStorage, BlockRegionReader {
+    private static final Logger LOG = Logging.LOG();
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".pack";
+    private static final String INDEX_FILENAME = "index";
+    private static final String LOCK_FILENAME = "lock";
+    private static final byte INDEX_PUT = 0;
+    private static final byte INDEX_DELETE = 1;
+    private static final byte INDEX_SEGMENT_END = 2;
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 256 * 1024 * 1024L;
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    private static final class Location {
+        final int segment;
+        final long offset;
+        final int length;
+
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final class Segment {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        long size, deadBytes, indexedEnd;
+
+        Segment(int id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+    }
+
+    private final Path root;
+    private final long maxSegmentSize;
+    private final double compactionThreshold;
+    private final FileLock dirLock;
+    private final Map<Multihash, Location> index = new HashMap<>();
+    private final SortedMap<Integer, Segment> segments = new TreeMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<Consumer<Multihash>> putListeners = new CopyOnWriteArrayList<>();
+    private Segment active;
+    private FileChannel indexLog;
+    private long indexRecords;
+    private volatile boolean isFinished;
+
+    public PackFileStorage(Path root, long maxSegmentSize, double compactionThreshold) {
+        this.root = root;
+        this.maxSegmentSize = maxSegmentSize;
+        this.compactionThreshold = compactionThreshold;
+        File rootDir = root.toFile();
+        if (! rootDir.exists() && ! rootDir.mkdirs())
+            throw new IllegalStateException("Unable to create directory " + root);
+        if (! rootDir.isDirectory())
+            throw new IllegalStateException("Pack store path must be a directory! " + root);
+        try {
+            FileChannel lockChannel = FileChannel.open(root.resolve(LOCK_FILENAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            this.dirLock = lockChannel.tryLock();
+            if (dirLock == null)
+                throw new IllegalStateException("Pack store is in use by another process: " + root);
+            load();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    public PackFileStorage(Path root) {
+        this(root, DEFAULT_MAX_SEGMENT_SIZE, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    private static Path segmentPath(Path root, int id) {
+        return root.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private static int recordSize(Multihash h, int dataLength) {
+        return 2 + h.toBytes().length + 4 + dataLength;
+    }
+
+    private void load() throws IOException {
+        String[] names = root.toFile().list();
+        if (names == null)
+            throw new IllegalStateException("Couldn't list pack store directory " + root);
+        for (String name : names) {
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(id, new Segment(id, root.resolve(name)));
+            }
+        }
+        replayIndex();
+        indexLog = FileChannel.open(root.resolve(INDEX_FILENAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        indexLog.position(indexLog.size());
+
+        // recover any records written to a segment but not to the index (e.g. after a crash, or a lost index)
+        for (Segment segment : segments.values())
+            recoverUnindexed(segment);
+
+        // the index doesn't retain deletes once rewritten, so derive dead space from what is still live
+        Map<Integer, Long> liveBytes = new HashMap<>();
+        for (Map.Entry<Multihash, Location> e : index.entrySet())
+            liveBytes.merge(e.getValue().segment, (long) recordSize(e.getKey(), e.getValue().length), Long::sum);
+        for (Segment segment : segments.values())
+            segment.deadBytes = segment.size - liveBytes.getOrDefault(segment.id, 0L);
+
+        if (segments.isEmpty() || segments.get(segments.lastKey()).size >= maxSegmentSize)
+            rollSegment();
+        else
+            active = segments.get(segments.lastKey());
+
+        if (indexRecords > 2L * index.size() + 1024)
+            rewriteIndex();
+        LOG.info("Loaded pack store " + root + " with " + index.size() + " blocks in " + segments.size() + " segments");
+    }
+
+    private void replayIndex() throws IOException {
+        Path indexPath = root.resolve(INDEX_FILENAME);
+        if (! indexPath.toFile().exists())
+            return;
+        long validLength = 0;
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(indexPath.toFile()), 1024 * 1024))) {
+            while (true) {
+                int type = din.read();
+                if (type < 0)
+                    break;
+                if (type == INDEX_SEGMENT_END) {
+                    Segment segment = segments.get(din.readInt());
+                    long end = din.readLong();
+                    if (segment != null)
+                        segment.indexedEnd = Math.max(segment.indexedEnd, end);
+                    validLength += 1 + 4 + 8;
+                    indexRecords++;
+                    continue;
+                }
+                byte[] rawCid = new byte[din.readUnsignedShort()];
+                din.readFully(rawCid);
+                Cid cid = Cid.cast(rawCid);
+                if (type == INDEX_PUT) {
+                    Location loc = new Location(din.readInt(), din.readLong(), din.readInt());
+                    markDead(cid, index.put(cid, loc));
+                    Segment segment = segments.get(loc.segment);
+                    if (segment != null)
+                        segment.indexedEnd = Math.max(segment.indexedEnd, loc.offset + loc.length);
+                    validLength += 1 + 2 + rawCid.length + 4 + 8 + 4;
+                } else if (type == INDEX_DELETE) {
+                    markDead(cid, index.remove(cid));
+                    validLength += 1 + 2 + rawCid.length;
+                } else
+                    throw new IllegalStateException("Corrupt pack store index at offset " + validLength);
+                indexRecords++;
+            }
+        } catch (EOFException e) {
+            LOG.warning("Truncating partially written pack store index entry at offset " + validLength);
+            try (FileChannel truncate = FileChannel.open(indexPath, StandardOpenOption.WRITE)) {
+                truncate.truncate(validLength);
+            }
+        }
+    }
+
+    private void recoverUnindexed(Segment segment) throws IOException {
+        long offset = segment.indexedEnd;
+        int recovered = 0;
+        ByteBuffer header = ByteBuffer.allocate(2);
+        while (offset < segment.size) {
+            header.clear();
+            if (readFully(segment.channel, header, offset) < 2)
+                break;
+            int cidLength = header.getShort(0) & 0xffff;
+            ByteBuffer rest = ByteBuffer.allocate(cidLength + 4);
+            if (readFully(segment.channel, rest, offset + 2) < rest.capacity())
+                break;
+            byte[] rawCid = new byte[cidLength];
+            rest.flip();
+            rest.get(rawCid);
+            int length = rest.getInt();
+            long dataOffset = offset + 2 + cidLength + 4;
+            if (length < 0 || dataOffset + length > segment.size)
+                break;
+            Cid cid = Cid.cast(rawCid);
+            Location loc = new Location(segment.id, dataOffset, length);
+            markDead(cid, index.put(cid, loc));
+            appendIndex(INDEX_PUT, cid, loc);
+            recovered++;
+            offset = dataOffset + length;
+        }
+        if (offset < segment.size) {
+            LOG.warning("Truncating partially written record in " + segment.path + " at offset " + offset);
+            segment.channel.truncate(offset);
+            segment.size = offset;
+        }
+        segment.indexedEnd = offset;
+        if (recovered > 0) {
+            indexLog.force(false);
+            LOG.info("Recovered " + recovered + " unindexed blocks from " + segment.path);
+        }
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position + total);
+            if (read < 0)
+                break;
+            total += read;
+        }
+        return total;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        long written = 0;
+        while (buf.hasRemaining())
+            written += channel.write(buf, position + written);
+    }
+
+    private void markDead(Multihash h, Location previous) {
+        if (previous == null)
+            return;
+        Segment segment = segments.get(previous.segment);
+        if (segment != null)
+            segment.deadBytes += recordSize(h, previous.length);
+    }
+
+    private void appendIndex(byte type, Multihash h, Location loc) throws IOException {
+        byte[] rawCid = h.toBytes();
+        ByteBuffer entry = ByteBuffer.allocate(1 + 2 + rawCid.length + (type == INDEX_PUT ? 16 : 0));
+        entry.put(type);
+        entry.putShort((short) rawCid.length);
+        entry.put(rawCid);
+        if (type == INDEX_PUT) {
+            entry.putInt(loc.segment);
+            entry.putLong(loc.offset);
+            entry.putInt(loc.length);
+        }
+        entry.flip();
+        while (entry.hasRemaining())
+            indexLog.write(entry);
+        indexRecords++;
+    }
+
+    private void rollSegment() throws IOException {
+        if (active != null)
+            active.channel.force(false);
+        int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        active = new Segment(id, segmentPath(root, id));
+        segments.put(id, active);
+    }
+
+    /** Must be called with the write lock held
+     */
+    private Location append(Multihash h, byte[] data) throws IOException {
+        byte[] rawCid = h.toBytes();
+        ByteBuffer record = ByteBuffer.allocate(2 + rawCid.length + 4 + data.length);
+        record.putShort((short) rawCid.length);
+        record.put(rawCid);
+        record.putInt(data.length);
+        record.put(data);
+        record.flip();
+        long start = active.size;
+        writeFully(active.channel, record, start);
+        active.size = start + record.capacity();
+        active.indexedEnd = active.size;
+        Location loc = new Location(active.id, start + 2 + rawCid.length + 4, data.length);
+        markDead(h, index.put(h, loc));
+        appendIndex(INDEX_PUT, h, loc);
+        if (active.size >= maxSegmentSize)
+            rollSegment();
+        return loc;
+    }
+
+    @Override
+    public CompletableFuture<Multihash> id() {
+        return CompletableFuture.completedFuture(new Multihash(Multihash.Type.sha2_256, RAMStorage.hash("FileStorage".getBytes())));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return put(blocks, false);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return put(blocks, true);
+    }
+
+    @Override
+    public void addPutListener(Consumer<Multihash> listener) {
+        putListeners.add(listener);
+    }
+
+    private CompletableFuture<List<Multihash>> put(List<byte[]> blocks, boolean isRaw) {
+        List<Multihash> hashes = blocks.stream()
+                .map(b -> RAMStorage.hashToCid(b, isRaw))
+                .collect(Collectors.toList());
+        for (Multihash h : hashes)
+            for (Consumer<Multihash> listener : putListeners)
+                listener.accept(h);
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < blocks.size(); i++) {
+                Multihash h = hashes.get(i);
+                if (! index.containsKey(h))
+                    append(h, blocks.get(i));
+            }
+            active.channel.force(false);
+            indexLog.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return CompletableFuture.completedFuture(hashes);
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+        if (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw)
+            throw new IllegalStateException("Need to call getRaw if cid is not cbor!");
+        return getRaw(hash).thenApply(opt -> opt.map(CborObject::fromByteArray));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        lock.readLock().lock();
+        try {
+            Location loc = index.get(hash);
+            if (loc == null)
+                return CompletableFuture.completedFuture(Optional.empty());
+            ByteBuffer data = ByteBuffer.allocate(loc.length);
+            if (readFully(segments.get(loc.segment).channel, data, loc.offset) < loc.length)
+                throw new IllegalStateException("Truncated block " + hash + " in pack store " + root);
+            return CompletableFuture.completedFuture(Optional.of(data.array()));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getRawMany(List<Multihash> hashes) {
+        List<Optional<byte[]>> res = new ArrayList<>(Collections.nCopies(hashes.size(), Optional.empty()));
+        lock.readLock().lock();
+        try {
+            // read in file order to make the most of read ahead
+            List<Integer> order = IntStream.range(0, hashes.size())
+                    .filter(i -> index.containsKey(hashes.get(i)))
+                    .boxed()
+                    .sorted(Comparator.comparing((Integer i) -> index.get(hashes.get(i)).segment)
+                            .thenComparing(i -> index.get(hashes.get(i)).offset))
+                    .collect(Collectors.toList());
+            for (int i : order) {
+                Location loc = index.get(hashes.get(i));
+                ByteBuffer data = ByteBuffer.allocate(loc.length);
+                if (readFully(segments.get(loc.segment).channel, data, loc.offset) < loc.length)
+                    throw new IllegalStateException("Truncated block " + hashes.get(i) + " in pack store " + root);
+                res.set(i, Optional.of(data.array()));
+            }
+            return CompletableFuture.completedFuture(res);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<BlockRegion> openBlock(Multihash hash) throws IOException {
+        lock.readLock().lock();
+        try {
+            Location loc = index.get(hash);
+            if (loc == null)
+                return Optional.empty();
+            // Use a separate channel so the region stays readable even if compaction removes the segment meanwhile
+            FileChannel channel = FileChannel.open(segments.get(loc.segment).path, StandardOpenOption.READ);
+            return Optional.of(new BlockRegion(channel, loc.offset, loc.length));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<MultiAddress>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return CompletableFuture.completedFuture(Arrays.asList(new MultiAddress("/ipfs/"+existing), new MultiAddress("/ipfs/"+updated)));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h) {
+        return CompletableFuture.completedFuture(Arrays.asList(h));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash h) {
+        return CompletableFuture.completedFuture(Arrays.asList(h));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+        if (root instanceof Cid && ((Cid) root).codec == Cid.Codec.Raw)
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        return get(root).thenApply(opt -> opt
+                .map(cbor -> cbor.links())
+                .orElse(Collections.emptyList())
+        );
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash h) {
+        lock.readLock().lock();
+        try {
+            Location loc = index.get(h);
+            return CompletableFuture.completedFuture(loc == null ? Optional.empty() : Optional.of(loc.length));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(Multihash h) {
+        lock.readLock().lock();
+        try {
+            return index.containsKey(h);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(Multihash h) {
+        lock.writeLock().lock();
+        try {
+            Location loc = index.remove(h);
+            if (loc == null)
+                return false;
+            markDead(h, loc);
+            appendIndex(INDEX_DELETE, h, null);
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void applyToAll(Consumer<Multihash> processor) {
+        List<Multihash> all;
+        lock.readLock().lock();
+        try {
+            all = new ArrayList<>(index.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+        all.forEach(processor);
+    }
+
+    @Override
+    public Set<Multihash> retainOnly(Set<Multihash> pins) {
+        Set<Multihash> removed = DeletableContentAddressedStorage.super.retainOnly(pins);
+        lock.writeLock().lock();
+        try {
+            indexLog.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return removed;
+    }
+
+    /**
+     *
+     * @return The number of bytes of dead space that would be reclaimed by compaction
+     */
+    public long deadBytes() {
+        lock.readLock().lock();
+        try {
+            return segments.values().stream().mapToLong(s -> s.deadBytes).sum();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int segmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrite every sealed segment whose proportion of dead space is above the compaction threshold.
+     *
+     * @return the number of segments compacted
+     */
+    public synchronized int compact() {
+        List<Segment> candidates;
+        lock.readLock().lock();
+        try {
+            candidates = segments.values().stream()
+                    .filter(s -> s != active)
+                    .filter(s -> s.size == 0 || (double) s.deadBytes / s.size >= compactionThreshold)
+                    .collect(Collectors.toList());
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (Segment segment : candidates) {
+            try {
+                compact(segment);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Error compacting " + segment.path + ": " + e.getMessage(), e);
+            }
+        }
+        if (! candidates.isEmpty()) {
+            lock.writeLock().lock();
+            try {
+                rewriteIndex();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, e.getMessage(), e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return candidates.size();
+    }
+
+    private void compact(Segment segment) throws IOException {
+        long offset = 0;
+        long moved = 0;
+        ByteBuffer header = ByteBuffer.allocate(2);
+        // Only the compactor removes segments, so we can read this one without the lock
+        while (offset < segment.size) {
+            header.clear();
+            readFully(segment.channel, header, offset);
+            int cidLength = header.getShort(0) & 0xffff;
+            ByteBuffer rest = ByteBuffer.allocate(cidLength + 4);
+            readFully(segment.channel, rest, offset + 2);
+            rest.flip();
+            byte[] rawCid = new byte[cidLength];
+            rest.get(rawCid);
+            int length = rest.getInt();
+            long dataOffset = offset + 2 + cidLength + 4;
+            Cid cid = Cid.cast(rawCid);
+
+            boolean live;
+            lock.readLock().lock();
+            try {
+                Location current = index.get(cid);
+                live = current != null && current.segment == segment.id && current.offset == dataOffset;
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (live) {
+                ByteBuffer data = ByteBuffer.allocate(length);
+                readFully(segment.channel, data, dataOffset);
+                lock.writeLock().lock();
+                try {
+                    Location current = index.get(cid);
+                    if (current != null && current.segment == segment.id && current.offset == dataOffset) {
+                        append(cid, data.array());
+                        moved += length;
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            offset = dataOffset + length;
+        }
+
+        lock.writeLock().lock();
+        try {
+            // make sure the moved records and their index entries are durable before removing the originals
+            active.channel.force(false);
+            indexLog.force(false);
+            segments.remove(segment.id);
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        LOG.info("Compacted " + segment.path + ", moved " + moved + " live bytes and reclaimed " + (segment.size - moved));
+    }
+
+    /** Replace the index log with one containing only the live mappings. Must be called with the write lock held
+     */
+    private void rewriteIndex() throws IOException {
+        Path indexPath = root.resolve(INDEX_FILENAME);
+        Path tmp = root.resolve(INDEX_FILENAME + ".tmp");
+        indexLog.force(false);
+        indexLog.close();
+        indexRecords = 0;
+        indexLog = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        for (Segment segment : segments.values()) {
+            ByteBuffer end = ByteBuffer.allocate(1 + 4 + 8);
+            end.put(INDEX_SEGMENT_END);
+            end.putInt(segment.id);
+            end.putLong(segment.size);
+            end.flip();
+            while (end.hasRemaining())
+                indexLog.write(end);
+            indexRecords++;
+        }
+        for (Map.Entry<Multihash, Location> e : index.entrySet())
+            appendIndex(INDEX_PUT, e.getKey(), e.getValue());
+        indexLog.force(false);
+        indexLog.close();
+        Files.move(tmp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        indexLog = FileChannel.open(indexPath, StandardOpenOption.WRITE);
+        indexLog.position(indexLog.size());
+    }
+
+    /**
+     * Start a daemon thread which compacts sparse segments periodically
+     */
+    public void startCompaction(long periodMillis) {
+        Thread compactor = new Thread(() -> {
+            while (! isFinished) {
+                try {
+                    Thread.sleep(periodMillis);
+                    compact();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Throwable t) {
+                    LOG.log(Level.WARNING, t.getMessage(), t);
+                }
+            }
+        }, "Pack store compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    public void close() {
+        isFinished = true;
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values())
+                segment.channel.close();
+            indexLog.close();
+            dirLock.release();
+            dirLock.channel().close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PackFileStorage " + root;
+    }
+}
@@ -56,6 +56,13 @@ public class RAMStorage implements ContentAddressedStorage {
                 Optional.empty());
     }
 
+    @Override
+    public synchronized CompletableFuture<List<Optional<byte[]>>> getRawMany(List<Multihash> hashes) {
+        return CompletableFuture.completedFuture(hashes.stream()
+                .map(h -> Optional.ofNullable(storage.get(h)))
+                .collect(Collectors.toList()));
+    }
+
     @Override
     public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
         if (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw)
@@ -0,0 +1,426 @@
+package peergos.server.storage;
+
+import peergos.server.util.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multiaddr.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/** Implements pinning for a local block store with a persistent reference count for every reachable block, and
+ *  deletes blocks once nothing references them.
+ *
+ *  Roots are pinned by owner, and pinning a root which is already pinned for that owner, or unpinning one which
+ *  isn't, does nothing. Only pointer updates, through pinRoot and unpinRoot from PinningMutablePointers, change the
+ *  counts; the ContentAddressedStorage pin methods, which are reachable from the unauthenticated block api, are
+ *  no-ops. Roots counted when the index is created have no known owner, and are released by the first unpin of
+ *  them for any owner.
+ *
+ *  A block's count is the number of pins of it plus the number of links to it from counted blocks. Only a block
+ *  going from zero to one increments its children, and only one going from one to zero decrements them, so a pin
+ *  update touches only the subtrees which changed between the old and new roots. Blocks whose count drops to zero
+ *  are deleted after a delay, unless they have been put again or are a current root in the meantime.
+ *
+ *  Each pin operation is appended to a log as a single batch and synced, so a partially written operation is
+ *  discarded on restart. A batch is the number of pin changes, then a [short owner length][owner][short root length]
+ *  [root][byte pinned] record for each, then the number of count changes, then a [short hash length][hash][int count]
+ *  record for each.
+ */
+public class RefCountingStorage implements DeletableContentAddressedStorage, BlockRegionReader {
+    private static final Logger LOG = Logging.LOG();
+
+    private final DeletableContentAddressedStorage target;
+    private final Path logFile;
+    private final long deleteDelayMillis;
+    private final boolean isNewIndex;
+    // guarded by this
+    private final Map<Multihash, Integer> counts = new EfficientHashMap<>();
+    private final Set<Pair<PublicKeyHash, Multihash>> pins = new HashSet<>();
+    private long logRecords;
+    private FileOutputStream logOut;
+    private DataOutputStream log;
+    // blocks whose count has dropped to zero, guarded by itself
+    private final Set<Multihash> pendingDeletion = new HashSet<>();
+    private volatile Supplier<CompletableFuture<List<Multihash>>> roots;
+    private final ScheduledExecutorService deleter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Unreferenced block deleter");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public RefCountingStorage(DeletableContentAddressedStorage target, Path logFile, long deleteDelayMillis) {
+        this.target = target;
+        this.logFile = logFile;
+        this.deleteDelayMillis = deleteDelayMillis;
+        this.isNewIndex = ! logFile.toFile().exists();
+        try {
+            if (! isNewIndex)
+                replay();
+            if (isNewIndex || logRecords > 2L * (pins.size() + counts.size()) + 1024)
+                rewrite();
+            logOut = new FileOutputStream(logFile.toFile(), true);
+            log = new DataOutputStream(new BufferedOutputStream(logOut));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        target.addPutListener(h -> {
+            synchronized (pendingDeletion) {
+                pendingDeletion.remove(h);
+            }
+        });
+    }
+
+    private void replay() throws IOException {
+        long validLength = 0;
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile.toFile()), 1024 * 1024))) {
+            while (true) {
+                int b0 = din.read();
+                if (b0 < 0)
+                    break;
+                int pinRecords = (b0 << 24) | (din.readUnsignedByte() << 16) | (din.readUnsignedShort());
+                Map<Pair<PublicKeyHash, Multihash>, Boolean> pinBatch = new HashMap<>();
+                long batchLength = 4;
+                for (int i = 0; i < pinRecords; i++) {
+                    byte[] rawOwner = new byte[din.readUnsignedShort()];
+                    din.readFully(rawOwner);
+                    byte[] rawRoot = new byte[din.readUnsignedShort()];
+                    din.readFully(rawRoot);
+                    pinBatch.put(new Pair<>(PublicKeyHash.decode(rawOwner), Cid.cast(rawRoot)), din.readBoolean());
+                    batchLength += 2 + rawOwner.length + 2 + rawRoot.length + 1;
+                }
+                int records = din.readInt();
+                Map<Multihash, Integer> batch = new HashMap<>();
+                batchLength += 4;
+                for (int i = 0; i < records; i++) {
+                    byte[] rawHash = new byte[din.readUnsignedShort()];
+                    din.readFully(rawHash);
+                    batch.put(Cid.cast(rawHash), din.readInt());
+                    batchLength += 2 + rawHash.length + 4;
+                }
+                apply(pinBatch, batch);
+                logRecords += pinRecords + records;
+                validLength += batchLength;
+            }
+        } catch (EOFException e) {
+            LOG.warning("Discarding partially written pin count batch in " + logFile + " at offset " + validLength);
+            try (RandomAccessFile raf = new RandomAccessFile(logFile.toFile(), "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+    }
+
+    private void rewrite() throws IOException {
+        Path tmp = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+        try (DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+            Map<Pair<PublicKeyHash, Multihash>, Boolean> allPins = new HashMap<>();
+            for (Pair<PublicKeyHash, Multihash> pin : pins)
+                allPins.put(pin, true);
+            writeBatch(dout, allPins, counts);
+        }
+        Files.move(tmp, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logRecords = pins.size() + counts.size();
+    }
+
+    private static void writeBatch(DataOutputStream dout,
+                                   Map<Pair<PublicKeyHash, Multihash>, Boolean> pinBatch,
+                                   Map<Multihash, Integer> batch) throws IOException {
+        dout.writeInt(pinBatch.size());
+        for (Map.Entry<Pair<PublicKeyHash, Multihash>, Boolean> e : pinBatch.entrySet()) {
+            byte[] rawOwner = e.getKey().left.toBytes();
+            dout.writeShort(rawOwner.length);
+            dout.write(rawOwner);
+            byte[] rawRoot = e.getKey().right.toBytes();
+            dout.writeShort(rawRoot.length);
+            dout.write(rawRoot);
+            dout.writeBoolean(e.getValue());
+        }
+        dout.writeInt(batch.size());
+        for (Map.Entry<Multihash, Integer> e : batch.entrySet()) {
+            byte[] rawHash = e.getKey().toBytes();
+            dout.writeShort(rawHash.length);
+            dout.write(rawHash);
+            dout.writeInt(e.getValue());
+        }
+    }
+
+    private void apply(Map<Pair<PublicKeyHash, Multihash>, Boolean> pinBatch, Map<Multihash, Integer> batch) {
+        for (Map.Entry<Pair<PublicKeyHash, Multihash>, Boolean> e : pinBatch.entrySet()) {
+            if (e.getValue())
+                pins.add(e.getKey());
+            else
+                pins.remove(e.getKey());
+        }
+        for (Map.Entry<Multihash, Integer> e : batch.entrySet()) {
+            if (e.getValue() == 0)
+                counts.remove(e.getKey());
+            else
+                counts.put(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Enable deletion of unreferenced blocks, and if the index is new, count references from the current roots
+     *
+     * @param roots Every current root, which are never deleted
+     */
+    public void start(Supplier<CompletableFuture<List<Multihash>>> roots) {
+        if (isNewIndex) {
+            long t0 = System.currentTimeMillis();
+            List<Multihash> all = roots.get().join();
+            synchronized (this) {
+                // the owners of existing roots aren't known
+                Map<Pair<PublicKeyHash, Multihash>, Boolean> pinChanges = new HashMap<>();
+                Map<Multihash, Integer> changes = new HashMap<>();
+                for (Multihash root : all)
+                    if (pinChanges.put(new Pair<>(PublicKeyHash.NULL, root), true) == null)
+                        increment(root, changes);
+                commit(pinChanges, changes);
+            }
+            LOG.info("Counted references to " + count() + " blocks from " + all.size() + " roots in " + (System.currentTimeMillis() - t0) + " mS");
+        }
+        this.roots = roots;
+    }
+
+    private int count(Multihash h, Map<Multihash, Integer> changes) {
+        Integer changed = changes.get(h);
+        if (changed != null)
+            return changed;
+        return counts.getOrDefault(h, 0);
+    }
+
+    private void increment(Multihash root, Map<Multihash, Integer> changes) {
+        Deque<Multihash> toVisit = new ArrayDeque<>();
+        toVisit.push(root);
+        while (! toVisit.isEmpty()) {
+            Multihash h = toVisit.pop();
+            int count = count(h, changes);
+            changes.put(h, count + 1);
+            if (count == 0)
+                for (Multihash link : target.getLinks(h).join())
+                    toVisit.push(link);
+        }
+    }
+
+    private void decrement(Multihash root, Map<Multihash, Integer> changes) {
+        Deque<Multihash> toVisit = new ArrayDeque<>();
+        toVisit.push(root);
+        while (! toVisit.isEmpty()) {
+            Multihash h = toVisit.pop();
+            int count = count(h, changes);
+            if (count == 0) {
+                LOG.warning("Ignoring unpin of unreferenced block " + h);
+                continue;
+            }
+            changes.put(h, count - 1);
+            if (count == 1)
+                for (Multihash link : target.getLinks(h).join())
+                    toVisit.push(link);
+        }
+    }
+
+    /**
+     * Durably record a pin operation, and schedule deletion of the blocks it left unreferenced
+     */
+    private void commit(Map<Pair<PublicKeyHash, Multihash>, Boolean> pinChanges, Map<Multihash, Integer> changes) {
+        try {
+            writeBatch(log, pinChanges, changes);
+            log.flush();
+            logOut.getFD().sync();
+            logRecords += pinChanges.size() + changes.size();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        apply(pinChanges, changes);
+        List<Multihash> unreferenced = new ArrayList<>();
+        for (Map.Entry<Multihash, Integer> e : changes.entrySet())
+            if (e.getValue() == 0)
+                unreferenced.add(e.getKey());
+        if (unreferenced.isEmpty())
+            return;
+        synchronized (pendingDeletion) {
+            pendingDeletion.addAll(unreferenced);
+        }
+        deleter.schedule(() -> deleteIfUnreferenced(unreferenced), deleteDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void deleteIfUnreferenced(List<Multihash> candidates) {
+        try {
+            Supplier<CompletableFuture<List<Multihash>>> currentRoots = roots;
+            if (currentRoots == null) {
+                // not started yet
+                deleter.schedule(() -> deleteIfUnreferenced(candidates), deleteDelayMillis, TimeUnit.MILLISECONDS);
+                return;
+            }
+            Set<Multihash> live = new HashSet<>(currentRoots.get().join());
+            long deleted = 0;
+            for (Multihash h : candidates) {
+                if (live.contains(h))
+                    continue;
+                synchronized (this) {
+                    if (counts.containsKey(h))
+                        continue;
+                    synchronized (pendingDeletion) {
+                        // put again since its count dropped
+                        if (! pendingDeletion.remove(h))
+                            continue;
+                    }
+                    if (target.delete(h))
+                        deleted++;
+                }
+            }
+            if (deleted > 0)
+                LOG.info("Deleted " + deleted + " unreferenced blocks");
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, t.getMessage(), t);
+        }
+    }
+
+    public synchronized int count() {
+        return counts.size();
+    }
+
+    public synchronized int getCount(Multihash h) {
+        return counts.getOrDefault(h, 0);
+    }
+
+    public synchronized boolean isPinned(PublicKeyHash owner, Multihash root) {
+        return pins.contains(new Pair<>(owner, root));
+    }
+
+    /**
+     * Pin a new pointer root for owner, and count references from it, unless it is already pinned for owner
+     */
+    public synchronized CompletableFuture<List<Multihash>> pinRoot(PublicKeyHash owner, Multihash root) {
+        Pair<PublicKeyHash, Multihash> pin = new Pair<>(owner, root);
+        if (! pins.contains(pin)) {
+            Map<Multihash, Integer> changes = new HashMap<>();
+            increment(root, changes);
+            commit(Collections.singletonMap(pin, true), changes);
+        }
+        return CompletableFuture.completedFuture(Arrays.asList(root));
+    }
+
+    /**
+     * Unpin an old pointer root for owner, and release references from it, if it is pinned
+     */
+    public synchronized CompletableFuture<List<Multihash>> unpinRoot(PublicKeyHash owner, Multihash root) {
+        Pair<PublicKeyHash, Multihash> pin = new Pair<>(owner, root);
+        if (! pins.contains(pin))
+            pin = new Pair<>(PublicKeyHash.NULL, root);
+        if (pins.contains(pin)) {
+            Map<Multihash, Integer> changes = new HashMap<>();
+            decrement(root, changes);
+            commit(Collections.singletonMap(pin, false), changes);
+        }
+        return CompletableFuture.completedFuture(Arrays.asList(root));
+    }
+
+    /**
+     * A no-op, as only pinRoot changes reference counts
+     */
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h) {
+        return CompletableFuture.completedFuture(Arrays.asList(h));
+    }
+
+    /**
+     * A no-op, as only unpinRoot changes reference counts
+     */
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash h) {
+        return CompletableFuture.completedFuture(Arrays.asList(h));
+    }
+
+    /**
+     * A no-op, as only pinRoot and unpinRoot change reference counts
+     */
+    @Override
+    public CompletableFuture<List<MultiAddress>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return CompletableFuture.completedFuture(Arrays.asList(new MultiAddress("/ipfs/" + existing), new MultiAddress("/ipfs/" + updated)));
+    }
+
+    @Override
+    public Optional<BlockRegion> openBlock(Multihash h) throws IOException {
+        if (target instanceof BlockRegionReader)
+            return ((BlockRegionReader) target).openBlock(h);
+        return Optional.empty();
+    }
+
+    @Override
+    public void applyToAll(Consumer<Multihash> processor) {
+        target.applyToAll(processor);
+    }
+
+    @Override
+    public boolean contains(Multihash h) {
+        return target.contains(h);
+    }
+
+    @Override
+    public boolean delete(Multihash h) {
+        return target.delete(h);
+    }
+
+    @Override
+    public void addPutListener(Consumer<Multihash> listener) {
+        target.addPutListener(listener);
+    }
+
+    @Override
+    public Set<Multihash> retainOnly(Set<Multihash> pins) {
+        return target.retainOnly(pins);
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash key) {
+        return target.get(key);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
+        return target.getRaw(key);
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getRawMany(List<Multihash> keys) {
+        return target.getRawMany(keys);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+        return target.getLinks(root);
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+        return target.getSize(block);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return target.put(owner, writer, signatures, blocks);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return target.putRaw(owner, writer, signatures, blocks);
+    }
+
+    @Override
+    public CompletableFuture<Multihash> id() {
+        return target.id();
+    }
+
+    @Override
+    public String toString() {
+        return "RefCountingStorage(" + target + ", " + count() + " referenced blocks)";
+    }
+}
@@ -0,0 +1,395 @@
+package peergos.server.storage;
+
+import peergos.server.util.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multiaddr.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** Spreads blocks over several local stores, typically one per disk, so capacity and IOPS scale with the number of
+ *  disks.
+ *
+ *  Each block lives on the shard with the highest rendezvous hash of its digest and the shard's id, so adding a
+ *  shard only moves the blocks which now belong on it, and the order shards are listed in doesn't matter. A shard's id
+ *  is kept in a file in its directory, so it survives the directory being renamed or remounted. After adding a shard, a background pass moves misplaced
+ *  blocks to their new shard. Until it has finished, a block which isn't on its shard is looked for on the others.
+ *  Enumeration and retainOnly run on every shard in parallel.
+ */
+public class ShardedStorage implements DeletableContentAddressedStorage, BlockRegionReader {
+    private static final Logger LOG = Logging.LOG();
+    public static final String SHARD_ID_FILENAME = "shard.id";
+
+    private volatile List<DeletableContentAddressedStorage> shards;
+    // the hash of each shard's id, which is added before the shard is published in shards
+    private final Map<DeletableContentAddressedStorage, Long> shardKeys = new ConcurrentHashMap<>();
+    private final List<Consumer<Multihash>> putListeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService rebalancer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Shard rebalancer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     *
+     * @param shardsById each shard by its stable id, the first of which handles pinning
+     */
+    public ShardedStorage(Map<String, DeletableContentAddressedStorage> shardsById) {
+        if (shardsById.isEmpty())
+            throw new IllegalStateException("Need at least one shard!");
+        shardsById.forEach((id, shard) -> shardKeys.put(shard, shardKey(id)));
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shardsById.values()));
+    }
+
+    /**
+     * Read the id of the shard stored in dir, creating a random one if it doesn't have one yet
+     */
+    public static String loadShardId(Path dir) {
+        Path idFile = dir.resolve(SHARD_ID_FILENAME);
+        try {
+            if (idFile.toFile().exists())
+                return new String(Files.readAllBytes(idFile), StandardCharsets.UTF_8).trim();
+            byte[] random = new byte[16];
+            new SecureRandom().nextBytes(random);
+            String id = ArrayOps.bytesToHex(random);
+            Path tmp = dir.resolve(SHARD_ID_FILENAME + ".tmp");
+            Files.write(tmp, id.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, idFile, StandardCopyOption.ATOMIC_MOVE);
+            return id;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    public int shardCount() {
+        return shards.size();
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    private static long toLong(byte[] digest) {
+        long res = 0;
+        for (int i = 0; i < Math.min(8, digest.length); i++)
+            res = (res << 8) | (digest[i] & 0xff);
+        return res;
+    }
+
+    private static long shardKey(String id) {
+        return toLong(RAMStorage.hash(id.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return the index of the shard a block belongs on, out of current
+     */
+    private int shardIndex(Multihash h, List<DeletableContentAddressedStorage> current) {
+        long key = toLong(h.getHash());
+        int best = 0;
+        long bestScore = Long.MIN_VALUE;
+        for (int i = 0; i < current.size(); i++) {
+            long score = mix(key ^ shardKeys.get(current.get(i)));
+            if (score > bestScore) {
+                bestScore = score;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private DeletableContentAddressedStorage shardFor(Multihash h) {
+        List<DeletableContentAddressedStorage> current = shards;
+        return current.get(shardIndex(h, current));
+    }
+
+    /**
+     * @return the shard which holds the block, which is its own shard unless it hasn't been moved there yet
+     */
+    private Optional<DeletableContentAddressedStorage> holderOf(Multihash h) {
+        DeletableContentAddressedStorage owner = shardFor(h);
+        if (owner.contains(h))
+            return Optional.of(owner);
+        return shards.stream()
+                .filter(s -> s != owner && s.contains(h))
+                .findFirst();
+    }
+
+    /**
+     * Add a shard, and move the blocks which now belong on it in the background
+     */
+    public synchronized CompletableFuture<Long> addShard(String id, DeletableContentAddressedStorage shard) {
+        for (Consumer<Multihash> listener : putListeners)
+            shard.addPutListener(listener);
+        shardKeys.put(shard, shardKey(id));
+        List<DeletableContentAddressedStorage> updated = new ArrayList<>(shards);
+        updated.add(shard);
+        shards = Collections.unmodifiableList(updated);
+        return startRebalance();
+    }
+
+    /**
+     * Move every block which isn't on its shard to its shard, in the background
+     *
+     * @return the number of blocks moved
+     */
+    public CompletableFuture<Long> startRebalance() {
+        return CompletableFuture.supplyAsync(this::rebalance, rebalancer);
+    }
+
+    private long rebalance() {
+        long t0 = System.currentTimeMillis();
+        List<DeletableContentAddressedStorage> current = shards;
+        long moved = 0;
+        for (DeletableContentAddressedStorage source : current) {
+            List<Multihash> misplaced = new ArrayList<>();
+            source.applyToAll(h -> {
+                if (current.get(shardIndex(h, current)) != source)
+                    misplaced.add(h);
+            });
+            for (Multihash h : misplaced) {
+                try {
+                    if (move(h, source, current.get(shardIndex(h, current))))
+                        moved++;
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING, "Couldn't move block " + h + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        LOG.info("Rebalanced " + moved + " blocks over " + current.size() + " shards in " + (System.currentTimeMillis() - t0) + " mS");
+        return moved;
+    }
+
+    private static boolean move(Multihash h, DeletableContentAddressedStorage from, DeletableContentAddressedStorage to) {
+        Optional<byte[]> block = from.getRaw(h).join();
+        if (! block.isPresent())
+            return false;
+        if (! to.contains(h)) {
+            List<byte[]> data = Arrays.asList(block.get());
+            List<byte[]> signatures = Arrays.asList(new byte[0]);
+            Multihash stored = (isRaw(h) ?
+                    to.putRaw(PublicKeyHash.NULL, PublicKeyHash.NULL, signatures, data) :
+                    to.put(PublicKeyHash.NULL, PublicKeyHash.NULL, signatures, data)).join().get(0);
+            // a store can only hold a block under the hash it computes for it
+            if (! stored.equals(h)) {
+                to.delete(stored);
+                return false;
+            }
+        }
+        return from.delete(h);
+    }
+
+    private static boolean isRaw(Multihash h) {
+        return h instanceof Cid && ((Cid) h).codec == Cid.Codec.Raw;
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
+        DeletableContentAddressedStorage owner = shardFor(key);
+        return owner.getRaw(key).thenCompose(res -> {
+            if (res.isPresent())
+                return CompletableFuture.completedFuture(res);
+            return holderOf(key)
+                    .map(s -> s.getRaw(key))
+                    .orElse(CompletableFuture.completedFuture(Optional.empty()));
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash key) {
+        if (isRaw(key))
+            throw new IllegalStateException("Need to call getRaw if cid is not cbor!");
+        return getRaw(key).thenApply(opt -> opt.map(CborObject::fromByteArray));
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getRawMany(List<Multihash> hashes) {
+        List<DeletableContentAddressedStorage> current = shards;
+        Map<Integer, List<Integer>> byShard = new HashMap<>();
+        for (int i = 0; i < hashes.size(); i++)
+            byShard.computeIfAbsent(shardIndex(hashes.get(i), current), s -> new ArrayList<>()).add(i);
+        List<Optional<byte[]>> res = new ArrayList<>(Collections.nCopies(hashes.size(), Optional.empty()));
+        List<CompletableFuture<Boolean>> parts = byShard.entrySet().stream()
+                .map(e -> current.get(e.getKey())
+                        .getRawMany(e.getValue().stream().map(hashes::get).collect(Collectors.toList()))
+                        .thenCompose(blocks -> {
+                            List<CompletableFuture<Boolean>> done = new ArrayList<>();
+                            for (int j = 0; j < blocks.size(); j++) {
+                                int index = e.getValue().get(j);
+                                if (blocks.get(j).isPresent()) {
+                                    synchronized (res) {
+                                        res.set(index, blocks.get(j));
+                                    }
+                                    continue;
+                                }
+                                done.add(getRaw(hashes.get(index)).thenApply(block -> {
+                                    synchronized (res) {
+                                        res.set(index, block);
+                                    }
+                                    return true;
+                                }));
+                            }
+                            return Futures.combineAll(done).thenApply(x -> true);
+                        }))
+                .collect(Collectors.toList());
+        return Futures.combineAll(parts).thenApply(x -> {
+            synchronized (res) {
+                return new ArrayList<>(res);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+        if (isRaw(root))
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        return get(root).thenApply(opt -> opt
+                .map(CborObject::links)
+                .orElse(Collections.emptyList()));
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+        return shardFor(block).getSize(block).thenCompose(res -> {
+            if (res.isPresent())
+                return CompletableFuture.completedFuture(res);
+            return holderOf(block)
+                    .map(s -> s.getSize(block))
+                    .orElse(CompletableFuture.completedFuture(Optional.empty()));
+        });
+    }
+
+    @Override
+    public Optional<BlockRegion> openBlock(Multihash h) throws IOException {
+        Optional<DeletableContentAddressedStorage> holder = holderOf(h);
+        if (! holder.isPresent() || ! (holder.get() instanceof BlockRegionReader))
+            return Optional.empty();
+        return ((BlockRegionReader) holder.get()).openBlock(h);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return put(owner, writer, signatures, blocks, false);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return put(owner, writer, signatures, blocks, true);
+    }
+
+    /**
+     * Split the blocks by shard and write each shard's blocks as one batch, in parallel
+     */
+    private CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                   PublicKeyHash writer,
+                                                   List<byte[]> signatures,
+                                                   List<byte[]> blocks,
+                                                   boolean isRaw) {
+        List<DeletableContentAddressedStorage> current = shards;
+        if (current.size() == 1)
+            return isRaw ?
+                    current.get(0).putRaw(owner, writer, signatures, blocks) :
+                    current.get(0).put(owner, writer, signatures, blocks);
+        List<Cid> cids = (blocks.size() > 1 ? blocks.parallelStream() : blocks.stream())
+                .map(b -> RAMStorage.hashToCid(b, isRaw))
+                .collect(Collectors.toList());
+        Map<Integer, List<Integer>> byShard = new HashMap<>();
+        for (int i = 0; i < blocks.size(); i++)
+            byShard.computeIfAbsent(shardIndex(cids.get(i), current), s -> new ArrayList<>()).add(i);
+        Multihash[] res = new Multihash[blocks.size()];
+        List<CompletableFuture<Boolean>> parts = byShard.entrySet().stream()
+                .map(e -> {
+                    List<byte[]> shardSignatures = e.getValue().stream().map(signatures::get).collect(Collectors.toList());
+                    List<byte[]> shardBlocks = e.getValue().stream().map(blocks::get).collect(Collectors.toList());
+                    DeletableContentAddressedStorage shard = current.get(e.getKey());
+                    return (isRaw ?
+                            shard.putRaw(owner, writer, shardSignatures, shardBlocks) :
+                            shard.put(owner, writer, shardSignatures, shardBlocks)).thenApply(hashes -> {
+                        synchronized (res) {
+                            for (int j = 0; j < hashes.size(); j++)
+                                res[e.getValue().get(j)] = hashes.get(j);
+                        }
+                        return true;
+                    });
+                }).collect(Collectors.toList());
+        return Futures.combineAll(parts).thenApply(x -> {
+            synchronized (res) {
+                return Arrays.asList(res);
+            }
+        });
+    }
+
+    @Override
+    public void applyToAll(Consumer<Multihash> processor) {
+        shards.parallelStream().forEach(shard -> shard.applyToAll(h -> {
+            synchronized (processor) {
+                processor.accept(h);
+            }
+        }));
+    }
+
+    @Override
+    public boolean contains(Multihash h) {
+        return holderOf(h).isPresent();
+    }
+
+    @Override
+    public boolean delete(Multihash h) {
+        boolean deleted = false;
+        for (DeletableContentAddressedStorage shard : shards)
+            deleted |= shard.delete(h);
+        return deleted;
+    }
+
+    @Override
+    public synchronized void addPutListener(Consumer<Multihash> listener) {
+        putListeners.add(listener);
+        for (DeletableContentAddressedStorage shard : shards)
+            shard.addPutListener(listener);
+    }
+
+    @Override
+    public Set<Multihash> retainOnly(Set<Multihash> pins) {
+        return shards.parallelStream()
+                .flatMap(shard -> shard.retainOnly(pins).stream())
+                .collect(Collectors.toSet());
+    }
+
+    @Override
+    public CompletableFuture<Multihash> id() {
+        return shards.get(0).id();
+    }
+
+    @Override
+    public CompletableFuture<List<MultiAddress>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return shards.get(0).pinUpdate(owner, existing, updated);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h) {
+        return shards.get(0).recursivePin(owner, h);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash h) {
+        return shards.get(0).recursiveUnpin(owner, h);
+    }
+
+    @Override
+    public String toString() {
+        return "ShardedStorage" + shards;
+    }
+}
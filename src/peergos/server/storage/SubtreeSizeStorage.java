@@ -0,0 +1,217 @@
+package peergos.server.storage;
+
+import peergos.server.util.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multiaddr.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** Memoizes the recursive size of every subtree, in memory and in an append only log file, so each block's
+ *  recursive size is only computed once across restarts.
+ *
+ *  The recursive size of a block never changes, because its links are part of its hash. A size is only recorded if
+ *  every block in the subtree was found, so a partially present tree is recomputed next time rather than being
+ *  permanently undercounted. Raw blocks have no links, so their size is never recorded. Concurrent requests for the
+ *  same subtree share a single computation. Each log record is [short hash length][hash][long size].
+ */
+public class SubtreeSizeStorage implements ContentAddressedStorage {
+    private static final Logger LOG = Logging.LOG();
+
+    private final ContentAddressedStorage target;
+    private final Path logFile;
+    private final Map<Multihash, Long> sizes = new EfficientHashMap<>();
+    private final Map<Multihash, CompletableFuture<Pair<Long, Boolean>>> inFlight = new HashMap<>();
+    private DataOutputStream log;
+    private long computed, memoHits;
+
+    public SubtreeSizeStorage(ContentAddressedStorage target, Path logFile) {
+        this.target = target;
+        this.logFile = logFile;
+        try {
+            if (logFile.toFile().exists())
+                replay();
+            else if (logFile.getParent() != null)
+                Files.createDirectories(logFile.getParent());
+            log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile.toFile(), true)));
+            LOG.info("Loaded " + sizes.size() + " subtree sizes from " + logFile);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private void replay() throws IOException {
+        long validLength = 0;
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile.toFile()), 1024 * 1024))) {
+            while (true) {
+                int high = din.read();
+                if (high < 0)
+                    break;
+                byte[] rawHash = new byte[(high << 8) | din.readUnsignedByte()];
+                din.readFully(rawHash);
+                long size = din.readLong();
+                sizes.put(Cid.cast(rawHash), size);
+                validLength += 2 + rawHash.length + 8;
+            }
+        } catch (EOFException e) {
+            LOG.warning("Truncating partially written subtree size record in " + logFile + " at offset " + validLength);
+            try (RandomAccessFile raf = new RandomAccessFile(logFile.toFile(), "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+    }
+
+    private static boolean isRaw(Multihash h) {
+        return h instanceof Cid && ((Cid) h).codec == Cid.Codec.Raw;
+    }
+
+    private synchronized void record(Multihash h, long size) {
+        if (sizes.put(h, size) != null)
+            return;
+        try {
+            byte[] rawHash = h.toBytes();
+            log.writeShort(rawHash.length);
+            log.write(rawHash);
+            log.writeLong(size);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private synchronized void flush() {
+        try {
+            log.flush();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
+
+    /**
+     *
+     * @return the recursive size of the subtree, and whether every block in it was present
+     */
+    private CompletableFuture<Pair<Long, Boolean>> sizeOf(Multihash block) {
+        if (isRaw(block))
+            return target.getSize(block).thenApply(size -> new Pair<>((long) size.orElse(0), size.isPresent()));
+        CompletableFuture<Pair<Long, Boolean>> result;
+        synchronized (this) {
+            Long memo = sizes.get(block);
+            if (memo != null) {
+                memoHits++;
+                return CompletableFuture.completedFuture(new Pair<>(memo, true));
+            }
+            CompletableFuture<Pair<Long, Boolean>> existing = inFlight.get(block);
+            if (existing != null)
+                return existing;
+            result = new CompletableFuture<>();
+            inFlight.put(block, result);
+            computed++;
+        }
+        target.getSize(block).thenCompose(size -> {
+            if (! size.isPresent())
+                return CompletableFuture.completedFuture(new Pair<>(0L, false));
+            return target.getLinks(block).thenCompose(links -> {
+                // start every subtree before waiting on any of them
+                List<CompletableFuture<Pair<Long, Boolean>>> subtrees = links.stream()
+                        .map(this::sizeOf)
+                        .collect(Collectors.toList());
+                return Futures.reduceAll(subtrees,
+                        new Pair<>((long) size.get(), true),
+                        (acc, sub) -> sub.thenApply(s -> new Pair<>(acc.left + s.left, acc.right && s.right)),
+                        (a, b) -> new Pair<>(a.left + b.left, a.right && b.right));
+            });
+        }).whenComplete((res, err) -> {
+            if (err == null && res.right)
+                record(block, res.left);
+            synchronized (this) {
+                inFlight.remove(block);
+            }
+            if (err != null)
+                result.completeExceptionally(err);
+            else
+                result.complete(res);
+        });
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<Long> getRecursiveBlockSize(Multihash block) {
+        return sizeOf(block).thenApply(res -> {
+            flush();
+            return res.left;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash key) {
+        return target.get(key);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
+        return target.getRaw(key);
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getRawMany(List<Multihash> keys) {
+        return target.getRawMany(keys);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+        return target.getLinks(root);
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+        return target.getSize(block);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return target.put(owner, writer, signatures, blocks);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return target.putRaw(owner, writer, signatures, blocks);
+    }
+
+    @Override
+    public CompletableFuture<Multihash> id() {
+        return target.id();
+    }
+
+    @Override
+    public CompletableFuture<List<MultiAddress>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return target.pinUpdate(owner, existing, updated);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h) {
+        return target.recursivePin(owner, h);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash h) {
+        return target.recursiveUnpin(owner, h);
+    }
+
+    public synchronized int size() {
+        return sizes.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SubtreeSizeStorage(" + sizes.size() + " subtrees, computed: " + computed + ", memo hits: " + memoHits + ")";
+    }
+}
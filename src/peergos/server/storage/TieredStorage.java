@@ -0,0 +1,152 @@
+package peergos.server.storage;
+
+import peergos.server.util.Logging;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multiaddr.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/** The local disk tier of a read through storage hierarchy: RAM, then local disk, then the authoritative backend.
+ *
+ *  The RAM tier is a CachingStorage in front of this, which also coalesces concurrent reads and remembers absent
+ *  blocks, so every block read from the disk tier is offered to it. Every block read from the backend is copied to
+ *  the disk tier, which is bounded in bytes and decides what to keep with a W-TinyLFU policy, so hot blocks are
+ *  promoted and blocks which are rarely read are dropped. The tiers are inclusive, so demoting a block from RAM is
+ *  just dropping it. Blocks are immutable, so cached copies never need to be invalidated. Writes go straight to the
+ *  backend.
+ */
+public class TieredStorage implements ContentAddressedStorage {
+    private static final Logger LOG = Logging.LOG();
+
+    private final ContentAddressedStorage backend;
+    private final DeletableContentAddressedStorage disk;
+    // block sizes of what is on disk, deleting blocks from disk when they are evicted
+    private final TinyLfuCache<Multihash, Integer> onDisk;
+    // all disk tier writes and deletes are done in order on a single thread, off the read path
+    private final ExecutorService diskWriter = Executors.newSingleThreadExecutor(r -> {
+        Thread writer = new Thread(r, "Disk tier writer");
+        writer.setDaemon(true);
+        return writer;
+    });
+
+    public TieredStorage(ContentAddressedStorage backend, DeletableContentAddressedStorage disk, long maxDiskBytes) {
+        this.backend = backend;
+        this.disk = disk;
+        this.onDisk = new TinyLfuCache<>(maxDiskBytes, (int) Math.min(1 << 20, maxDiskBytes / (16 * 1024)), v -> v,
+                (h, size) -> diskWriter.submit(() -> disk.delete(h)));
+        diskWriter.submit(() -> {
+            // pick up what is already on disk from a previous run
+            disk.applyToAll(h -> disk.getSize(h).join().ifPresent(size -> onDisk.put(h, size)));
+            LOG.info("Disk tier has " + onDisk.size() + " blocks, " + onDisk.weight() + " bytes");
+        });
+    }
+
+    public TinyLfuCache<Multihash, Integer> diskCache() {
+        return onDisk;
+    }
+
+    private static boolean isRaw(Multihash h) {
+        return h instanceof Cid && ((Cid) h).codec == Cid.Codec.Raw;
+    }
+
+    private void cacheOnDisk(Multihash h, byte[] value) {
+        diskWriter.submit(() -> {
+            try {
+                List<Multihash> stored = isRaw(h) ?
+                        disk.putRaw(PublicKeyHash.NULL, PublicKeyHash.NULL, Arrays.asList(new byte[0]), Arrays.asList(value)).join() :
+                        disk.put(PublicKeyHash.NULL, PublicKeyHash.NULL, Arrays.asList(new byte[0]), Arrays.asList(value)).join();
+                // the disk tier can only store blocks under the hash it computes
+                if (! stored.get(0).equals(h)) {
+                    disk.delete(stored.get(0));
+                    return;
+                }
+                onDisk.put(h, value.length);
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, t.getMessage(), t);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
+        if (! onDisk.get(key).isPresent())
+            return getFromBackend(key);
+        // may have been evicted since we checked
+        return disk.getRaw(key).thenCompose(inDisk -> inDisk.isPresent() ?
+                CompletableFuture.completedFuture(inDisk) :
+                getFromBackend(key));
+    }
+
+    private CompletableFuture<Optional<byte[]>> getFromBackend(Multihash key) {
+        return backend.getRaw(key).thenApply(rawOpt -> {
+            rawOpt.ifPresent(raw -> cacheOnDisk(key, raw));
+            return rawOpt;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash key) {
+        if (isRaw(key))
+            throw new IllegalStateException("Need to call getRaw if cid is not cbor!");
+        return getRaw(key).thenApply(opt -> opt.map(CborObject::fromByteArray));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+        if (isRaw(root))
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        return get(root).thenApply(opt -> opt
+                .map(CborObject::links)
+                .orElse(Collections.emptyList()));
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+        Optional<Integer> size = onDisk.get(block);
+        if (size.isPresent())
+            return CompletableFuture.completedFuture(size);
+        return backend.getSize(block);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return backend.put(owner, writer, signatures, blocks);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return backend.putRaw(owner, writer, signatures, blocks);
+    }
+
+    @Override
+    public CompletableFuture<Multihash> id() {
+        return backend.id();
+    }
+
+    @Override
+    public CompletableFuture<List<MultiAddress>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return backend.pinUpdate(owner, existing, updated);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h) {
+        return backend.recursivePin(owner, h);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash h) {
+        return backend.recursiveUnpin(owner, h);
+    }
+
+    @Override
+    public String toString() {
+        return "TieredStorage(disk: " + onDisk + ")";
+    }
+}
@@ -0,0 +1,72 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import org.junit.runner.*;
+import org.junit.runners.*;
+import peergos.server.storage.*;
+import peergos.shared.crypto.hash.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/** Runs each test against every local block store we can sit another storage layer on top of */
+@RunWith(Parameterized.class)
+public abstract class BlockStoreTests {
+
+    protected static final PublicKeyHash owner = PublicKeyHash.NULL;
+    protected final Random random = new Random(7);
+    private final String type;
+    private final List<PackFileStorage> open = new ArrayList<>();
+
+    public BlockStoreTests(String type) {
+        this.type = type;
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][] {
+                {"pack"},
+                {"file"}
+        });
+    }
+
+    protected DeletableContentAddressedStorage createStore(Path dir) {
+        switch (type) {
+            case "pack":
+                PackFileStorage pack = new PackFileStorage(dir);
+                open.add(pack);
+                return pack;
+            case "file":
+                return new FileContentAddressedStorage(dir);
+            default:
+                throw new IllegalStateException("Unknown block store type: " + type);
+        }
+    }
+
+    protected DeletableContentAddressedStorage createStore() throws IOException {
+        return createStore(tempDir());
+    }
+
+    @After
+    public void closeStores() {
+        open.forEach(PackFileStorage::close);
+        open.clear();
+    }
+
+    public static Path tempDir() throws IOException {
+        Path dir = Files.createTempDirectory("peergos-blocks");
+        dir.toFile().deleteOnExit();
+        return dir;
+    }
+
+    public static byte[] randomBlock(Random r, int len) {
+        byte[] res = new byte[len];
+        r.nextBytes(res);
+        return res;
+    }
+
+    protected byte[] randomBlock(int len) {
+        return randomBlock(random, len);
+    }
+}
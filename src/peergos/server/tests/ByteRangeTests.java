@@ -0,0 +1,85 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.net.*;
+
+import java.util.*;
+
+public class ByteRangeTests {
+
+    private static void assertRange(String header, long total, long start, long end) {
+        Optional<ByteRange> range = ByteRange.parse(header, total);
+        Assert.assertTrue(header, range.isPresent());
+        Assert.assertEquals(header, start, range.get().start);
+        Assert.assertEquals(header, end, range.get().end);
+    }
+
+    private static void assertUnsatisfiable(String header, long total) {
+        Optional<ByteRange> range = ByteRange.parse(header, total);
+        Assert.assertTrue(header, range.isPresent());
+        Assert.assertFalse(header, range.get().isSatisfiable());
+    }
+
+    private static void assertWholeResource(String header, long total) {
+        Assert.assertFalse(header, ByteRange.parse(header, total).isPresent());
+    }
+
+    @Test
+    public void closedRanges() {
+        assertRange("bytes=0-99", 1000, 0, 100);
+        assertRange("bytes=999-999", 1000, 999, 1000);
+        assertRange(" bytes= 10 - 19 ", 1000, 10, 20);
+        // an end past the resource is clamped to it
+        assertRange("bytes=500-5000", 1000, 500, 1000);
+        Assert.assertEquals("bytes 100-199/1000", ByteRange.parse("bytes=100-199", 1000).get().contentRange(1000));
+        Assert.assertEquals(100, ByteRange.parse("bytes=100-199", 1000).get().length());
+    }
+
+    @Test
+    public void suffixRanges() {
+        assertRange("bytes=-100", 1000, 900, 1000);
+        assertRange("bytes=-1000", 1000, 0, 1000);
+        assertRange("bytes=-5000", 1000, 0, 1000);
+        assertUnsatisfiable("bytes=-0", 1000);
+        assertUnsatisfiable("bytes=-10", 0);
+    }
+
+    @Test
+    public void openEndedRanges() {
+        assertRange("bytes=0-", 1000, 0, 1000);
+        assertRange("bytes=900-", 1000, 900, 1000);
+        assertRange("bytes=999-", 1000, 999, 1000);
+    }
+
+    @Test
+    public void startPastTheEnd() {
+        assertUnsatisfiable("bytes=1000-", 1000);
+        assertUnsatisfiable("bytes=1000-1099", 1000);
+        assertUnsatisfiable("bytes=5000-6000", 1000);
+        assertUnsatisfiable("bytes=0-", 0);
+    }
+
+    @Test
+    public void multipleRangesAreIgnored() {
+        assertWholeResource("bytes=0-99,200-299", 1000);
+        assertWholeResource("bytes=0-99, -100", 1000);
+        assertWholeResource("bytes=0-99,", 1000);
+    }
+
+    @Test
+    public void malformedRangesAreIgnored() {
+        assertWholeResource("", 1000);
+        assertWholeResource("bytes", 1000);
+        assertWholeResource("bytes=", 1000);
+        assertWholeResource("bytes=-", 1000);
+        assertWholeResource("bytes=100", 1000);
+        assertWholeResource("bytes=abc-def", 1000);
+        assertWholeResource("bytes=10-5", 1000);
+        assertWholeResource("bytes=--5", 1000);
+        assertWholeResource("bytes=-5-", 1000);
+        assertWholeResource("bytes=1.5-2", 1000);
+        assertWholeResource("bytes=99999999999999999999-", 1000);
+        assertWholeResource("items=0-99", 1000);
+        assertWholeResource("0-99", 1000);
+    }
+}
@@ -1,6 +1,7 @@
 package peergos.server.tests;
 import java.util.logging.*;
 
+import peergos.server.net.*;
 import peergos.server.util.Args;
 import peergos.server.util.Logging;
 
@@ -33,7 +34,7 @@ public class CorenodeTests {
     private final NetworkAccess network;
 
     public CorenodeTests(Args args) throws Exception {
-        this.network = NetworkAccess.buildJava(new URL("http://localhost:" + args.getInt("port"))).get();
+        this.network = NetworkAccess.buildJava(new PooledJavaPoster(new URL("http://localhost:" + args.getInt("port")))).get();
     }
 
     @Parameterized.Parameters(name = "{index}: {0}")
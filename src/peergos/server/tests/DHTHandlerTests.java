@@ -0,0 +1,268 @@
+package peergos.server.tests;
+
+import com.sun.net.httpserver.*;
+import org.junit.*;
+import peergos.server.net.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class DHTHandlerTests {
+
+    private static final Crypto crypto = Crypto.initJava();
+    private final Random random = new Random(24);
+    private HttpServer server;
+
+    @After
+    public void stop() {
+        if (server != null)
+            server.stop(0);
+    }
+
+    private DHTHandler serve(ContentAddressedStorage storage, Optional<BlockRegionReader> localBlocks) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        DHTHandler handler = new DHTHandler(storage, localBlocks, (h, i) -> true);
+        server.createContext("/api/v0/", handler);
+        return handler;
+    }
+
+    private URL start() {
+        server.start();
+        try {
+            return new URL("http://localhost:" + server.getAddress().getPort() + "/");
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private URL start(RAMStorage storage, boolean withBinaryApi, AtomicInteger binaryRequests) throws IOException {
+        DHTHandler handler = serve(storage, Optional.empty());
+        server.createContext(DHTHandler.BINARY_API_PREFIX, exchange -> {
+            binaryRequests.incrementAndGet();
+            if (withBinaryApi)
+                handler.handle(exchange);
+            else {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+            }
+        });
+        return start();
+    }
+
+    /**
+     * Put a writer key on the server, and then a cbor block and a raw block signed by it
+     */
+    private void putAndGet(RAMStorage storage, ContentAddressedStorage client) throws Exception {
+        SigningKeyPair writer = SigningKeyPair.random(crypto.random, crypto.signer);
+        byte[] keyBlock = writer.publicSigningKey.toCbor().toByteArray();
+        PublicKeyHash writerHash = ContentAddressedStorage.hashKey(writer.publicSigningKey);
+        storage.put(writerHash, writerHash, writer.secretSigningKey.signatureOnly(keyBlock), keyBlock).get();
+
+        byte[] cbor = new CborObject.CborString("block " + random.nextInt()).toByteArray();
+        Multihash cborHash = client.put(writerHash, writerHash, writer.secretSigningKey.signatureOnly(cbor), cbor).get();
+        List<byte[]> raw = Arrays.asList(BlockStoreTests.randomBlock(random, 1000), BlockStoreTests.randomBlock(random, 5000));
+        List<Multihash> rawHashes = client.putRaw(writerHash, writerHash, raw.stream()
+                .map(writer.secretSigningKey::signatureOnly)
+                .collect(Collectors.toList()), raw).get();
+
+        Assert.assertArrayEquals(cbor, storage.getRaw(cborHash).get().get());
+        Assert.assertArrayEquals(cbor, client.getRaw(cborHash).get().get());
+        for (int i = 0; i < raw.size(); i++)
+            Assert.assertArrayEquals(raw.get(i), storage.getRaw(rawHashes.get(i)).get().get());
+
+        // a bad signature is rejected, and nothing from the batch is written
+        byte[] unsigned = BlockStoreTests.randomBlock(random, 100);
+        try {
+            client.putRaw(writerHash, writerHash, Arrays.asList(writer.secretSigningKey.signatureOnly(raw.get(0)),
+                    writer.secretSigningKey.signatureOnly(raw.get(0))), Arrays.asList(raw.get(0), unsigned)).get();
+            Assert.fail("Put with an invalid signature succeeded");
+        } catch (ExecutionException expected) {}
+        Assert.assertFalse(storage.getRaw(RAMStorage.hashToCid(unsigned, true)).get().isPresent());
+    }
+
+    @Test
+    public void binaryPutRoundTrip() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        AtomicInteger binaryRequests = new AtomicInteger();
+        URL url = start(storage, true, binaryRequests);
+        putAndGet(storage, new ContentAddressedStorage.HTTP(new PooledJavaPoster(url), true));
+        Assert.assertEquals(3, binaryRequests.get());
+    }
+
+    @Test
+    public void putFallsBackToMultipart() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        AtomicInteger binaryRequests = new AtomicInteger();
+        URL url = start(storage, false, binaryRequests);
+        putAndGet(storage, new ContentAddressedStorage.HTTP(new PooledJavaPoster(url), true));
+        // the missing binary api is only tried once
+        Assert.assertEquals(1, binaryRequests.get());
+    }
+
+    private static HttpURLConnection getBlock(URL base, Multihash hash, String... headers) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(base, "api/v0/block/get?arg=" + hash).openConnection();
+        for (int i = 0; i < headers.length; i += 2)
+            conn.setRequestProperty(headers[i], headers[i + 1]);
+        return conn;
+    }
+
+    private static byte[] body(HttpURLConnection conn) throws IOException {
+        try (InputStream in = conn.getInputStream()) {
+            return Serialize.readFully(in);
+        }
+    }
+
+    /**
+     * Check the cache and range handling of block/get, for a block streamed from a local file or read from memory
+     */
+    private static void checkBlockGet(URL base, Multihash hash, byte[] block) throws IOException {
+        String etag = "\"" + hash + "\"";
+        HttpURLConnection whole = getBlock(base, hash);
+        Assert.assertEquals(200, whole.getResponseCode());
+        Assert.assertEquals(etag, whole.getHeaderField("ETag"));
+        Assert.assertTrue(whole.getHeaderField("Cache-Control").contains("immutable"));
+        Assert.assertEquals("bytes", whole.getHeaderField("Accept-Ranges"));
+        Assert.assertArrayEquals(block, body(whole));
+
+        for (String condition : Arrays.asList(etag, "W/" + etag, "\"other\", " + etag)) {
+            HttpURLConnection notModified = getBlock(base, hash, "If-None-Match", condition);
+            Assert.assertEquals(304, notModified.getResponseCode());
+            Assert.assertEquals(etag, notModified.getHeaderField("ETag"));
+            Assert.assertTrue(notModified.getHeaderField("Cache-Control").contains("immutable"));
+        }
+        Assert.assertEquals(200, getBlock(base, hash, "If-None-Match", "\"other\"").getResponseCode());
+        Assert.assertEquals(200, getBlock(base, hash, "If-None-Match", "*").getResponseCode());
+
+        HttpURLConnection partial = getBlock(base, hash, "Range", "bytes=100-199");
+        Assert.assertEquals(206, partial.getResponseCode());
+        Assert.assertEquals("bytes 100-199/" + block.length, partial.getHeaderField("Content-Range"));
+        Assert.assertEquals(etag, partial.getHeaderField("ETag"));
+        Assert.assertArrayEquals(Arrays.copyOfRange(block, 100, 200), body(partial));
+
+        HttpURLConnection suffix = getBlock(base, hash, "Range", "bytes=-10", "If-Range", etag);
+        Assert.assertEquals(206, suffix.getResponseCode());
+        Assert.assertEquals("bytes " + (block.length - 10) + "-" + (block.length - 1) + "/" + block.length,
+                suffix.getHeaderField("Content-Range"));
+        Assert.assertArrayEquals(Arrays.copyOfRange(block, block.length - 10, block.length), body(suffix));
+
+        HttpURLConnection unsatisfiable = getBlock(base, hash, "Range", "bytes=" + block.length + "-");
+        Assert.assertEquals(416, unsatisfiable.getResponseCode());
+        Assert.assertEquals("bytes */" + block.length, unsatisfiable.getHeaderField("Content-Range"));
+
+        // a range for a different version of the resource gets the whole block
+        HttpURLConnection stale = getBlock(base, hash, "Range", "bytes=0-9", "If-Range", "\"other\"");
+        Assert.assertEquals(200, stale.getResponseCode());
+        Assert.assertNull(stale.getHeaderField("Content-Range"));
+        Assert.assertArrayEquals(block, body(stale));
+    }
+
+    @Test
+    public void blockGetCacheHeadersAndRanges() throws Exception {
+        byte[] block = BlockStoreTests.randomBlock(random, 1000);
+        PublicKeyHash owner = PublicKeyHash.NULL;
+
+        FileContentAddressedStorage files = new FileContentAddressedStorage(BlockStoreTests.tempDir());
+        Multihash hash = files.putRaw(owner, owner, Arrays.asList(new byte[0]), Arrays.asList(block)).get().get(0);
+        serve(files, Optional.of(files));
+        checkBlockGet(start(), hash, block);
+        server.stop(0);
+
+        RAMStorage ram = new RAMStorage();
+        ram.putRaw(owner, owner, Arrays.asList(new byte[0]), Arrays.asList(block)).get();
+        serve(ram, Optional.empty());
+        checkBlockGet(start(), hash, block);
+    }
+
+    private static byte[] frame(byte[] signature, byte[] block) {
+        byte[] cbor = new CborObject.CborList(Arrays.asList(
+                new CborObject.CborByteArray(signature),
+                new CborObject.CborByteArray(block))).toByteArray();
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        try {
+            new DataOutputStream(res).writeInt(cbor.length);
+            res.write(cbor);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        return res.toByteArray();
+    }
+
+    private static List<byte[]> parse(InputStream in) throws IOException {
+        List<byte[]> blocks = new ArrayList<>();
+        DHTHandler.parseCborBlocks(in, (signature, block) -> blocks.add(block));
+        return blocks;
+    }
+
+    @Test
+    public void binaryPutFrames() throws Exception {
+        byte[] a = BlockStoreTests.randomBlock(random, 10), b = BlockStoreTests.randomBlock(random, 1000);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(frame(new byte[64], a));
+        body.write(frame(new byte[64], b));
+        List<byte[]> parsed = parse(new ByteArrayInputStream(body.toByteArray()));
+        Assert.assertEquals(2, parsed.size());
+        Assert.assertArrayEquals(a, parsed.get(0));
+        Assert.assertArrayEquals(b, parsed.get(1));
+        Assert.assertTrue(parse(new ByteArrayInputStream(new byte[0])).isEmpty());
+
+        byte[] truncated = Arrays.copyOf(body.toByteArray(), body.size() - 1);
+        try {
+            parse(new ByteArrayInputStream(truncated));
+            Assert.fail("Parsed a truncated frame");
+        } catch (EOFException expected) {}
+
+        byte[] notAPair = new CborObject.CborList(Arrays.asList(new CborObject.CborByteArray(a))).toByteArray();
+        ByteArrayOutputStream invalid = new ByteArrayOutputStream();
+        new DataOutputStream(invalid).writeInt(notAPair.length);
+        invalid.write(notAPair);
+        try {
+            parse(new ByteArrayInputStream(invalid.toByteArray()));
+            Assert.fail("Parsed an invalid frame");
+        } catch (IllegalStateException expected) {}
+    }
+
+    @Test
+    public void binaryPutSizeLimits() throws Exception {
+        // a frame over the 2 MiB block limit is rejected from its length alone
+        ByteArrayOutputStream huge = new ByteArrayOutputStream();
+        new DataOutputStream(huge).writeInt(3 * 1024 * 1024);
+        try {
+            parse(new ByteArrayInputStream(huge.toByteArray()));
+            Assert.fail("Accepted an oversized frame");
+        } catch (IllegalStateException expected) {}
+
+        ByteArrayOutputStream negative = new ByteArrayOutputStream();
+        new DataOutputStream(negative).writeInt(-1);
+        try {
+            parse(new ByteArrayInputStream(negative.toByteArray()));
+            Assert.fail("Accepted a negative frame length");
+        } catch (IllegalStateException expected) {}
+
+        // as is a body over the 64 MiB total, after the frames within it
+        byte[] large = frame(new byte[64], new byte[2 * 1024 * 1024]);
+        int frames = 40;
+        List<byte[]> parsed = new ArrayList<>();
+        try {
+            DHTHandler.parseCborBlocks(new SequenceInputStream(Collections.enumeration(
+                    Collections.nCopies(frames, large).stream()
+                            .map(ByteArrayInputStream::new)
+                            .collect(Collectors.toList()))),
+                    (signature, block) -> parsed.add(block));
+            Assert.fail("Accepted an oversized body");
+        } catch (IllegalStateException expected) {}
+        Assert.assertEquals(31, parsed.size());
+    }
+}
@@ -0,0 +1,83 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class DagSizeDiffTests {
+
+    private static final PublicKeyHash owner = PublicKeyHash.NULL;
+    private final Random random = new Random(13);
+
+    /** Fetches links asynchronously, while recursive sizes still complete synchronously, like a warm size cache */
+    private static class SlowLinksStorage extends RAMStorage {
+        private final ExecutorService fetcher = Executors.newFixedThreadPool(4);
+
+        @Override
+        public CompletableFuture<Pair<Integer, List<Multihash>>> getLinksAndSize(Multihash block) {
+            CompletableFuture<Pair<Integer, List<Multihash>>> res = new CompletableFuture<>();
+            fetcher.submit(() -> {
+                try {
+                    Thread.sleep(5);
+                    res.complete(super.getLinksAndSize(block).join());
+                } catch (Throwable t) {
+                    res.completeExceptionally(t);
+                }
+            });
+            return res;
+        }
+    }
+
+    private Multihash leaf(RAMStorage dht, int size) throws Exception {
+        byte[] block = BlockStoreTests.randomBlock(random, size);
+        return dht.putRaw(owner, owner, Arrays.asList(new byte[0]), Arrays.asList(block)).get().get(0);
+    }
+
+    private static Multihash node(RAMStorage dht, List<Multihash> links) throws Exception {
+        Map<String, CborObject> map = new TreeMap<>();
+        for (int i = 0; i < links.size(); i++)
+            map.put(String.format("%06d", i), new CborObject.CborMerkleLink(links.get(i)));
+        byte[] block = CborObject.CborMap.build(map).toByteArray();
+        return dht.put(owner, owner, Arrays.asList(new byte[0]), Arrays.asList(block)).get().get(0);
+    }
+
+    private static void assertDiff(RAMStorage dht, Multihash original, Multihash updated) throws Exception {
+        long expected = dht.getRecursiveBlockSize(updated).get() - dht.getRecursiveBlockSize(original).get();
+        Assert.assertEquals(expected, (long) dht.getChangeInContainedSize(original, updated).get(60, TimeUnit.SECONDS));
+        Assert.assertEquals(-expected, (long) dht.getChangeInContainedSize(updated, original).get(60, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void wideDiff() throws Exception {
+        SlowLinksStorage dht = new SlowLinksStorage();
+        // changed subtrees are diffed with slow fetches, which fill every slot while the added leaves queue behind them
+        List<Multihash> before = new ArrayList<>(), after = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            before.add(node(dht, Arrays.asList(leaf(dht, 10))));
+            after.add(node(dht, Arrays.asList(leaf(dht, 20))));
+        }
+        for (int i = 0; i < 20_000; i++)
+            after.add(leaf(dht, 1 + i % 50));
+        assertDiff(dht, node(dht, before), node(dht, after));
+    }
+
+    @Test
+    public void sharedAndDuplicateLinks() throws Exception {
+        RAMStorage dht = new RAMStorage();
+        Multihash a = leaf(dht, 100), b = leaf(dht, 200), c = leaf(dht, 300), d = leaf(dht, 400), e = leaf(dht, 500);
+        Multihash shared = node(dht, IntStream.range(0, 10)
+                .mapToObj(i -> a)
+                .collect(Collectors.toList()));
+        Multihash original = node(dht, Arrays.asList(a, a, b, c, shared, shared));
+        Multihash updated = node(dht, Arrays.asList(a, b, b, d, shared, e, node(dht, Arrays.asList(c, c))));
+        assertDiff(dht, original, updated);
+        assertDiff(dht, original, original);
+    }
+}
@@ -0,0 +1,53 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.nio.file.*;
+import java.util.*;
+
+public class FileContentAddressedStorageTests {
+
+    private static final PublicKeyHash owner = PublicKeyHash.NULL;
+    private final Random r = new Random(5);
+
+    @Test
+    public void failedPutIsNotIndexed() throws Exception {
+        Path dir = BlockStoreTests.tempDir();
+        FileContentAddressedStorage store = new FileContentAddressedStorage(dir);
+        byte[] block = BlockStoreTests.randomBlock(r, 100);
+        Multihash cid = RAMStorage.hashToCid(block, true);
+        // a file where the block's top level directory should be makes the put fail
+        Files.write(dir.resolve(cid.toString().substring(0, 1)), new byte[0]);
+
+        try {
+            store.put(Arrays.asList(block), true);
+            Assert.fail("Put should have failed");
+        } catch (RuntimeException expected) {}
+        Assert.assertFalse(store.contains(cid));
+        Assert.assertFalse(store.getSize(cid).get().isPresent());
+        Assert.assertFalse(new FileContentAddressedStorage(dir).contains(cid));
+    }
+
+    @Test
+    public void missingBlocksAreRemovedFromIndexOnStartup() throws Exception {
+        Path dir = BlockStoreTests.tempDir();
+        FileContentAddressedStorage store = new FileContentAddressedStorage(dir);
+        List<Multihash> hashes = store.putRaw(owner, owner, Arrays.asList(new byte[0], new byte[0]),
+                Arrays.asList(BlockStoreTests.randomBlock(r, 100), BlockStoreTests.randomBlock(r, 200))).get();
+
+        // as if we crashed after indexing a block but before renaming it into place
+        String name = hashes.get(0).toString();
+        Path file = dir;
+        for (int i = 0; i < 5; i++)
+            file = file.resolve(name.substring(i, i + 1));
+        Files.delete(file.resolve(name));
+
+        FileContentAddressedStorage reopened = new FileContentAddressedStorage(dir);
+        Assert.assertFalse(reopened.contains(hashes.get(0)));
+        Assert.assertFalse(reopened.getSize(hashes.get(0)).get().isPresent());
+        Assert.assertTrue(reopened.contains(hashes.get(1)));
+    }
+}
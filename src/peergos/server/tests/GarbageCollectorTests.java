@@ -0,0 +1,37 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class GarbageCollectorTests extends BlockStoreTests {
+
+    public GarbageCollectorTests(String type) {
+        super(type);
+    }
+
+    @Test
+    public void collectsUnreachableBlocks() throws Exception {
+        DeletableContentAddressedStorage store = createStore();
+        List<Multihash> leaves = store.putRaw(owner, owner, Arrays.asList(new byte[0], new byte[0]),
+                Arrays.asList(randomBlock(100), randomBlock(200))).get();
+        Map<String, CborObject> links = new TreeMap<>();
+        links.put("child", new CborObject.CborMerkleLink(leaves.get(0)));
+        Multihash root = store.put(owner, owner, Arrays.asList(new byte[0]),
+                Arrays.asList(CborObject.CborMap.build(links).toByteArray())).get().get(0);
+
+        GarbageCollector gc = new GarbageCollector(store, () -> CompletableFuture.completedFuture(Arrays.asList(root)), 60 * 60 * 1000, 1, 0);
+        // recently written blocks are protected until the grace period has passed
+        Multihash recent = store.putRaw(owner, owner, Arrays.asList(new byte[0]), Arrays.asList(randomBlock(300))).get().get(0);
+
+        Assert.assertEquals(1, gc.collect());
+        Assert.assertTrue(store.contains(root));
+        Assert.assertTrue(store.contains(leaves.get(0)));
+        Assert.assertFalse(store.contains(leaves.get(1)));
+        Assert.assertTrue(store.contains(recent));
+    }
+}
@@ -0,0 +1,47 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.metrics.*;
+
+import java.util.*;
+
+public class MetricsTests {
+
+    @Test
+    public void quantilesWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 1 to 100,000 microseconds
+        for (long micros = 1; micros <= 100_000; micros++)
+            histogram.record(micros * 1000);
+        Assert.assertEquals(100_000, histogram.count());
+
+        double[] quantiles = {0.5, 0.9, 0.99, 1.0};
+        long[] values = histogram.quantiles(quantiles);
+        for (int i = 0; i < quantiles.length; i++) {
+            long exact = (long) (quantiles[i] * 100_000);
+            Assert.assertTrue("Quantile " + quantiles[i] + " at least exact value", values[i] >= exact);
+            Assert.assertTrue("Quantile " + quantiles[i] + " within 4%", values[i] <= exact * 1.04);
+        }
+        Assert.assertArrayEquals(new long[4], new LatencyHistogram().quantiles(quantiles));
+    }
+
+    @Test
+    public void prometheusText() {
+        LatencyHistogram histogram = Metrics.histogram("test_request_seconds", "Test requests", "op", "a\"b");
+        // small durations are recorded exactly
+        histogram.record(63_000);
+        Metrics.counter("test_events_total", "Test events").inc(3);
+        Metrics.counter("test_external_total", "Test external count", () -> 7L, "source", "x");
+        Metrics.gauge("test_queue_depth", "Test queue depth", () -> 2L, "queue", "y");
+
+        List<String> lines = Arrays.asList(Metrics.toPrometheusText().split("\n"));
+        Assert.assertTrue(lines.contains("# TYPE test_request_seconds summary"));
+        Assert.assertTrue(lines.contains("test_request_seconds{op=\"a\\\"b\",quantile=\"0.5\"} 6.3E-5"));
+        Assert.assertTrue(lines.contains("test_request_seconds_sum{op=\"a\\\"b\"} 6.3E-5"));
+        Assert.assertTrue(lines.contains("test_request_seconds_count{op=\"a\\\"b\"} 1"));
+        Assert.assertTrue(lines.contains("test_events_total 3"));
+        Assert.assertTrue(lines.contains("test_external_total{source=\"x\"} 7"));
+        Assert.assertTrue(lines.contains("# TYPE test_queue_depth gauge"));
+        Assert.assertTrue(lines.contains("test_queue_depth{queue=\"y\"} 2"));
+    }
+}
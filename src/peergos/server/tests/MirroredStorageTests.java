@@ -0,0 +1,37 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.stream.*;
+
+public class MirroredStorageTests extends BlockStoreTests {
+
+    public MirroredStorageTests(String type) {
+        super(type);
+    }
+
+    @Test
+    public void readsFallBackAndRepair() throws Exception {
+        DeletableContentAddressedStorage a = createStore();
+        DeletableContentAddressedStorage b = createStore();
+        MirroredStorage mirrored = new MirroredStorage(Arrays.asList(a, b), 2);
+        List<byte[]> blocks = IntStream.range(0, 20)
+                .mapToObj(i -> randomBlock(100 + i))
+                .collect(Collectors.toList());
+        List<Multihash> hashes = mirrored.putRaw(owner, owner, Collections.nCopies(blocks.size(), new byte[0]), blocks).get();
+        for (Multihash h : hashes)
+            Assert.assertTrue(a.contains(h) && b.contains(h));
+
+        // reads fall back to the other replica, and the bulk repair fills in what is missing
+        for (Multihash h : hashes.subList(0, 10))
+            a.delete(h);
+        for (int i = 0; i < blocks.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), mirrored.getRaw(hashes.get(i)).get().get());
+        mirrored.startRepair().get();
+        for (Multihash h : hashes)
+            Assert.assertTrue(a.contains(h));
+    }
+}
@@ -4,6 +4,7 @@ import org.junit.*;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import peergos.server.*;
+import peergos.server.net.*;
 import peergos.server.storage.*;
 import peergos.server.util.*;
 import peergos.shared.*;
@@ -100,7 +101,7 @@ public class MultiNodeNetworkTests {
     }
 
     private static NetworkAccess buildApi(Args args) throws Exception {
-        return NetworkAccess.buildJava(new URL("http://localhost:" + args.getInt("port"))).get();
+        return NetworkAccess.buildJava(new PooledJavaPoster(new URL("http://localhost:" + args.getInt("port")))).get();
     }
 
     @Test
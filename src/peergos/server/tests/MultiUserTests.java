@@ -3,6 +3,7 @@ package peergos.server.tests;
 import org.junit.*;
 import org.junit.runner.*;
 import org.junit.runners.*;
+import peergos.server.net.*;
 import peergos.server.storage.ResetableFileInputStream;
 import peergos.server.util.Args;
 import peergos.server.util.PeergosNetworkUtils;
@@ -40,7 +41,7 @@ public class MultiUserTests {
         if (userCount  < 2)
             throw new IllegalStateException();
 
-        this.network = NetworkAccess.buildJava(new URL("http://localhost:" + args.getInt("port"))).get();
+        this.network = NetworkAccess.buildJava(new PooledJavaPoster(new URL("http://localhost:" + args.getInt("port")))).get();
     }
 
     @Parameterized.Parameters(name = "{index}: {0}")
@@ -74,6 +74,21 @@ public class MultipartTests {
         }
     }
 
+    @Test
+    public void sizeLimits() {
+        String boundary = "boundary";
+        byte[] body = ("--boundary\r\nContent-Type: application/octet-stream\r\n\r\n" +
+                "0123456789\r\n--boundary\r\n\r\n\r\n--boundary\r\n\r\n01234\r\n--boundary--\r\n").getBytes();
+        List<byte[]> parts = MultipartReceiver.extractFiles(new ByteArrayInputStream(body), boundary, 10, 15);
+        Assert.assertEquals(Arrays.asList(10, 0, 5), parts.stream().map(p -> p.length).collect(Collectors.toList()));
+
+        for (int[] limits : new int[][] {{9, 100}, {10, 14}})
+            try {
+                MultipartReceiver.extractFiles(new ByteArrayInputStream(body), boundary, limits[0], limits[1]);
+                Assert.fail("Limits not enforced: " + Arrays.toString(limits));
+            } catch (IllegalStateException expected) {}
+    }
+
     private void test(List<byte[]> input) throws IOException {
         Multipart sender = new Multipart("http://localhost:" + port + "/multipart", "UTF-8");
         for (byte[] in : input)
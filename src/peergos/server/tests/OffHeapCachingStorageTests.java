@@ -0,0 +1,131 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class OffHeapCachingStorageTests {
+
+    private static final PublicKeyHash owner = PublicKeyHash.NULL;
+    private final Random random = new Random(7);
+
+    /** Counts the reads which reach it */
+    private static class CountingStorage extends RAMStorage {
+        final AtomicInteger reads = new AtomicInteger();
+        final Map<Multihash, Integer> readsPerBlock = new ConcurrentHashMap<>();
+
+        @Override
+        public CompletableFuture<Optional<byte[]>> getRaw(Multihash object) {
+            reads.incrementAndGet();
+            readsPerBlock.merge(object, 1, Integer::sum);
+            return super.getRaw(object);
+        }
+    }
+
+    private byte[] cborBlock(int size) {
+        return new CborObject.CborByteArray(BlockStoreTests.randomBlock(random, size)).toByteArray();
+    }
+
+    private static Multihash put(RAMStorage target, byte[] block) throws Exception {
+        return target.put(owner, owner, Arrays.asList(new byte[0]), Arrays.asList(block)).get().get(0);
+    }
+
+    @Test
+    public void smallBudgetsShrinkTheSlabs() {
+        RAMStorage target = new RAMStorage();
+        int maxValueSize = 50 * 1024;
+        OffHeapCachingStorage small = new OffHeapCachingStorage(target, 1024 * 1024, maxValueSize);
+        Assert.assertEquals(1024 * 1024, small.capacity());
+        OffHeapCachingStorage odd = new OffHeapCachingStorage(target, 300 * 1024 + 1, maxValueSize);
+        Assert.assertTrue(odd.capacity() <= 300 * 1024 + 1);
+        long large = 10L * OffHeapCachingStorage.DEFAULT_SLAB_SIZE;
+        Assert.assertEquals(large, new OffHeapCachingStorage(target, large, maxValueSize).capacity());
+
+        // two slabs must each hold a value of the maximum size
+        try {
+            new OffHeapCachingStorage(target, 2 * maxValueSize, maxValueSize);
+            Assert.fail("Accepted a budget too small for two slabs");
+        } catch (IllegalStateException expected) {}
+    }
+
+    @Test
+    public void slabsAreReused() throws Exception {
+        CountingStorage target = new CountingStorage();
+        int slabSize = 4096;
+        OffHeapCachingStorage cache = new OffHeapCachingStorage(target, 4 * slabSize, slabSize, 1024);
+        Assert.assertEquals(4 * slabSize, cache.capacity());
+
+        byte[] hotBlock = cborBlock(500);
+        Multihash hot = put(target, hotBlock);
+        Map<Multihash, byte[]> blocks = new LinkedHashMap<>();
+        for (int i = 0; i < 200; i++) {
+            byte[] block = cborBlock(500);
+            blocks.put(put(target, block), block);
+        }
+
+        // many times more than fits, while keeping one block hot
+        for (int round = 0; round < 3; round++)
+            for (Map.Entry<Multihash, byte[]> e : blocks.entrySet()) {
+                Assert.assertArrayEquals(e.getValue(), cache.getRaw(e.getKey()).get().get());
+                Assert.assertArrayEquals(hotBlock, cache.getRaw(hot).get().get());
+                Assert.assertTrue(cache.size() * 500 <= cache.capacity());
+            }
+        // the hot block's slab is never the least recently read, so it was only fetched once, while the others, apart
+        // from those which share its slab, were evicted and fetched again
+        Assert.assertEquals(1, (int) target.readsPerBlock.get(hot));
+        long refetched = blocks.keySet().stream()
+                .filter(h -> target.readsPerBlock.get(h) > 1)
+                .count();
+        Assert.assertTrue(refetched >= blocks.size() - slabSize / 500);
+
+        // what is still cached is intact after slabs have been cleared and refilled
+        int cached = 0;
+        for (Map.Entry<Multihash, byte[]> e : blocks.entrySet()) {
+            int reads = target.reads.get();
+            Assert.assertArrayEquals(e.getValue(), cache.getRaw(e.getKey()).get().get());
+            if (target.reads.get() == reads) {
+                cached++;
+                Assert.assertEquals(e.getValue().length, (int) cache.getSize(e.getKey()).get().get());
+            }
+        }
+        Assert.assertTrue(cached > 0);
+    }
+
+    @Test
+    public void rawBlocksBypassTheCache() throws Exception {
+        CountingStorage target = new CountingStorage();
+        OffHeapCachingStorage cache = new OffHeapCachingStorage(target, 64 * 1024, 8 * 1024, 1024);
+        byte[] block = BlockStoreTests.randomBlock(random, 100);
+        Multihash raw = cache.putRaw(owner, owner, Arrays.asList(new byte[0]), Arrays.asList(block)).get().get(0);
+        Assert.assertEquals(0, cache.size());
+
+        for (int i = 0; i < 3; i++)
+            Assert.assertArrayEquals(block, cache.getRaw(raw).get().get());
+        Assert.assertEquals(3, target.reads.get());
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.hits() + cache.misses());
+    }
+
+    @Test
+    public void oversizedValuesAreNotCached() throws Exception {
+        CountingStorage target = new CountingStorage();
+        OffHeapCachingStorage cache = new OffHeapCachingStorage(target, 64 * 1024, 8 * 1024, 1024);
+        byte[] large = cborBlock(2000);
+        Multihash hash = put(target, large);
+        for (int i = 0; i < 2; i++)
+            Assert.assertArrayEquals(large, cache.getRaw(hash).get().get());
+        Assert.assertEquals(2, target.reads.get());
+        Assert.assertEquals(0, cache.size());
+
+        // nor when they are written through the cache, unlike small ones
+        byte[] small = cborBlock(100);
+        cache.put(owner, owner, Arrays.asList(new byte[0], new byte[0]), Arrays.asList(cborBlock(3000), small)).get();
+        Assert.assertEquals(1, cache.size());
+    }
+}
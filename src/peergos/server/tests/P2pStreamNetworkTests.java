@@ -4,6 +4,7 @@ import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import peergos.server.Main;
+import peergos.server.net.*;
 import peergos.server.storage.*;
 import peergos.server.util.*;
 import peergos.shared.*;
@@ -62,11 +63,12 @@ public class P2pStreamNetworkTests {
     }
 
     private static NetworkAccess buildApi(Args args) throws Exception {
-        return NetworkAccess.buildJava(new URL("http://localhost:" + args.getInt("port"))).get();
+        return NetworkAccess.buildJava(new PooledJavaPoster(new URL("http://localhost:" + args.getInt("port")))).get();
     }
 
     private static NetworkAccess buildProxiedApi(int ipfsApiPort, int ipfsGatewayPort, Multihash pkinodeId) throws Exception {
-        return NetworkAccess.buildJava(new URL("http://localhost:" + ipfsApiPort), new URL("http://localhost:" + ipfsGatewayPort), pkinodeId.toBase58()).get();
+        return NetworkAccess.buildJava(new PooledJavaPoster(new URL("http://localhost:" + ipfsApiPort)),
+                new PooledJavaPoster(new URL("http://localhost:" + ipfsGatewayPort)), pkinodeId.toBase58()).get();
     }
 
     @Test
@@ -0,0 +1,114 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class PackFileStorageTests {
+
+    private static final PublicKeyHash owner = PublicKeyHash.NULL;
+    private final Random r = new Random(7);
+
+    private byte[] randomBlock(int len) {
+        return BlockStoreTests.randomBlock(r, len);
+    }
+
+    private static Path tempDir() throws IOException {
+        return BlockStoreTests.tempDir();
+    }
+
+    @Test
+    public void putGetDeleteAndReopen() throws Exception {
+        Path dir = tempDir();
+        PackFileStorage store = new PackFileStorage(dir, 64 * 1024, 0.5);
+        List<byte[]> blocks = IntStream.range(0, 100)
+                .mapToObj(i -> randomBlock(1000 + i))
+                .collect(Collectors.toList());
+        List<Multihash> hashes = store.putRaw(owner, owner, Collections.nCopies(blocks.size(), new byte[0]), blocks).get();
+        Assert.assertTrue("Rolled segments", store.segmentCount() > 1);
+
+        for (int i = 0; i < blocks.size(); i++) {
+            Assert.assertArrayEquals(blocks.get(i), store.getRaw(hashes.get(i)).get().get());
+            Assert.assertEquals(blocks.get(i).length, (int) store.getSize(hashes.get(i)).get().get());
+        }
+
+        Set<Multihash> retained = new HashSet<>(hashes.subList(0, 10));
+        Set<Multihash> removed = store.retainOnly(retained);
+        Assert.assertEquals(90, removed.size());
+        Assert.assertFalse(store.contains(hashes.get(50)));
+        Assert.assertFalse(store.getRaw(hashes.get(50)).get().isPresent());
+        store.close();
+
+        PackFileStorage reopened = new PackFileStorage(dir, 64 * 1024, 0.5);
+        for (int i = 0; i < blocks.size(); i++)
+            Assert.assertEquals(i < 10, reopened.contains(hashes.get(i)));
+        Assert.assertArrayEquals(blocks.get(3), reopened.getRaw(hashes.get(3)).get().get());
+        reopened.close();
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        Path dir = tempDir();
+        PackFileStorage store = new PackFileStorage(dir, 64 * 1024, 0.5);
+        List<byte[]> blocks = IntStream.range(0, 200)
+                .mapToObj(i -> randomBlock(2000))
+                .collect(Collectors.toList());
+        List<Multihash> hashes = store.putRaw(owner, owner, Collections.nCopies(blocks.size(), new byte[0]), blocks).get();
+        int segmentsBefore = store.segmentCount();
+
+        for (int i = 0; i < hashes.size(); i++)
+            if (i % 4 != 0)
+                store.delete(hashes.get(i));
+        Assert.assertTrue(store.deadBytes() > 0);
+
+        int compacted = store.compact();
+        Assert.assertTrue("Compacted segments", compacted > 0);
+        Assert.assertTrue("Fewer segments", store.segmentCount() < segmentsBefore);
+        for (int i = 0; i < hashes.size(); i += 4)
+            Assert.assertArrayEquals(blocks.get(i), store.getRaw(hashes.get(i)).get().get());
+        store.close();
+
+        // deleted blocks must stay deleted after the index has been rewritten
+        PackFileStorage reopened = new PackFileStorage(dir, 64 * 1024, 0.5);
+        for (int i = 0; i < hashes.size(); i++)
+            Assert.assertEquals(i % 4 == 0, reopened.contains(hashes.get(i)));
+        reopened.close();
+    }
+
+    @Test
+    public void recoverUnindexedBlocks() throws Exception {
+        Path dir = tempDir();
+        PackFileStorage store = new PackFileStorage(dir);
+        List<byte[]> blocks = Arrays.asList(randomBlock(500), randomBlock(600));
+        List<Multihash> hashes = store.putRaw(owner, owner, Arrays.asList(new byte[0], new byte[0]), blocks).get();
+        store.close();
+
+        // simulate losing the index
+        Files.delete(dir.resolve("index"));
+        PackFileStorage reopened = new PackFileStorage(dir);
+        for (int i = 0; i < blocks.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), reopened.getRaw(hashes.get(i)).get().get());
+        reopened.close();
+    }
+
+    @Test
+    public void regionRead() throws Exception {
+        PackFileStorage store = new PackFileStorage(tempDir());
+        List<byte[]> blocks = Arrays.asList(randomBlock(300), randomBlock(128 * 1024));
+        List<Multihash> hashes = store.putRaw(owner, owner, Arrays.asList(new byte[0], new byte[0]), blocks).get();
+        for (int i = 0; i < blocks.size(); i++) {
+            try (BlockRegion region = store.openBlock(hashes.get(i)).get()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                region.transferTo(out);
+                Assert.assertArrayEquals(blocks.get(i), out.toByteArray());
+            }
+        }
+        store.close();
+    }
+}
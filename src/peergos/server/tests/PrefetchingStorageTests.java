@@ -0,0 +1,131 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class PrefetchingStorageTests {
+
+    private static final PublicKeyHash owner = PublicKeyHash.NULL;
+    private final Random random = new Random(14);
+
+    /** Counts direct reads, and holds batched reads back until the gate is opened */
+    private static class GatedStorage extends RAMStorage {
+        final AtomicInteger directReads = new AtomicInteger();
+        volatile CompletableFuture<Boolean> gate = CompletableFuture.completedFuture(true);
+
+        @Override
+        public CompletableFuture<Optional<byte[]>> getRaw(Multihash object) {
+            directReads.incrementAndGet();
+            return super.getRaw(object);
+        }
+
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getRawMany(List<Multihash> hashes) {
+            return gate.thenCompose(open -> super.getRawMany(hashes));
+        }
+    }
+
+    private static Multihash node(RAMStorage dht, List<Multihash> links, byte[] padding) throws Exception {
+        Map<String, CborObject> map = new TreeMap<>();
+        for (int i = 0; i < links.size(); i++)
+            map.put("link" + i, new CborObject.CborMerkleLink(links.get(i)));
+        map.put("padding", new CborObject.CborByteArray(padding));
+        byte[] block = CborObject.CborMap.build(map).toByteArray();
+        return dht.put(owner, owner, Arrays.asList(new byte[0]), Arrays.asList(block)).get().get(0);
+    }
+
+    /**
+     *
+     * @return a chain of cbor blocks, from the root down, each linking to the next
+     */
+    private List<Multihash> chain(RAMStorage dht, int length) throws Exception {
+        LinkedList<Multihash> chain = new LinkedList<>();
+        for (int i = 0; i < length; i++)
+            chain.addFirst(node(dht, chain.isEmpty() ? Collections.emptyList() : Arrays.asList(chain.getFirst()),
+                    BlockStoreTests.randomBlock(random, 10)));
+        return chain;
+    }
+
+    @Test
+    public void depthLimitAndHitRate() throws Exception {
+        GatedStorage target = new GatedStorage();
+        List<Multihash> chain = chain(target, 6);
+        PrefetchingStorage prefetcher = new PrefetchingStorage(target, 2, 1024 * 1024);
+
+        // reading the root prefetches two levels below it
+        prefetcher.getRaw(chain.get(0)).get();
+        Assert.assertEquals(2, prefetcher.prefetched());
+        // and reading a prefetched block tops the prefetches up to two levels below that
+        prefetcher.getRaw(chain.get(1)).get();
+        Assert.assertEquals(2, prefetcher.prefetched());
+        prefetcher.getRaw(chain.get(2)).get();
+        Assert.assertEquals(4, prefetcher.prefetched());
+        for (Multihash h : chain.subList(3, chain.size()))
+            Assert.assertTrue(prefetcher.getRaw(h).get().isPresent());
+        Assert.assertEquals(5, prefetcher.prefetched());
+
+        // only the read of the root went to the target directly
+        Assert.assertEquals(1, target.directReads.get());
+        Assert.assertEquals(5.0 / 6, prefetcher.hitRate(), 0.0001);
+        Assert.assertEquals(0, prefetcher.unused());
+    }
+
+    @Test
+    public void byteBudget() throws Exception {
+        GatedStorage target = new GatedStorage();
+        int childSize = 10 * 1024;
+        List<Multihash> children = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+            children.add(node(target, Collections.emptyList(), BlockStoreTests.randomBlock(random, childSize)));
+        Multihash root = node(target, children, new byte[0]);
+        long maxBytes = 5 * childSize;
+        PrefetchingStorage prefetcher = new PrefetchingStorage(target, 2, maxBytes);
+
+        prefetcher.getRaw(root).get();
+        Assert.assertEquals(50, prefetcher.prefetched());
+        // the oldest prefetches are dropped to stay within budget
+        Assert.assertEquals(50 - 4, prefetcher.unused());
+        for (Multihash child : children)
+            Assert.assertTrue(prefetcher.getRaw(child).get().isPresent());
+        Assert.assertEquals(4.0 / 51, prefetcher.hitRate(), 0.0001);
+    }
+
+    @Test
+    public void joinInFlightPrefetch() throws Exception {
+        GatedStorage target = new GatedStorage();
+        List<Multihash> chain = chain(target, 2);
+        PrefetchingStorage prefetcher = new PrefetchingStorage(target, 1, 1024 * 1024);
+
+        target.gate = new CompletableFuture<>();
+        prefetcher.getRaw(chain.get(0)).get();
+        CompletableFuture<Optional<byte[]>> child = prefetcher.getRaw(chain.get(1));
+        Assert.assertFalse(child.isDone());
+        target.gate.complete(true);
+
+        Assert.assertArrayEquals(target.getRaw(chain.get(1)).get().get(), child.get(5, TimeUnit.SECONDS).get());
+        // one direct read for the root, and one just now to check the result
+        Assert.assertEquals(2, target.directReads.get());
+        Assert.assertEquals(0.5, prefetcher.hitRate(), 0.0001);
+    }
+
+    @Test
+    public void verifiedOnce() {
+        NetworkAccess network = new NetworkAccess(null, null, new RAMStorage(), null, null, Collections.emptyList());
+        ContentAddressedStorage verified = network.dhtClient;
+        // deriving another network access doesn't add another verifier
+        Assert.assertSame(verified, network.withCorenode(null).dhtClient);
+
+        ContentAddressedStorage prefetching = network.withPrefetching(2, 1024).dhtClient;
+        Assert.assertTrue(prefetching instanceof HashVerifyingStorage);
+        Assert.assertTrue(((HashVerifyingStorage) prefetching).source() instanceof PrefetchingStorage);
+    }
+}
@@ -4,6 +4,7 @@ import org.junit.*;
 import org.junit.runner.*;
 import org.junit.runners.*;
 import peergos.server.*;
+import peergos.server.net.*;
 import peergos.server.util.Args;
 import peergos.shared.*;
 import peergos.shared.user.*;
@@ -29,7 +30,7 @@ public class QuotaTests {
     private static Random random = new Random(RANDOM_SEED);
 
     public QuotaTests(Args args) throws Exception {
-        this.network = NetworkAccess.buildJava(new URL("http://localhost:" + args.getInt("port"))).get();
+        this.network = NetworkAccess.buildJava(new PooledJavaPoster(new URL("http://localhost:" + args.getInt("port")))).get();
     }
 
     @Parameterized.Parameters()
@@ -0,0 +1,85 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class RefCountingStorageTests extends BlockStoreTests {
+
+    public RefCountingStorageTests(String type) {
+        super(type);
+    }
+
+    @Test
+    public void deletesUnreferencedBlocks() throws Exception {
+        DeletableContentAddressedStorage store = createStore();
+        List<Multihash> leaves = store.putRaw(owner, owner, Arrays.asList(new byte[0], new byte[0], new byte[0]),
+                Arrays.asList(randomBlock(100), randomBlock(200), randomBlock(300))).get();
+        Multihash shared = leaves.get(0), removedLeaf = leaves.get(1), addedLeaf = leaves.get(2);
+        Map<String, CborObject> links = new TreeMap<>();
+        links.put("a", new CborObject.CborMerkleLink(shared));
+        links.put("b", new CborObject.CborMerkleLink(removedLeaf));
+        Multihash original = store.put(owner, owner, Arrays.asList(new byte[0]),
+                Arrays.asList(CborObject.CborMap.build(links).toByteArray())).get().get(0);
+        links.put("b", new CborObject.CborMerkleLink(addedLeaf));
+        Multihash updated = store.put(owner, owner, Arrays.asList(new byte[0]),
+                Arrays.asList(CborObject.CborMap.build(links).toByteArray())).get().get(0);
+
+        Path index = tempDir().resolve("pins");
+        RefCountingStorage pins = new RefCountingStorage(store, index, 0);
+        pins.start(() -> CompletableFuture.completedFuture(Collections.emptyList()));
+        pins.pinRoot(owner, original).get();
+        Assert.assertEquals(3, pins.count());
+        // pins are idempotent, and the block api can't change them
+        pins.pinRoot(owner, original).get();
+        pins.recursivePin(owner, original).get();
+        pins.recursiveUnpin(owner, original).get();
+        Assert.assertEquals(1, pins.getCount(original));
+
+        // the same sequence PinningMutablePointers uses to move a pointer
+        pins.pinRoot(owner, updated).get();
+        pins.unpinRoot(owner, original).get();
+        pins.unpinRoot(owner, original).get();
+        Assert.assertEquals(1, pins.getCount(shared));
+        Assert.assertEquals(0, pins.getCount(removedLeaf));
+        for (int i = 0; i < 50 && store.contains(original); i++)
+            Thread.sleep(100);
+        Assert.assertFalse(store.contains(original));
+        Assert.assertFalse(store.contains(removedLeaf));
+        Assert.assertTrue(store.contains(updated) && store.contains(shared) && store.contains(addedLeaf));
+
+        RefCountingStorage reopened = new RefCountingStorage(store, index, 0);
+        Assert.assertEquals(3, reopened.count());
+        Assert.assertEquals(1, reopened.getCount(updated));
+        Assert.assertTrue(reopened.isPinned(owner, updated));
+        Assert.assertFalse(reopened.isPinned(owner, original));
+    }
+
+    @Test
+    public void bootstrapRootsAreUnowned() throws Exception {
+        DeletableContentAddressedStorage store = createStore();
+        Multihash root = store.putRaw(owner, owner, Arrays.asList(new byte[0]), Arrays.asList(randomBlock(100))).get().get(0);
+        PublicKeyHash user = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, randomBlock(32)));
+
+        RefCountingStorage pins = new RefCountingStorage(store, tempDir().resolve("pins"), 0);
+        pins.start(() -> CompletableFuture.completedFuture(Arrays.asList(root, root)));
+        Assert.assertEquals(1, pins.getCount(root));
+        Assert.assertTrue(pins.isPinned(PublicKeyHash.NULL, root));
+
+        // the owner's own pin is released first, then the unowned bootstrap pin
+        pins.pinRoot(user, root).get();
+        Assert.assertEquals(2, pins.getCount(root));
+        pins.unpinRoot(user, root).get();
+        Assert.assertEquals(1, pins.getCount(root));
+        Assert.assertFalse(pins.isPinned(user, root));
+        pins.unpinRoot(user, root).get();
+        Assert.assertEquals(0, pins.getCount(root));
+        Assert.assertFalse(pins.isPinned(PublicKeyHash.NULL, root));
+    }
+}
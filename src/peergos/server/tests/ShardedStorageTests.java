@@ -0,0 +1,44 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class ShardedStorageTests extends BlockStoreTests {
+
+    public ShardedStorageTests(String type) {
+        super(type);
+    }
+
+    @Test
+    public void rebalancesOnNewShard() throws Exception {
+        Path firstDir = tempDir();
+        DeletableContentAddressedStorage first = createStore(firstDir);
+        String firstId = ShardedStorage.loadShardId(firstDir);
+        Assert.assertEquals("Shard id is stable", firstId, ShardedStorage.loadShardId(firstDir));
+        ShardedStorage sharded = new ShardedStorage(Collections.singletonMap(firstId, first));
+        List<byte[]> blocks = IntStream.range(0, 200)
+                .mapToObj(i -> randomBlock(100 + i))
+                .collect(Collectors.toList());
+        List<Multihash> hashes = sharded.putRaw(owner, owner, Collections.nCopies(blocks.size(), new byte[0]), blocks).get();
+
+        Path secondDir = tempDir();
+        DeletableContentAddressedStorage second = createStore(secondDir);
+        long moved = sharded.addShard(ShardedStorage.loadShardId(secondDir), second).get();
+        Assert.assertTrue("Moved some blocks: " + moved, moved > 50 && moved < 150);
+        for (int i = 0; i < blocks.size(); i++) {
+            Assert.assertTrue(first.contains(hashes.get(i)) ^ second.contains(hashes.get(i)));
+            Assert.assertArrayEquals(blocks.get(i), sharded.getRaw(hashes.get(i)).get().get());
+        }
+        List<Optional<byte[]>> many = sharded.getRawMany(hashes).get();
+        for (int i = 0; i < blocks.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), many.get(i).get());
+
+        Set<Multihash> removed = sharded.retainOnly(new HashSet<>(hashes.subList(0, 10)));
+        Assert.assertEquals(190, removed.size());
+    }
+}
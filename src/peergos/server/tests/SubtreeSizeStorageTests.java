@@ -0,0 +1,39 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.nio.file.*;
+import java.util.*;
+
+public class SubtreeSizeStorageTests extends BlockStoreTests {
+
+    public SubtreeSizeStorageTests(String type) {
+        super(type);
+    }
+
+    @Test
+    public void memoizedSubtreeSizes() throws Exception {
+        DeletableContentAddressedStorage store = createStore();
+        List<byte[]> leafBlocks = Arrays.asList(randomBlock(100), randomBlock(200));
+        List<Multihash> leaves = store.putRaw(owner, owner, Arrays.asList(new byte[0], new byte[0]), leafBlocks).get();
+        Map<String, CborObject> links = new TreeMap<>();
+        links.put("a", new CborObject.CborMerkleLink(leaves.get(0)));
+        links.put("b", new CborObject.CborMerkleLink(leaves.get(1)));
+        byte[] rootBlock = CborObject.CborMap.build(links).toByteArray();
+        Multihash root = store.put(owner, owner, Arrays.asList(new byte[0]), Arrays.asList(rootBlock)).get().get(0);
+        long expected = 300 + rootBlock.length;
+
+        Path sizeLog = tempDir().resolve("sizes.log");
+        SubtreeSizeStorage sizes = new SubtreeSizeStorage(store, sizeLog);
+        Assert.assertEquals(expected, (long) sizes.getRecursiveBlockSize(root).get());
+        Assert.assertEquals(1, sizes.size());
+
+        // once memoized, the size survives a restart and the tree is no longer needed to answer
+        store.retainOnly(Collections.emptySet());
+        SubtreeSizeStorage reopened = new SubtreeSizeStorage(store, sizeLog);
+        Assert.assertEquals(expected, (long) reopened.getRecursiveBlockSize(root).get());
+    }
+}
@@ -0,0 +1,91 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+public class TieredStorageTests extends BlockStoreTests {
+
+    public TieredStorageTests(String type) {
+        super(type);
+    }
+
+    /**
+     * Wait for the disk tier writer, which works in the background
+     */
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 100 && ! condition.getAsBoolean(); i++)
+            Thread.sleep(50);
+        Assert.assertTrue(condition.getAsBoolean());
+    }
+
+    private static int blockCount(DeletableContentAddressedStorage store) {
+        AtomicInteger count = new AtomicInteger();
+        store.applyToAll(h -> count.incrementAndGet());
+        return count.get();
+    }
+
+    private List<Multihash> putBlocks(RAMStorage backend, List<byte[]> blocks) throws Exception {
+        return backend.putRaw(owner, owner, Collections.nCopies(blocks.size(), new byte[0]), blocks).get();
+    }
+
+    @Test
+    public void readsArePromotedToDiskAndReloaded() throws Exception {
+        RAMStorage backend = new RAMStorage();
+        DeletableContentAddressedStorage disk = createStore();
+        TieredStorage tiered = new TieredStorage(backend, disk, 1024 * 1024);
+        List<byte[]> blocks = IntStream.range(0, 10)
+                .mapToObj(i -> randomBlock(1000 + i))
+                .collect(Collectors.toList());
+        List<Multihash> hashes = putBlocks(backend, blocks);
+
+        for (int i = 0; i < blocks.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), tiered.getRaw(hashes.get(i)).get().get());
+        waitFor(() -> hashes.stream().allMatch(disk::contains) && tiered.diskCache().size() == hashes.size());
+
+        // once on disk, reads no longer need the backend
+        backend.clear();
+        for (int i = 0; i < blocks.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), tiered.getRaw(hashes.get(i)).get().get());
+        Assert.assertEquals(1002, (int) tiered.getSize(hashes.get(2)).get().get());
+        Assert.assertFalse(tiered.getRaw(RAMStorage.hashToCid(randomBlock(10), true)).get().isPresent());
+
+        // and what is on disk is picked up again after a restart
+        TieredStorage restarted = new TieredStorage(backend, disk, 1024 * 1024);
+        waitFor(() -> restarted.diskCache().size() == hashes.size());
+        for (int i = 0; i < blocks.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), restarted.getRaw(hashes.get(i)).get().get());
+    }
+
+    @Test
+    public void diskTierIsBounded() throws Exception {
+        RAMStorage backend = new RAMStorage();
+        DeletableContentAddressedStorage disk = createStore();
+        long maxDiskBytes = 20_000;
+        TieredStorage tiered = new TieredStorage(backend, disk, maxDiskBytes);
+        List<byte[]> blocks = IntStream.range(0, 100)
+                .mapToObj(i -> randomBlock(1000))
+                .collect(Collectors.toList());
+        List<Multihash> hashes = putBlocks(backend, blocks);
+
+        // read a few blocks repeatedly, so the policy prefers them to blocks which are read once
+        List<Multihash> hot = hashes.subList(0, 5);
+        for (int round = 0; round < 5; round++)
+            for (Multihash h : hot)
+                tiered.getRaw(h).get();
+        for (int i = 0; i < blocks.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), tiered.getRaw(hashes.get(i)).get().get());
+
+        // every block has been offered to the disk tier, and evicted and rejected blocks are deleted from disk
+        waitFor(() -> tiered.diskCache().size() + tiered.diskCache().evictionCount() >= blocks.size() &&
+                blockCount(disk) == tiered.diskCache().size());
+        Assert.assertTrue(tiered.diskCache().weight() <= maxDiskBytes);
+        Assert.assertTrue(tiered.diskCache().evictionCount() > 0);
+        Assert.assertTrue(hot.stream().allMatch(disk::contains));
+    }
+}
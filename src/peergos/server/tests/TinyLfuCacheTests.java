@@ -0,0 +1,41 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+
+public class TinyLfuCacheTests {
+
+    @Test
+    public void boundedByWeight() {
+        TinyLfuCache<Integer, byte[]> cache = new TinyLfuCache<>(100_000, 100, v -> v.length);
+        for (int i = 0; i < 1000; i++)
+            cache.put(i, new byte[1000 + i]);
+        Assert.assertTrue(cache.weight() <= 100_000);
+        Assert.assertTrue(cache.evictionCount() > 0);
+    }
+
+    @Test
+    public void scanResistant() {
+        TinyLfuCache<Integer, byte[]> cache = new TinyLfuCache<>(100_000, 100, v -> v.length);
+        List<Integer> hot = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            hot.add(i);
+            cache.put(i, new byte[1000]);
+        }
+        for (int round = 0; round < 5; round++)
+            for (Integer key : hot)
+                cache.get(key);
+
+        // a scan of entries which are each used once shouldn't displace the hot set
+        for (int i = 1000; i < 11_000; i++) {
+            cache.get(i);
+            cache.put(i, new byte[1000]);
+        }
+        long present = hot.stream().filter(k -> cache.get(k).isPresent()).count();
+        Assert.assertTrue("Hot entries retained: " + present, present >= 45);
+        Assert.assertTrue(cache.hitCount() > 0);
+        Assert.assertTrue(cache.missCount() > 0);
+    }
+}
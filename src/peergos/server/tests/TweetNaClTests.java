@@ -0,0 +1,125 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.crypto.*;
+
+import java.security.*;
+import java.util.*;
+
+public class TweetNaClTests {
+
+    private final Random random = new Random(20);
+
+    private byte[][] keyPair() {
+        byte[] publicKey = new byte[32], secretKey = new byte[64];
+        random.nextBytes(secretKey);
+        TweetNaCl.crypto_sign_keypair(publicKey, secretKey, true);
+        return new byte[][] {publicKey, secretKey};
+    }
+
+    private byte[] message(int length) {
+        byte[] message = new byte[length];
+        random.nextBytes(message);
+        return message;
+    }
+
+    /**
+     * Sign with the reference implementation, which hashes a copy of R || A || message, and check that the detached
+     * verifier, which hashes the message in place after the 64 byte prefix, agrees with crypto_sign_open
+     */
+    private void checkSignature(byte[][] keys, byte[] message) {
+        byte[] signed = TweetNaCl.crypto_sign(message, keys[1]);
+        byte[] signature = Arrays.copyOfRange(signed, 0, TweetNaCl.SIGNATURE_SIZE_BYTES);
+        String length = "length " + message.length;
+
+        Assert.assertArrayEquals(length, message, TweetNaCl.crypto_sign_open(signed, keys[0]));
+        Assert.assertTrue(length, TweetNaCl.crypto_sign_verify_detached(signature, message, keys[0]));
+
+        // flip a bit at the start, middle and end of the message
+        for (int index : message.length == 0 ? new int[0] : new int[] {0, message.length / 2, message.length - 1}) {
+            byte[] tampered = message.clone();
+            tampered[index] ^= 1;
+            Assert.assertFalse(length, TweetNaCl.crypto_sign_verify_detached(signature, tampered, keys[0]));
+            byte[] tamperedSigned = signed.clone();
+            tamperedSigned[TweetNaCl.SIGNATURE_SIZE_BYTES + index] ^= 1;
+            try {
+                TweetNaCl.crypto_sign_open(tamperedSigned, keys[0]);
+                Assert.fail("Opened a tampered message of " + length);
+            } catch (TweetNaCl.InvalidSignatureException expected) {}
+        }
+        byte[] longer = Arrays.copyOf(message, message.length + 1);
+        Assert.assertFalse(length, TweetNaCl.crypto_sign_verify_detached(signature, longer, keys[0]));
+        if (message.length > 0)
+            Assert.assertFalse(length, TweetNaCl.crypto_sign_verify_detached(signature,
+                    Arrays.copyOf(message, message.length - 1), keys[0]));
+
+        // and in both halves of the signature, R and S
+        for (int index : new int[] {0, 31, 32, 63}) {
+            byte[] tampered = signature.clone();
+            tampered[index] ^= 1;
+            Assert.assertFalse(length, TweetNaCl.crypto_sign_verify_detached(tampered, message, keys[0]));
+        }
+    }
+
+    private static byte[] sha512(byte[] prefix, byte[] message) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-512");
+        digest.update(prefix);
+        digest.update(message);
+        return digest.digest();
+    }
+
+    @Test
+    public void prefixedHashMatchesSha512() throws Exception {
+        // the final block is padded into one block below 112 bytes, and two from 112 up to 128
+        for (int prefixLength : new int[] {0, 1, 32, 64, 127, 128}) {
+            byte[] prefix = message(prefixLength);
+            for (int length = 0; length <= 3 * 128 + 1; length++) {
+                byte[] message = message(length);
+                Assert.assertArrayEquals("prefix " + prefixLength + ", length " + length,
+                        sha512(prefix, message), TweetNaCl.crypto_hash_prefixed(prefix, message));
+            }
+            byte[] large = message(1024 * 1024 + 17);
+            Assert.assertArrayEquals(sha512(prefix, large), TweetNaCl.crypto_hash_prefixed(prefix, large));
+        }
+    }
+
+    @Test
+    public void sha512PaddingBoundaries() {
+        byte[][] keys = keyPair();
+        // SHA-512 pads into one extra block below 112 bytes in the final block, and two from 112. The detached
+        // verifier hashes a 64 byte prefix and then the message, so its boundaries are at message lengths 48 and 176
+        // as well as at 112 and 240 for the message alone.
+        List<Integer> lengths = Arrays.asList(0, 1, 47, 48, 49, 63, 64, 65, 111, 112, 113, 127, 128, 129,
+                175, 176, 177, 191, 192, 193, 239, 240, 241, 255, 256, 257);
+        for (int length : lengths)
+            checkSignature(keys, message(length));
+    }
+
+    @Test
+    public void everyLengthUpToThreeBlocks() {
+        byte[][] keys = keyPair();
+        for (int length = 0; length <= 3 * 128; length++) {
+            byte[] message = message(length);
+            byte[] signed = TweetNaCl.crypto_sign(message, keys[1]);
+            Assert.assertTrue("length " + length, TweetNaCl.crypto_sign_verify_detached(
+                    Arrays.copyOfRange(signed, 0, TweetNaCl.SIGNATURE_SIZE_BYTES), message, keys[0]));
+        }
+    }
+
+    @Test
+    public void largeMessages() {
+        byte[][] keys = keyPair();
+        checkSignature(keys, message(1024 * 1024));
+        checkSignature(keys, message(1024 * 1024 + 17));
+    }
+
+    @Test
+    public void wrongKeyOrSignatureLength() {
+        byte[][] keys = keyPair(), other = keyPair();
+        byte[] message = message(100);
+        byte[] signature = Arrays.copyOfRange(TweetNaCl.crypto_sign(message, keys[1]), 0, TweetNaCl.SIGNATURE_SIZE_BYTES);
+        Assert.assertFalse(TweetNaCl.crypto_sign_verify_detached(signature, message, other[0]));
+        Assert.assertFalse(TweetNaCl.crypto_sign_verify_detached(Arrays.copyOf(signature, 63), message, keys[0]));
+        Assert.assertFalse(TweetNaCl.crypto_sign_verify_detached(Arrays.copyOf(signature, 65), message, keys[0]));
+    }
+}
@@ -7,6 +7,7 @@ import peergos.server.util.Logging;
 import org.junit.*;
 import static org.junit.Assert.*;
 
+import peergos.server.net.*;
 import peergos.server.storage.*;
 import peergos.server.util.PeergosNetworkUtils;
 import peergos.shared.*;
@@ -40,7 +41,7 @@ public abstract class UserTests {
 
     public UserTests(Args args) {
         try {
-            this.network = NetworkAccess.buildJava(new URL("http://localhost:" + args.getInt("port"))).get();
+            this.network = NetworkAccess.buildJava(new PooledJavaPoster(new URL("http://localhost:" + args.getInt("port")))).get();
         } catch (Exception ex) {
             throw new IllegalStateException(ex.getMessage(), ex);
         }
@@ -1,6 +1,7 @@
 package peergos.server.tests.slow;
 import java.util.logging.*;
 
+import peergos.server.net.*;
 import peergos.server.util.Args;
 import peergos.server.util.Logging;
 
@@ -35,7 +36,7 @@ public class IpfsStressTest {
         int corePort = portMin + portRange + r.nextInt(portRange);
         Args args = Args.parse(new String[]{"useIPFS", "true", "-port", Integer.toString(webPort), "-corenodePort", Integer.toString(corePort)});
         Main.LOCAL.main(args);
-        this.network = NetworkAccess.buildJava(new URL("http://localhost:" + webPort)).get();
+        this.network = NetworkAccess.buildJava(new PooledJavaPoster(new URL("http://localhost:" + webPort))).get();
     }
 
     public static void main(String[] args) throws Exception {
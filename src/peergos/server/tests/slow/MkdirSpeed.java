@@ -5,6 +5,7 @@ import org.junit.runner.*;
 import org.junit.runners.*;
 import peergos.server.*;
 import peergos.server.corenode.*;
+import peergos.server.net.*;
 import peergos.server.storage.*;
 import peergos.server.util.Args;
 import peergos.shared.*;
@@ -45,7 +46,7 @@ public class MkdirSpeed {
         int corePort = portMin + portRange + r.nextInt(portRange);
         Args args = Args.parse(new String[]{"useIPFS", "" + useIpfs, "-port", Integer.toString(webPort), "-corenodePort", Integer.toString(corePort)});
         Main.LOCAL.main(args);
-        return NetworkAccess.buildJava(new URL("http://localhost:" + webPort)).get();
+        return NetworkAccess.buildJava(new PooledJavaPoster(new URL("http://localhost:" + webPort))).get();
     }
 
     @Parameterized.Parameters()
@@ -12,6 +12,7 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
 public class MultipartProfiling {
 	private static final Logger LOG = Logging.LOG();
@@ -71,6 +72,88 @@ public class MultipartProfiling {
         System.out.printf("Did %d multipart requests, averaging %d mS each.\n", requests, (t2 - t1) / requests);
     }
 
+    @Test
+    public void parserThroughput() {
+        String boundary = "===" + System.currentTimeMillis() + "===";
+        int parts = 40, partSize = 128 * 1024;
+        byte[] body = buildBody(boundary, IntStream.range(0, parts)
+                .mapToObj(i -> randomArray(partSize))
+                .collect(Collectors.toList()));
+        int iterations = 50;
+        for (int warmup = 0; warmup < 2; warmup++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                Assert.assertEquals(parts, ByteAtATimeParser.extractFiles(new ByteArrayInputStream(body), boundary).size());
+            long t1 = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                Assert.assertEquals(parts, MultipartReceiver.extractFiles(new ByteArrayInputStream(body), boundary).size());
+            long t2 = System.nanoTime();
+            double mb = (double) body.length * iterations / 1024 / 1024;
+            System.out.printf("Byte at a time: %.0f MiB/s, streaming: %.0f MiB/s\n", mb * 1e9 / (t1 - t0), mb * 1e9 / (t2 - t1));
+        }
+    }
+
+    private static byte[] buildBody(String boundary, List<byte[]> parts) {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try {
+            for (byte[] part : parts) {
+                bout.write(("--" + boundary + "\r\nContent-Disposition: file; filename=\"file\"\r\n" +
+                        "Content-Type: application/octet-stream\r\nContent-Transfer-Encoding: binary\r\n\r\n").getBytes());
+                bout.write(part);
+                bout.write("\r\n".getBytes());
+            }
+            bout.write(("--" + boundary + "--\r\n").getBytes());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bout.toByteArray();
+    }
+
+    /** The original parser, which reads the body a byte at a time, as a baseline */
+    private static class ByteAtATimeParser {
+        private static final byte[] DOUBLE_NEW_LINE = "\r\n\r\n".getBytes();
+
+        static List<byte[]> extractFiles(InputStream rawIn, String boundary) {
+            try {
+                InputStream in = new BufferedInputStream(rawIn);
+                readUntil("\r\n".getBytes(), in);
+                readUntil(DOUBLE_NEW_LINE, in);
+                byte[] boundaryBytes = ("\r\n--" + boundary).getBytes();
+                List<byte[]> files = new ArrayList<>();
+                while (true) {
+                    files.add(readUntil(boundaryBytes, in));
+                    byte[] headers = readUntil(DOUBLE_NEW_LINE, in);
+                    if (headers.length == 0 || Arrays.equals(headers, "--".getBytes()))
+                        return files;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private static byte[] readUntil(byte[] pattern, InputStream in) throws IOException {
+            ByteArrayOutputStream prior = new ByteArrayOutputStream();
+            int r;
+            int indexInPattern = 0;
+            while ((r = in.read()) != -1) {
+                if ((byte) r == pattern[indexInPattern]) {
+                    indexInPattern++;
+                    if (indexInPattern == pattern.length)
+                        return prior.toByteArray();
+                } else {
+                    if (indexInPattern > 0)
+                        prior.write(pattern, 0, indexInPattern);
+                    indexInPattern = 0;
+                    if ((byte) r == pattern[0])
+                        indexInPattern = 1;
+                    else
+                        prior.write(r);
+                }
+            }
+            return prior.toByteArray();
+        }
+    }
+
     private void profile(int size, int count) throws IOException {
         Multipart sender = new Multipart("http://localhost:" + port + "/multipart", "UTF-8");
         byte[] data = randomArray(size);
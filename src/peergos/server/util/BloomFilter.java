@@ -0,0 +1,64 @@
+package peergos.server.util;
+
+import java.util.concurrent.atomic.*;
+
+/** A thread safe, lock free Bloom filter over keys which are already uniformly distributed, like cryptographic hashes.
+ *
+ *  The k bit positions are derived from the first 16 bytes of the key with double hashing.
+ */
+public class BloomFilter {
+    private final AtomicLongArray bits;
+    private final long nBits;
+    private final int nHashes;
+
+    public BloomFilter(long nBits, int nHashes) {
+        long words = Math.max(1, (nBits + 63) / 64);
+        if (words > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Bloom filter too large: " + nBits + " bits");
+        this.bits = new AtomicLongArray((int) words);
+        this.nBits = words * 64;
+        this.nHashes = nHashes;
+    }
+
+    /**
+     *
+     * @return a filter with optimal size and hash count for the given capacity and false positive rate
+     */
+    public static BloomFilter create(long expectedEntries, double falsePositiveRate) {
+        long n = Math.max(1, expectedEntries);
+        long nBits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int nHashes = Math.max(1, (int) Math.round((double) nBits / n * Math.log(2)));
+        return new BloomFilter(nBits, nHashes);
+    }
+
+    private static long readLong(byte[] key, int offset) {
+        long res = 0;
+        for (int i = 0; i < 8; i++)
+            res = (res << 8) | (key[(offset + i) % key.length] & 0xff);
+        return res;
+    }
+
+    public void add(byte[] key) {
+        long h1 = readLong(key, 0);
+        long h2 = readLong(key, 8) | 1;
+        for (int i = 0; i < nHashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, nBits);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << (bit & 63);
+            long current;
+            while (((current = bits.get(word)) & mask) == 0 && ! bits.compareAndSet(word, current, current | mask))
+                ;
+        }
+    }
+
+    public boolean mightContain(byte[] key) {
+        long h1 = readLong(key, 0);
+        long h2 = readLong(key, 8) | 1;
+        for (int i = 0; i < nHashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, nBits);
+            if ((bits.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0)
+                return false;
+        }
+        return true;
+    }
+}
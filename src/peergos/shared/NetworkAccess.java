@@ -33,6 +33,7 @@ import java.util.stream.*;
  */
 public class NetworkAccess {
     private static final Logger LOG = Logger.getGlobal();
+    private static final int MAX_FRAGMENTS_PER_REQUEST = 16;
 
     public final CoreNode coreNode;
     public final SocialNetwork social;
@@ -51,7 +52,8 @@ public class NetworkAccess {
     public NetworkAccess(CoreNode coreNode, SocialNetwork social, ContentAddressedStorage dhtClient, MutablePointers mutable, MutableTree tree, List<String> usernames, boolean isJavascript) {
         this.coreNode = coreNode;
         this.social = social;
-        this.dhtClient = new HashVerifyingStorage(dhtClient);
+        // don't verify every block again when deriving one network access from another
+        this.dhtClient = dhtClient instanceof HashVerifyingStorage ? dhtClient : new HashVerifyingStorage(dhtClient);
         this.mutable = mutable;
         this.tree = tree;
         this.usernames = usernames;
@@ -78,6 +80,21 @@ public class NetworkAccess {
         return new NetworkAccess(coreNode, social, dhtClient, mutable, new MutableTreeImpl(mutable, dhtClient), usernames, isJavascript);
     }
 
+    /**
+     * Speculatively fetch the children of cbor blocks as they are read. Prefetched blocks are hash verified when they
+     * are read, like any other.
+     */
+    public NetworkAccess withPrefetching(int maxDepth, long maxBytes) {
+        ContentAddressedStorage unverified = ((HashVerifyingStorage) dhtClient).source();
+        ContentAddressedStorage prefetching = new HashVerifyingStorage(new PrefetchingStorage(unverified, maxDepth, maxBytes));
+        return new NetworkAccess(coreNode, social, prefetching, mutable, new MutableTreeImpl(mutable, prefetching), usernames, isJavascript);
+    }
+
+    @JsMethod
+    public NetworkAccess withDefaultPrefetching() {
+        return withPrefetching(PrefetchingStorage.DEFAULT_MAX_DEPTH, PrefetchingStorage.DEFAULT_MAX_BYTES);
+    }
+
     public NetworkAccess withMutablePointerCache(int ttl) {
         CachingPointers mutable = new CachingPointers(this.mutable, ttl);
         return new NetworkAccess(coreNode, social, dhtClient, mutable, new MutableTreeImpl(mutable, dhtClient), usernames, isJavascript);
@@ -92,7 +109,7 @@ public class NetworkAccess {
     }
 
     public static ContentAddressedStorage buildLocalDht(HttpPoster apiPoster) {
-        return new CachingStorage(new ContentAddressedStorage.HTTP(apiPoster), 10_000, 50 * 1024);
+        return new CachingStorage(new ContentAddressedStorage.HTTP(apiPoster, true), 20 * 1024 * 1024, 50 * 1024);
     }
 
     @JsMethod
@@ -106,9 +123,11 @@ public class NetworkAccess {
     }
 
     public static CompletableFuture<NetworkAccess> buildJava(URL apiAddress, URL proxyAddress, String pkiNodeId) {
+        return buildJava(new JavaPoster(apiAddress), new JavaPoster(proxyAddress), pkiNodeId);
+    }
+
+    public static CompletableFuture<NetworkAccess> buildJava(HttpPoster apiPoster, HttpPoster p2pPoster, String pkiNodeId) {
         Multihash pkiServerNodeId = Cid.decode(pkiNodeId);
-        JavaPoster p2pPoster = new JavaPoster(proxyAddress);
-        JavaPoster apiPoster = new JavaPoster(apiAddress);
         return build(apiPoster, p2pPoster, pkiServerNodeId, false);
     }
 
@@ -180,7 +199,14 @@ public class NetworkAccess {
     }
 
     public static CompletableFuture<NetworkAccess> buildJava(URL target) {
-        JavaPoster poster = new JavaPoster(target);
+        return buildJava(new JavaPoster(target));
+    }
+
+    /**
+     *
+     * @param poster a connection to a Peergos server
+     */
+    public static CompletableFuture<NetworkAccess> buildJava(HttpPoster poster) {
         CoreNode direct = buildDirectCorenode(poster);
         try {
             List<String> usernames = direct.getUsernames("").get();
@@ -315,20 +341,28 @@ public class NetworkAccess {
     public CompletableFuture<List<FragmentWithHash>> downloadFragments(List<Multihash> hashes,
                                                                        ProgressConsumer<Long> monitor,
                                                                        double spaceIncreaseFactor) {
-        List<CompletableFuture<Optional<FragmentWithHash>>> futures = hashes.stream().parallel()
-                .map(h -> ((h instanceof Cid) && ((Cid) h).codec == Cid.Codec.Raw ?
-                        dhtClient.getRaw(h) :
-                        dhtClient.get(h)
-                                .thenApply(cborOpt -> cborOpt.map(cbor -> ((CborObject.CborByteArray) cbor).value))) // for backwards compatibility
-                        .thenApply(dataOpt -> {
-                            Optional<byte[]> bytes = dataOpt;
-                            bytes.ifPresent(arr -> monitor.accept((long)(arr.length / spaceIncreaseFactor)));
-                            return bytes.map(data -> new FragmentWithHash(new Fragment(data), h));
-                        }))
-                .collect(Collectors.toList());
+        // fetch fragments in a few batched requests, rather than one request each
+        List<CompletableFuture<List<Optional<FragmentWithHash>>>> futures = new ArrayList<>();
+        for (int start = 0; start < hashes.size(); start += MAX_FRAGMENTS_PER_REQUEST) {
+            List<Multihash> batch = hashes.subList(start, Math.min(hashes.size(), start + MAX_FRAGMENTS_PER_REQUEST));
+            futures.add(dhtClient.getRawMany(batch).thenApply(blocks -> IntStream.range(0, batch.size())
+                    .mapToObj(i -> {
+                        Multihash h = batch.get(i);
+                        Optional<byte[]> bytes = (h instanceof Cid) && ((Cid) h).codec == Cid.Codec.Raw ?
+                                blocks.get(i) :
+                                blocks.get(i).map(raw -> ((CborObject.CborByteArray) CborObject.fromByteArray(raw)).value); // for backwards compatibility
+                        bytes.ifPresent(arr -> monitor.accept((long)(arr.length / spaceIncreaseFactor)));
+                        return bytes.map(data -> new FragmentWithHash(new Fragment(data), h));
+                    })
+                    .collect(Collectors.toList())));
+        }
 
         return Futures.combineAllInOrder(futures)
-                .thenApply(optList -> optList.stream().filter(Optional::isPresent).map(Optional::get).collect(Collectors.toList()));
+                .thenApply(batches -> batches.stream()
+                        .flatMap(List::stream)
+                        .filter(Optional::isPresent)
+                        .map(Optional::get)
+                        .collect(Collectors.toList()));
     }
 
     /**
@@ -82,6 +82,29 @@ public class TweetNaCl {
         return Arrays.copyOfRange(message, 64, message.length);
     }
 
+    /**
+     * Verify a detached signature of message, without copying message
+     */
+    public static boolean crypto_sign_verify_detached(byte[] signature, byte[] message, byte[] publicSigningKey) {
+        if (signature.length != SIGNATURE_SIZE_BYTES)
+            return false;
+        long[][] /*gf*/ p = new long[4][GF_LEN], q = new long[4][GF_LEN];
+        if (unpackneg(q, publicSigningKey) != 0)
+            return false;
+
+        byte[] prefix = new byte[64], h = new byte[64], t = new byte[32];
+        System.arraycopy(signature, 0, prefix, 0, 32);
+        System.arraycopy(publicSigningKey, 0, prefix, 32, 32);
+        crypto_hash_prefixed(h, prefix, message, 0, message.length);
+        reduce(h);
+        scalarmult(p, q, h, 0);
+
+        scalarbase(q, signature, 32);
+        add(p, q);
+        pack(t, p);
+        return crypto_verify_32(signature, t) == 0;
+    }
+
     public static byte[] crypto_box(byte[] message, byte[] nonce, byte[] theirPublicBoxingKey, byte[] ourSecretBoxingKey) {
         if (nonce.length != BOX_NONCE_BYTES)
             throw new IllegalStateException("Illegal nonce length: "+nonce.length);
@@ -602,9 +625,43 @@ public class TweetNaCl {
 
     private static int crypto_hash(byte[] out, byte[] m, int n) {
         int[] hh = new int[8], hl = new int[8];
-        byte[] x = new byte[256];
-        int i, b = n;
+        crypto_hash_init(hh, hl);
+        int tail = crypto_hashblocks_hl(hh, hl, m, 0, n);
+        crypto_hash_final(out, hh, hl, m, n - tail, tail, n);
+        return 0;
+    }
+
+    /**
+     *
+     * @return SHA-512 of prefix || message. The prefix must be at most 128 bytes.
+     */
+    public static byte[] crypto_hash_prefixed(byte[] prefix, byte[] message) {
+        byte[] out = new byte[HASH_SIZE_BYTES];
+        crypto_hash_prefixed(out, prefix, message, 0, message.length);
+        return out;
+    }
+
+    /**
+     * SHA-512 of prefix || m[mOff, mOff + n), without copying m. The prefix must be at most 128 bytes.
+     */
+    private static void crypto_hash_prefixed(byte[] out, byte[] prefix, byte[] m, int mOff, int n) {
+        int[] hh = new int[8], hl = new int[8];
+        crypto_hash_init(hh, hl);
+        long total = (long) prefix.length + n;
+        byte[] first = new byte[128];
+        System.arraycopy(prefix, 0, first, 0, prefix.length);
+        int fromM = Math.min(128 - prefix.length, n);
+        System.arraycopy(m, mOff, first, prefix.length, fromM);
+        if (total < 128) {
+            crypto_hash_final(out, hh, hl, first, 0, (int) total, total);
+            return;
+        }
+        crypto_hashblocks_hl(hh, hl, first, 0, 128);
+        int tail = crypto_hashblocks_hl(hh, hl, m, mOff + fromM, n - fromM);
+        crypto_hash_final(out, hh, hl, m, mOff + n - tail, tail, total);
+    }
 
+    private static void crypto_hash_init(int[] hh, int[] hl) {
         hh[0] = 0x6a09e667;
         hh[1] = 0xbb67ae85;
         hh[2] = 0x3c6ef372;
@@ -622,21 +679,23 @@ public class TweetNaCl {
         hl[5] = 0x2b3e6c1f;
         hl[6] = 0xfb41bd6b;
         hl[7] = 0x137e2179;
+    }
 
-        crypto_hashblocks_hl(hh, hl, m, n);
-        n %= 128;
-
-        for (i = 0; i < n; i++) x[i] = m[b-n+i];
+    /**
+     * Pad and hash the final n < 128 bytes, which start at m[off], of a message of total bytes
+     */
+    private static void crypto_hash_final(byte[] out, int[] hh, int[] hl, byte[] m, int off, int n, long total) {
+        byte[] x = new byte[256];
+        int i;
+        for (i = 0; i < n; i++) x[i] = m[off+i];
         x[n] = (byte)128;
 
         n = 256-128*(n<112?1:0);
         x[n-9] = 0;
-        jsts64(x, n - 8, (b / 0x20000000), b << 3);
-        crypto_hashblocks_hl(hh, hl, x, n);
+        jsts64(x, n - 8, (int) (total / 0x20000000), (int) (total << 3));
+        crypto_hashblocks_hl(hh, hl, x, 0, n);
 
         for (i = 0; i < 8; i++) jsts64(out, 8 * i, hh[i], hl[i]);
-
-        return 0;
     }
 
     private static void jsts64(byte[] x, int i, int h, int l) {
@@ -693,7 +752,7 @@ public class TweetNaCl {
             0x5fcb6fab, 0x3ad6faec, 0x6c44198c, 0x4a475817
     };
 
-    private static int crypto_hashblocks_hl(int[] hh, int[] hl, byte[] m, int n) {
+    private static int crypto_hashblocks_hl(int[] hh, int[] hl, byte[] m, int off, int n) {
         int[] wh = new int[16], wl = new int[16];
         int bh0, bh1, bh2, bh3, bh4, bh5, bh6, bh7,
                 bl0, bl1, bl2, bl3, bl4, bl5, bl6, bl7,
@@ -717,7 +776,7 @@ public class TweetNaCl {
                 al6 = hl[6],
                 al7 = hl[7];
 
-        int pos = 0;
+        int pos = off;
         while (n >= 128) {
             for (i = 0; i < 16; i++) {
                 j = 8 * i + pos;
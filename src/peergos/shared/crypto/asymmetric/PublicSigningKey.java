@@ -39,6 +39,12 @@ public interface PublicSigningKey extends Cborable {
     @JsMethod
     byte[] unsignMessage(byte[] signed);
 
+    /**
+     *
+     * @return whether signature is a valid detached signature of message
+     */
+    boolean isValidSignature(byte[] signature, byte[] message);
+
     static PublicSigningKey fromString(String b64) {
         return fromByteArray(Base64.getDecoder().decode(b64));
     }
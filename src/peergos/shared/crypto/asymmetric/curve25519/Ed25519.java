@@ -2,11 +2,16 @@ package peergos.shared.crypto.asymmetric.curve25519;
 
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.random.JSNaCl;
+import peergos.shared.util.*;
+
+import java.util.*;
 
 public interface Ed25519 {
 
     byte[] crypto_sign_open(byte[] signed, byte[] publicSigningKey);
 
+    boolean crypto_sign_verify_detached(byte[] signature, byte[] message, byte[] publicSigningKey);
+
     byte[] crypto_sign(byte[] message, byte[] secretSigningKey);
 
     void crypto_sign_keypair(byte[] pk, byte[] sk);
@@ -17,6 +22,11 @@ public interface Ed25519 {
             return TweetNaCl.crypto_sign_open(signed, publicSigningKey);
         }
 
+        @Override
+        public boolean crypto_sign_verify_detached(byte[] signature, byte[] message, byte[] publicSigningKey) {
+            return TweetNaCl.crypto_sign_verify_detached(signature, message, publicSigningKey);
+        }
+
         @Override
         public byte[] crypto_sign(byte[] message, byte[] secretSigningKey) {
             return TweetNaCl.crypto_sign(message, secretSigningKey);
@@ -35,6 +45,15 @@ public interface Ed25519 {
             return scriptJS.crypto_sign_open(signed, publicSigningKey);
         }
 
+        @Override
+        public boolean crypto_sign_verify_detached(byte[] signature, byte[] message, byte[] publicSigningKey) {
+            try {
+                return Arrays.equals(message, crypto_sign_open(ArrayOps.concat(signature, message), publicSigningKey));
+            } catch (Throwable t) {
+                return false;
+            }
+        }
+
         @Override
         public byte[] crypto_sign(byte[] message, byte[] secretSigningKey) {
             return scriptJS.crypto_sign(message, secretSigningKey);
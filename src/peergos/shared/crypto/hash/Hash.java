@@ -7,20 +7,28 @@ import java.security.NoSuchAlgorithmException;
 public class Hash {
     public static final String HASH = "SHA-256";
 
+    // MessageDigest instances are not thread safe, but are expensive enough to be worth reusing
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance(HASH);
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    });
+
     public static byte[] sha256(byte[] input)
     {
-        try {
-            MessageDigest md = MessageDigest.getInstance(HASH);
-            md.update(input);
-            return md.digest();
-        } catch (NoSuchAlgorithmException e)
-        {
+        MessageDigest md = SHA256.get();
+        if (md == null) {
             // This is only here to work around a bug in Doppio JVM
             Sha256 sha256 = new Sha256();
             sha256.update(input);
             byte[] hash = sha256.digest();
             return hash;
         }
+        md.reset();
+        md.update(input);
+        return md.digest();
     }
 
     public static byte[] sha256(String password)
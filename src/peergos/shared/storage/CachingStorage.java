@@ -10,19 +10,44 @@ import peergos.shared.util.*;
 import java.util.*;
 import java.util.concurrent.*;
 
+/** A read through cache of small blocks in RAM.
+ *
+ *  Concurrent reads of the same block share a single request to the target. Blocks which the target doesn't have
+ *  are remembered for a short time, so repeated probes for absent blocks don't all reach the target.
+ */
 public class CachingStorage implements ContentAddressedStorage {
+    public static final long DEFAULT_ABSENT_TTL_MILLIS = 5_000;
+    private static final int MAX_ABSENT_ENTRIES = 10_000;
+
     private final ContentAddressedStorage target;
-    private final LRUCache<Multihash, byte[]> cache;
-    private final LRUCache<Multihash, CompletableFuture<Optional<CborObject>>> pending;
-    private final LRUCache<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw;
+    private final TinyLfuCache<Multihash, byte[]> cache;
     private final int maxValueSize;
-
-    public CachingStorage(ContentAddressedStorage target, int cacheSize, int maxValueSize) {
+    private final long absentTtlMillis;
+    // guarded by this
+    private final Map<Multihash, CompletableFuture<Optional<byte[]>>> inFlight = new HashMap<>();
+    private final LRUCache<Multihash, Long> absent = new LRUCache<>(MAX_ABSENT_ENTRIES);
+    private long targetRequests, coalescedRequests, absentHits;
+
+    /**
+     *
+     * @param target The storage to cache reads from
+     * @param cacheSizeBytes The maximum total size of cached blocks
+     * @param maxValueSize Blocks this size or larger are never cached
+     * @param absentTtlMillis How long to remember that the target doesn't have a block
+     */
+    public CachingStorage(ContentAddressedStorage target, long cacheSizeBytes, int maxValueSize, long absentTtlMillis) {
         this.target = target;
-        this.cache = new LRUCache<>(cacheSize);
+        this.cache = new TinyLfuCache<>(cacheSizeBytes, (int) Math.min(1 << 20, cacheSizeBytes / 1024), v -> v.length);
         this.maxValueSize = maxValueSize;
-        this.pending = new LRUCache<>(100);
-        this.pendingRaw = new LRUCache<>(100);
+        this.absentTtlMillis = absentTtlMillis;
+    }
+
+    public CachingStorage(ContentAddressedStorage target, long cacheSizeBytes, int maxValueSize) {
+        this(target, cacheSizeBytes, maxValueSize, DEFAULT_ABSENT_TTL_MILLIS);
+    }
+
+    public TinyLfuCache<Multihash, byte[]> cache() {
+        return cache;
     }
 
     @Override
@@ -32,68 +57,140 @@ public class CachingStorage implements ContentAddressedStorage {
 
     @Override
     public CompletableFuture<List<Multihash>> put(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
-        return target.put(owner, writer, signatures, blocks);
+        return target.put(owner, writer, signatures, blocks).thenApply(this::written);
     }
 
     @Override
-    public CompletableFuture<Optional<CborObject>> get(Multihash key) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(cache.get(key))));
-
-        if (pending.containsKey(key))
-            return pending.get(key);
-
-        CompletableFuture<Optional<CborObject>> pipe = new CompletableFuture<>();
-        pending.put(key, pipe);
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return target.putRaw(owner, writer, signatures, blocks).thenApply(this::written);
+    }
 
-        CompletableFuture<Optional<CborObject>> result = new CompletableFuture<>();
-        target.get(key).thenAccept(cborOpt -> {
-            if (cborOpt.isPresent()) {
-                byte[] value = cborOpt.get().toByteArray();
-                if (value.length > 0 && value.length < maxValueSize)
-                    cache.put(key, value);
-            }
-            pending.remove(key);
-            pipe.complete(cborOpt);
-            result.complete(cborOpt);
-        }).exceptionally(t -> {
-            pending.remove(key);
-            pipe.completeExceptionally(t);
-            result.completeExceptionally(t);
-            return null;
-        });
-        return result;
+    private synchronized List<Multihash> written(List<Multihash> hashes) {
+        for (Multihash hash : hashes)
+            absent.remove(hash);
+        return hashes;
     }
 
     @Override
-    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
-        return target.putRaw(owner, writer, signatures, blocks);
+    public CompletableFuture<Optional<CborObject>> get(Multihash key) {
+        return getRaw(key).thenApply(rawOpt -> rawOpt.map(CborObject::fromByteArray));
     }
 
     @Override
     public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(cache.get(key)));
+        CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
+        Optional<CompletableFuture<Optional<byte[]>>> existing = existingOrRegister(key, pipe);
+        if (existing.isPresent())
+            return existing.get();
+
+        target.getRaw(key)
+                .thenAccept(rawOpt -> fetched(key, pipe, rawOpt))
+                .exceptionally(t -> failed(key, pipe, t));
+        return pipe;
+    }
 
-        if (pendingRaw.containsKey(key))
-            return pendingRaw.get(key);
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getRawMany(List<Multihash> hashes) {
+        List<CompletableFuture<Optional<byte[]>>> results = new ArrayList<>();
+        List<Multihash> toFetch = new ArrayList<>();
+        List<CompletableFuture<Optional<byte[]>>> pipes = new ArrayList<>();
+        for (Multihash hash : hashes) {
+            CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
+            Optional<CompletableFuture<Optional<byte[]>>> existing = existingOrRegister(hash, pipe);
+            if (existing.isPresent()) {
+                results.add(existing.get());
+                continue;
+            }
+            toFetch.add(hash);
+            pipes.add(pipe);
+            results.add(pipe);
+        }
+        if (! toFetch.isEmpty())
+            target.getRawMany(toFetch).thenAccept(blocks -> {
+                for (int i = 0; i < toFetch.size(); i++)
+                    fetched(toFetch.get(i), pipes.get(i), blocks.get(i));
+            }).exceptionally(t -> {
+                for (int i = 0; i < toFetch.size(); i++)
+                    failed(toFetch.get(i), pipes.get(i), t);
+                return null;
+            });
+        return Futures.combineAllInOrder(results);
+    }
 
-        CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
-        pendingRaw.put(key, pipe);
-        return target.getRaw(key).thenApply(rawOpt -> {
-            if (rawOpt.isPresent()) {
-                byte[] value = rawOpt.get();
-                if (value.length > 0 && value.length < maxValueSize)
-                    cache.put(key, value);
+    /**
+     *
+     * @return a future for the block if it is cached, known to be absent or already being fetched, otherwise
+     * register pipe as the in flight fetch for it
+     */
+    private Optional<CompletableFuture<Optional<byte[]>>> existingOrRegister(Multihash key, CompletableFuture<Optional<byte[]>> pipe) {
+        Optional<byte[]> cached = cache.get(key);
+        if (cached.isPresent())
+            return Optional.of(CompletableFuture.completedFuture(cached));
+
+        synchronized (this) {
+            Long expiry = absent.get(key);
+            if (expiry != null) {
+                if (expiry > System.currentTimeMillis()) {
+                    absentHits++;
+                    return Optional.of(CompletableFuture.completedFuture(Optional.empty()));
+                }
+                absent.remove(key);
             }
-            pendingRaw.remove(key);
-            pipe.complete(rawOpt);
-            return rawOpt;
-        }).exceptionally(t -> {
-            pending.remove(key);
-            pipe.completeExceptionally(t);
-            return null;
-        });
+            CompletableFuture<Optional<byte[]>> existing = inFlight.get(key);
+            if (existing != null) {
+                coalescedRequests++;
+                return Optional.of(existing);
+            }
+            inFlight.put(key, pipe);
+            targetRequests++;
+            return Optional.empty();
+        }
+    }
+
+    private void fetched(Multihash key, CompletableFuture<Optional<byte[]>> pipe, Optional<byte[]> rawOpt) {
+        if (rawOpt.isPresent()) {
+            byte[] value = rawOpt.get();
+            if (value.length > 0 && value.length < maxValueSize)
+                cache.put(key, value);
+        }
+        synchronized (this) {
+            inFlight.remove(key);
+            if (! rawOpt.isPresent())
+                absent.put(key, System.currentTimeMillis() + absentTtlMillis);
+        }
+        pipe.complete(rawOpt);
+    }
+
+    private Void failed(Multihash key, CompletableFuture<Optional<byte[]>> pipe, Throwable t) {
+        synchronized (this) {
+            inFlight.remove(key);
+        }
+        pipe.completeExceptionally(t);
+        return null;
+    }
+
+    /**
+     *
+     * @return the number of reads which were sent to the target
+     */
+    public synchronized long targetRequests() {
+        return targetRequests;
+    }
+
+    /**
+     *
+     * @return the number of reads which shared an in flight request to the target
+     */
+    public synchronized long coalescedRequests() {
+        return coalescedRequests;
+    }
+
+    /**
+     *
+     * @return the number of reads answered by the cache of absent blocks
+     */
+    public synchronized long absentHits() {
+        return absentHits;
     }
 
     @Override
@@ -120,4 +217,10 @@ public class CachingStorage implements ContentAddressedStorage {
     public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
         return target.getSize(block);
     }
+
+    @Override
+    public synchronized String toString() {
+        return "CachingStorage(" + cache + ", target requests: " + targetRequests + ", coalesced: " + coalescedRequests +
+                ", absent hits: " + absentHits + ")";
+    }
 }
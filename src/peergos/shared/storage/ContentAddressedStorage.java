@@ -52,6 +52,16 @@ public interface ContentAddressedStorage {
 
     CompletableFuture<Optional<byte[]>> getRaw(Multihash object);
 
+    /**
+     *
+     * @return the raw bytes of each block, in the same order as hashes, or empty for blocks which aren't present
+     */
+    default CompletableFuture<List<Optional<byte[]>>> getRawMany(List<Multihash> hashes) {
+        return Futures.combineAllInOrder(hashes.stream()
+                .map(this::getRaw)
+                .collect(Collectors.toList()));
+    }
+
     CompletableFuture<List<MultiAddress>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated);
 
     CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h);
@@ -109,37 +119,7 @@ public interface ContentAddressedStorage {
     }
 
     default CompletableFuture<Long> getChangeInContainedSize(Multihash original, Multihash updated) {
-        return getLinksAndSize(original)
-                .thenCompose(before -> getLinksAndSize(updated).thenCompose(after -> {
-                    int objectDelta = after.left - before.left;
-                    List<Multihash> onlyBefore = new ArrayList<>(before.right);
-                    onlyBefore.removeAll(after.right);
-                    List<Multihash> onlyAfter = new ArrayList<>(after.right);
-                    onlyAfter.removeAll(before.right);
-
-                    int nPairs = Math.min(onlyBefore.size(), onlyAfter.size());
-                    List<Pair<Multihash, Multihash>> pairs = IntStream.range(0, nPairs)
-                            .mapToObj(i -> new Pair<>(onlyBefore.get(i), onlyAfter.get(i)))
-                            .collect(Collectors.toList());
-
-                    List<Multihash> extraBefore = onlyBefore.subList(nPairs, onlyBefore.size());
-                    List<Multihash> extraAfter = onlyAfter.subList(nPairs, onlyAfter.size());
-                    Function<List<Multihash>, CompletableFuture<Long>> getAllRecursiveSizes =
-                            extra -> Futures.reduceAll(extra,
-                                    0L,
-                                    (s, h) -> getRecursiveBlockSize(h).thenApply(size -> size + s),
-                                    (a, b) -> a + b);
-
-                    Function<List<Pair<Multihash, Multihash>>, CompletableFuture<Long>> getSizeDiff =
-                            ps -> Futures.reduceAll(ps,
-                                    0L,
-                                    (s, p) -> getChangeInContainedSize(p.left, p.right).thenApply(size -> size + s),
-                                    (a, b) -> a + b);
-                    return getAllRecursiveSizes.apply(extraBefore)
-                            .thenCompose(priorSize -> getAllRecursiveSizes.apply(extraAfter)
-                                    .thenApply(postSize -> postSize - priorSize + objectDelta))
-                            .thenCompose(total -> getSizeDiff.apply(pairs).thenApply(res -> res + total));
-                }));
+        return new DagSizeDiff(this, DagSizeDiff.DEFAULT_PARALLELISM).diff(original, updated);
     }
 
     default CompletableFuture<Pair<Integer, List<Multihash>>> getLinksAndSize(Multihash block) {
@@ -151,9 +131,27 @@ public interface ContentAddressedStorage {
 
         private final HttpPoster poster;
         private final String apiPrefix = "api/v0/";
+        private final String binaryApiPrefix = "api/v1/";
+        private final boolean isPeergosServer;
+        // cleared if the target turns out not to have block/getMany, e.g. an older Peergos server
+        private volatile boolean hasGetMany;
+        // cleared if the target turns out not to have the binary v1 block/put, e.g. an older Peergos server
+        private volatile boolean hasBinaryPut;
+
+        /**
+         *
+         * @param isPeergosServer whether the target is a Peergos server, rather than an IPFS node, and so supports
+         *                        the binary v1 api and block/getMany
+         */
+        public HTTP(HttpPoster poster, boolean isPeergosServer) {
+            this.poster = poster;
+            this.isPeergosServer = isPeergosServer;
+            this.hasGetMany = isPeergosServer;
+            this.hasBinaryPut = isPeergosServer;
+        }
 
         public HTTP(HttpPoster poster) {
-            this.poster = poster;
+            this(poster, false);
         }
 
         private static Multihash getObjectHash(Object rawJson) {
@@ -189,16 +187,60 @@ public interface ContentAddressedStorage {
         }
 
         private CompletableFuture<List<Multihash>> put(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks, String format) {
+            if (! hasBinaryPut)
+                return putMultipart(owner, writer, signatures, blocks, format);
+            CompletableFuture<List<Multihash>> res = new CompletableFuture<>();
+            putBinary(owner, writer, signatures, blocks, format)
+                    .thenAccept(res::complete)
+                    .exceptionally(t -> {
+                        if (! isNotFound(t)) {
+                            res.completeExceptionally(t);
+                            return null;
+                        }
+                        hasBinaryPut = false;
+                        putMultipart(owner, writer, signatures, blocks, format)
+                                .thenAccept(res::complete)
+                                .exceptionally(e -> {
+                                    res.completeExceptionally(e);
+                                    return null;
+                                });
+                        return null;
+                    });
+            return res;
+        }
+
+        private CompletableFuture<List<Multihash>> putMultipart(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks, String format) {
             return poster.postMultipart(apiPrefix + "block/put?format=" + format
                     + "&owner=" + encode(owner.toString())
                     + "&writer=" + encode(writer.toString())
-                    + "&signatures=" + signatures.stream().map(ArrayOps::bytesToHex).reduce("", (a, b) -> a + "," + b).substring(1), blocks)
+                    + "&signatures=" + signatures.stream().map(ArrayOps::bytesToHex).collect(Collectors.joining(",")), blocks)
                     .thenApply(bytes -> JSONParser.parseStream(new String(bytes))
                             .stream()
                             .map(json -> getObjectHash(json))
                             .collect(Collectors.toList()));
         }
 
+        /**
+         * The body is a 4 byte big endian length followed by a cbor list of [signature, block], for each block, and
+         * the reply is a cbor list of the resulting links.
+         */
+        private CompletableFuture<List<Multihash>> putBinary(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks, String format) {
+            if (signatures.size() != blocks.size())
+                throw new IllegalStateException("Different number of signatures and blocks in put!");
+            DataSink body = new DataSink();
+            for (int i = 0; i < blocks.size(); i++)
+                body.writeArray(new CborObject.CborList(Arrays.asList(
+                        new CborObject.CborByteArray(signatures.get(i)),
+                        new CborObject.CborByteArray(blocks.get(i)))).toByteArray());
+            return poster.post(binaryApiPrefix + "block/put?format=" + format
+                    + "&owner=" + encode(owner.toString())
+                    + "&writer=" + encode(writer.toString()), body.toByteArray(), false)
+                    .thenApply(raw -> ((CborObject.CborList) CborObject.fromByteArray(raw)).value
+                            .stream()
+                            .map(link -> ((CborObject.CborMerkleLink) link).target)
+                            .collect(Collectors.toList()));
+        }
+
         @Override
         public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
             return poster.get(apiPrefix + "block/get?stream-channels=true&arg=" + hash.toString())
@@ -211,6 +253,72 @@ public interface ContentAddressedStorage {
                     .thenApply(raw -> raw.length == 0 ? Optional.empty() : Optional.of(raw));
         }
 
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getRawMany(List<Multihash> hashes) {
+            if (hashes.isEmpty())
+                return CompletableFuture.completedFuture(Collections.emptyList());
+            // IPFS has no batched block endpoint, so get each block separately
+            if (! hasGetMany)
+                return ContentAddressedStorage.super.getRawMany(hashes);
+            CompletableFuture<List<Optional<byte[]>>> res = new CompletableFuture<>();
+            poster.get(apiPrefix + "block/getMany?stream-channels=true" + hashes.stream()
+                    .map(h -> "&arg=" + h.toString())
+                    .collect(Collectors.joining()))
+                    .thenApply(raw -> parseBlockFrames(raw, hashes.size()))
+                    .thenAccept(res::complete)
+                    .exceptionally(t -> {
+                        if (! isNotFound(t)) {
+                            res.completeExceptionally(t);
+                            return null;
+                        }
+                        hasGetMany = false;
+                        ContentAddressedStorage.super.getRawMany(hashes)
+                                .thenAccept(res::complete)
+                                .exceptionally(e -> {
+                                    res.completeExceptionally(e);
+                                    return null;
+                                });
+                        return null;
+                    });
+            return res;
+        }
+
+        /**
+         *
+         * @return whether t was caused by a 404 response
+         */
+        private static boolean isNotFound(Throwable t) {
+            for (Throwable cause = t; cause != null; cause = cause.getCause())
+                if (cause instanceof FileNotFoundException)
+                    return true;
+            return false;
+        }
+
+        /**
+         * Parse a block/getMany response, which is a 4 byte big endian length followed by the block, for each block
+         * requested. A length of -1 means the block is absent.
+         */
+        private static List<Optional<byte[]>> parseBlockFrames(byte[] raw, int count) {
+            List<Optional<byte[]>> res = new ArrayList<>(count);
+            int offset = 0;
+            for (int i = 0; i < count; i++) {
+                if (offset + 4 > raw.length)
+                    throw new IllegalStateException("Truncated block/getMany response!");
+                int length = (raw[offset] & 0xff) << 24 | (raw[offset + 1] & 0xff) << 16 |
+                        (raw[offset + 2] & 0xff) << 8 | (raw[offset + 3] & 0xff);
+                offset += 4;
+                if (length < 0) {
+                    res.add(Optional.empty());
+                    continue;
+                }
+                if (offset + length > raw.length)
+                    throw new IllegalStateException("Truncated block/getMany response!");
+                res.add(Optional.of(Arrays.copyOfRange(raw, offset, offset + length)));
+                offset += length;
+            }
+            return res;
+        }
+
         @Override
         public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash hash) {
             return poster.get(apiPrefix + "pin/add?stream-channels=true&arg=" + hash.toString()
@@ -287,6 +395,11 @@ public interface ContentAddressedStorage {
             return local.getRaw(object);
         }
 
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getRawMany(List<Multihash> hashes) {
+            return local.getRawMany(hashes);
+        }
+
         @Override
         public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
             return local.getLinks(root);
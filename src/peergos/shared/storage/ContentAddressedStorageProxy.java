@@ -70,7 +70,7 @@ public interface ContentAddressedStorageProxy {
             return poster.postMultipart(getProxyUrlPrefix(targetServerId) + apiPrefix + "block/put?format=" + format
                     + "&owner=" + encode(owner.toString())
                     + "&writer=" + encode(writer.toString())
-                    + "&signatures=" + signatures.stream().map(ArrayOps::bytesToHex).reduce("", (a, b) -> a + "," + b).substring(1), blocks)
+                    + "&signatures=" + signatures.stream().map(ArrayOps::bytesToHex).collect(Collectors.joining(",")), blocks)
                     .thenApply(bytes -> JSONParser.parseStream(new String(bytes))
                             .stream()
                             .map(json -> getObjectHash(json))
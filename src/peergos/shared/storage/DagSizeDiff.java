@@ -0,0 +1,197 @@
+package peergos.shared.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** Computes the change in recursive size between two versions of a merkle DAG, only descending into subtrees which
+ *  differ.
+ *
+ *  Links common to both versions are cancelled by hash, counting duplicates, so shared subtrees are never visited.
+ *  Removed and added links are paired up in link order, which for a CHAMP keeps children from the same bucket
+ *  together, and each pair is diffed recursively. Unpaired subtrees are sized with getRecursiveBlockSize. Each block
+ *  is fetched at most once per diff, and at most maxParallelism fetches are outstanding at a time.
+ */
+class DagSizeDiff {
+    public static final int DEFAULT_PARALLELISM = 16;
+
+    private final ContentAddressedStorage dht;
+    private final int maxParallelism;
+    private final Map<Multihash, CompletableFuture<Pair<Integer, List<Multihash>>>> fetched = new HashMap<>();
+    private final LinkedList<Runnable> queued = new LinkedList<>();
+    private int running;
+    // finished tasks whose slot hasn't been handed on yet, and whether a release loop is already doing so
+    private int pendingReleases;
+    private boolean releasing;
+
+    DagSizeDiff(ContentAddressedStorage dht, int maxParallelism) {
+        this.dht = dht;
+        this.maxParallelism = maxParallelism;
+    }
+
+    public CompletableFuture<Long> diff(Multihash original, Multihash updated) {
+        if (original.equals(updated))
+            return CompletableFuture.completedFuture(0L);
+        CompletableFuture<Pair<Integer, List<Multihash>>> beforeFut = linksAndSize(original);
+        CompletableFuture<Pair<Integer, List<Multihash>>> afterFut = linksAndSize(updated);
+        return beforeFut.thenCompose(before -> afterFut.thenCompose(after -> {
+            Map<Multihash, Integer> counts = new HashMap<>();
+            for (Multihash h : before.right)
+                counts.put(h, counts.getOrDefault(h, 0) - 1);
+            for (Multihash h : after.right)
+                counts.put(h, counts.getOrDefault(h, 0) + 1);
+
+            List<Multihash> onlyBefore = new ArrayList<>();
+            for (Multihash h : before.right) {
+                int count = counts.get(h);
+                if (count < 0) {
+                    onlyBefore.add(h);
+                    counts.put(h, count + 1);
+                }
+            }
+            List<Multihash> onlyAfter = new ArrayList<>();
+            for (Multihash h : after.right) {
+                int count = counts.get(h);
+                if (count > 0) {
+                    onlyAfter.add(h);
+                    counts.put(h, count - 1);
+                }
+            }
+
+            List<CompletableFuture<Long>> parts = new ArrayList<>();
+            int nPairs = Math.min(onlyBefore.size(), onlyAfter.size());
+            for (int i = 0; i < nPairs; i++)
+                parts.add(diff(onlyBefore.get(i), onlyAfter.get(i)));
+            for (Multihash removed : onlyBefore.subList(nPairs, onlyBefore.size()))
+                parts.add(limited(() -> dht.getRecursiveBlockSize(removed)).thenApply(size -> -size));
+            for (Multihash added : onlyAfter.subList(nPairs, onlyAfter.size()))
+                parts.add(limited(() -> dht.getRecursiveBlockSize(added)));
+
+            return sum(after.left - before.left, parts);
+        }));
+    }
+
+    private CompletableFuture<Pair<Integer, List<Multihash>>> linksAndSize(Multihash block) {
+        CompletableFuture<Pair<Integer, List<Multihash>>> res;
+        synchronized (this) {
+            CompletableFuture<Pair<Integer, List<Multihash>>> existing = fetched.get(block);
+            if (existing != null)
+                return existing;
+            res = new CompletableFuture<>();
+            fetched.put(block, res);
+        }
+        onComplete(limited(() -> dht.getLinksAndSize(block)), (value, err) -> complete(res, value, err));
+        return res;
+    }
+
+    private static <T> void complete(CompletableFuture<T> target, T value, Throwable err) {
+        if (err != null)
+            target.completeExceptionally(err);
+        else
+            target.complete(value);
+    }
+
+    /**
+     * Equivalent to whenComplete, which our GWT emulation of CompletableFuture doesn't implement
+     */
+    private static <T> void onComplete(CompletableFuture<T> fut, BiConsumer<T, Throwable> action) {
+        fut.thenApply(value -> {
+            action.accept(value, null);
+            return true;
+        }).exceptionally(err -> {
+            action.accept(null, err);
+            return true;
+        });
+    }
+
+    /**
+     * Sum the parts as they complete, without building a chain of futures as long as the list
+     */
+    private static CompletableFuture<Long> sum(long initial, List<CompletableFuture<Long>> parts) {
+        CompletableFuture<Long> res = new CompletableFuture<>();
+        if (parts.isEmpty()) {
+            res.complete(initial);
+            return res;
+        }
+        long[] total = {initial};
+        int[] remaining = {parts.size()};
+        for (CompletableFuture<Long> part : parts) {
+            onComplete(part, (value, err) -> {
+                if (err != null) {
+                    res.completeExceptionally(err);
+                    return;
+                }
+                long result;
+                synchronized (total) {
+                    total[0] += value;
+                    if (--remaining[0] > 0)
+                        return;
+                    result = total[0];
+                }
+                res.complete(result);
+            });
+        }
+        return res;
+    }
+
+    /**
+     * Run the task now if fewer than maxParallelism tasks are running, otherwise once one of them has finished
+     */
+    private <T> CompletableFuture<T> limited(Supplier<CompletableFuture<T>> task) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        Runnable start = () -> {
+            CompletableFuture<T> fut;
+            try {
+                fut = task.get();
+            } catch (Throwable t) {
+                fut = new CompletableFuture<>();
+                fut.completeExceptionally(t);
+            }
+            onComplete(fut, (value, err) -> {
+                release();
+                complete(res, value, err);
+            });
+        };
+        synchronized (this) {
+            if (running >= maxParallelism) {
+                queued.add(start);
+                return res;
+            }
+            running++;
+        }
+        start.run();
+        return res;
+    }
+
+    /**
+     * Start the next queued task in place of a finished one. Queued tasks are started in a loop rather than
+     * recursively, as a task which completes synchronously releases its slot again before start returns.
+     */
+    private void release() {
+        synchronized (this) {
+            pendingReleases++;
+            if (releasing)
+                return;
+            releasing = true;
+        }
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                if (pendingReleases == 0) {
+                    releasing = false;
+                    return;
+                }
+                pendingReleases--;
+                next = queued.poll();
+                if (next == null) {
+                    running--;
+                    continue;
+                }
+            }
+            next.run();
+        }
+    }
+}
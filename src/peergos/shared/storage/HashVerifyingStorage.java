@@ -20,6 +20,14 @@ public class HashVerifyingStorage implements ContentAddressedStorage {
         this.source = source;
     }
 
+    /**
+     *
+     * @return the storage whose blocks this verifies
+     */
+    public ContentAddressedStorage source() {
+        return source;
+    }
+
     private <T> T verify(byte[] data, Multihash claimed, Supplier<T> result) {
         switch (claimed.type) {
             case sha2_256:
@@ -35,6 +43,18 @@ public class HashVerifyingStorage implements ContentAddressedStorage {
         }
     }
 
+    /**
+     * Verify every hash of a batch against its block, in parallel for larger batches
+     */
+    private List<Multihash> verifyAll(List<byte[]> blocks, List<Multihash> hashes) {
+        if (blocks.size() != hashes.size())
+            throw new IllegalStateException("Incorrect number of hashes! Expected: " + blocks.size() + " actual: " + hashes.size());
+        IntStream indices = IntStream.range(0, hashes.size());
+        return (hashes.size() > 1 ? indices.parallel() : indices)
+                .mapToObj(i -> verify(blocks.get(i), hashes.get(i), () -> hashes.get(i)))
+                .collect(Collectors.toList());
+    }
+
     @Override
     public CompletableFuture<Multihash> id() {
         return source.id();
@@ -43,23 +63,20 @@ public class HashVerifyingStorage implements ContentAddressedStorage {
     @Override
     public CompletableFuture<List<Multihash>> put(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
         return source.put(owner, writer, signatures, blocks)
-                .thenApply(hashes -> hashes.stream()
-                        .map(h -> verify(blocks.get(hashes.indexOf(h)), h, () -> h))
-                        .collect(Collectors.toList()));
+                .thenApply(hashes -> verifyAll(blocks, hashes));
     }
 
     @Override
     public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
-        return source.get(hash)
-                .thenApply(cborOpt -> cborOpt.map(cbor -> verify(cbor.toByteArray(), hash, () -> cbor)));
+        // verify the bytes as received, and only decode them once they are known to be correct
+        return source.getRaw(hash)
+                .thenApply(arrOpt -> arrOpt.map(bytes -> verify(bytes, hash, () -> CborObject.fromByteArray(bytes))));
     }
 
     @Override
     public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
         return source.putRaw(owner, writer, signatures, blocks)
-                .thenApply(hashes -> hashes.stream()
-                        .map(h -> verify(blocks.get(hashes.indexOf(h)), h, () -> h))
-                        .collect(Collectors.toList()));
+                .thenApply(hashes -> verifyAll(blocks, hashes));
     }
 
     @Override
@@ -68,6 +85,18 @@ public class HashVerifyingStorage implements ContentAddressedStorage {
                 .thenApply(arrOpt -> arrOpt.map(bytes -> verify(bytes, hash, () -> bytes)));
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getRawMany(List<Multihash> hashes) {
+        return source.getRawMany(hashes).thenApply(blocks -> {
+            if (blocks.size() != hashes.size())
+                throw new IllegalStateException("Incorrect number of blocks! Expected: " + hashes.size() + " actual: " + blocks.size());
+            IntStream indices = IntStream.range(0, hashes.size());
+            return (hashes.size() > 1 ? indices.parallel() : indices)
+                    .mapToObj(i -> blocks.get(i).map(bytes -> verify(bytes, hashes.get(i), () -> bytes)))
+                    .collect(Collectors.toList());
+        });
+    }
+
     @Override
     public CompletableFuture<List<MultiAddress>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
         return source.pinUpdate(owner, existing, updated);
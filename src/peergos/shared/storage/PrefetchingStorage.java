@@ -0,0 +1,294 @@
+package peergos.shared.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multiaddr.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Speculatively fetches the children of cbor blocks as they are read, so that walking down a CHAMP or a chain of
+ *  directory blobs doesn't cost a round trip per level.
+ *
+ *  When a cbor block is read, the cbor blocks it links to are fetched in a single batch into a buffer, and their
+ *  children in turn, up to maxDepth levels below the block that was read. Raw blocks are never prefetched. A block is
+ *  removed from the buffer when it is read, and no new prefetches are started while the buffer is full, so
+ *  prefetching is bounded by maxBytes.
+ */
+public class PrefetchingStorage implements ContentAddressedStorage {
+    public static final int DEFAULT_MAX_DEPTH = 2;
+    public static final long DEFAULT_MAX_BYTES = 5 * 1024 * 1024;
+    private static final int MAX_LINKS_PER_BLOCK = 64;
+
+    private final ContentAddressedStorage target;
+    private final int maxDepth;
+    private final long maxBytes;
+    // guarded by this, least recently prefetched first
+    private final LinkedHashMap<Multihash, byte[]> buffer = new LinkedHashMap<>();
+    private final Map<Multihash, CompletableFuture<Optional<byte[]>>> inFlight = new HashMap<>();
+    private long bufferedBytes;
+    private long requests, hits, inFlightHits, prefetched, unused;
+
+    /**
+     *
+     * @param target The storage to read and prefetch from
+     * @param maxDepth How many levels below a block that was read to prefetch
+     * @param maxBytes The maximum total size of prefetched blocks which haven't been read yet
+     */
+    public PrefetchingStorage(ContentAddressedStorage target, int maxDepth, long maxBytes) {
+        this.target = target;
+        this.maxDepth = maxDepth;
+        this.maxBytes = maxBytes;
+    }
+
+    public PrefetchingStorage(ContentAddressedStorage target) {
+        this(target, DEFAULT_MAX_DEPTH, DEFAULT_MAX_BYTES);
+    }
+
+    private static boolean isRaw(Multihash h) {
+        return h instanceof Cid && ((Cid) h).codec == Cid.Codec.Raw;
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash key) {
+        return getRaw(key).thenApply(rawOpt -> rawOpt.map(CborObject::fromByteArray));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
+        if (isRaw(key))
+            return target.getRaw(key);
+        byte[] buffered;
+        CompletableFuture<Optional<byte[]>> pending;
+        synchronized (this) {
+            requests++;
+            buffered = takeBuffered(key);
+            pending = buffered == null ? inFlight.get(key) : null;
+            if (pending != null)
+                inFlightHits++;
+        }
+        if (buffered != null) {
+            prefetchLinks(key, buffered, 1);
+            return CompletableFuture.completedFuture(Optional.of(buffered));
+        }
+        if (pending != null)
+            return pending.thenApply(rawOpt -> {
+                // already counted as an in flight hit
+                synchronized (this) {
+                    removeBuffered(key);
+                }
+                return rawOpt;
+            });
+        return target.getRaw(key).thenApply(rawOpt -> {
+            rawOpt.ifPresent(raw -> prefetchLinks(key, raw, 1));
+            return rawOpt;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getRawMany(List<Multihash> hashes) {
+        List<Optional<byte[]>> res = new ArrayList<>(Collections.nCopies(hashes.size(), Optional.empty()));
+        List<Integer> toFetch = new ArrayList<>();
+        synchronized (this) {
+            for (int i = 0; i < hashes.size(); i++) {
+                Multihash hash = hashes.get(i);
+                byte[] buffered = isRaw(hash) ? null : takeBuffered(hash);
+                if (! isRaw(hash))
+                    requests++;
+                if (buffered != null)
+                    res.set(i, Optional.of(buffered));
+                else
+                    toFetch.add(i);
+            }
+        }
+        for (int i = 0; i < hashes.size(); i++)
+            if (res.get(i).isPresent())
+                prefetchLinks(hashes.get(i), res.get(i).get(), 1);
+        if (toFetch.isEmpty())
+            return CompletableFuture.completedFuture(res);
+        List<Multihash> missing = new ArrayList<>();
+        for (int i : toFetch)
+            missing.add(hashes.get(i));
+        return target.getRawMany(missing).thenApply(blocks -> {
+            for (int j = 0; j < toFetch.size(); j++) {
+                Multihash hash = missing.get(j);
+                Optional<byte[]> block = blocks.get(j);
+                res.set(toFetch.get(j), block);
+                block.ifPresent(raw -> prefetchLinks(hash, raw, 1));
+            }
+            return res;
+        });
+    }
+
+    /**
+     * Must be called while holding this object's lock
+     *
+     * @return the buffered block, removing it from the buffer, or null if it isn't buffered
+     */
+    private byte[] takeBuffered(Multihash key) {
+        byte[] buffered = removeBuffered(key);
+        if (buffered != null)
+            hits++;
+        return buffered;
+    }
+
+    /**
+     * Must be called while holding this object's lock
+     *
+     * @return the buffered block, removing it from the buffer without counting a hit, or null if it isn't buffered
+     */
+    private byte[] removeBuffered(Multihash key) {
+        byte[] buffered = buffer.remove(key);
+        if (buffered != null)
+            bufferedBytes -= buffered.length;
+        return buffered;
+    }
+
+    /**
+     * Fetch the cbor children of block into the buffer, if there is space
+     */
+    private void prefetchLinks(Multihash block, byte[] raw, int depth) {
+        if (depth > maxDepth || isRaw(block))
+            return;
+        List<Multihash> links;
+        try {
+            links = CborObject.fromByteArray(raw).links();
+        } catch (RuntimeException e) {
+            return;
+        }
+        List<Multihash> toFetch = new ArrayList<>();
+        List<CompletableFuture<Optional<byte[]>>> pipes = new ArrayList<>();
+        synchronized (this) {
+            for (Multihash link : links) {
+                if (bufferedBytes >= maxBytes || toFetch.size() >= MAX_LINKS_PER_BLOCK)
+                    break;
+                if (isRaw(link) || buffer.containsKey(link) || inFlight.containsKey(link))
+                    continue;
+                CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
+                inFlight.put(link, pipe);
+                toFetch.add(link);
+                pipes.add(pipe);
+            }
+        }
+        if (toFetch.isEmpty())
+            return;
+        target.getRawMany(toFetch).thenAccept(blocks -> {
+            for (int i = 0; i < toFetch.size(); i++) {
+                Multihash child = toFetch.get(i);
+                Optional<byte[]> childRaw = blocks.get(i);
+                synchronized (this) {
+                    inFlight.remove(child);
+                    childRaw.ifPresent(value -> buffer(child, value));
+                }
+                pipes.get(i).complete(childRaw);
+                childRaw.ifPresent(value -> prefetchLinks(child, value, depth + 1));
+            }
+        }).exceptionally(t -> {
+            // readers waiting on a failed prefetch fall back to reading directly
+            for (int i = 0; i < toFetch.size(); i++) {
+                Multihash child = toFetch.get(i);
+                synchronized (this) {
+                    inFlight.remove(child);
+                }
+                CompletableFuture<Optional<byte[]>> pipe = pipes.get(i);
+                target.getRaw(child)
+                        .thenAccept(pipe::complete)
+                        .exceptionally(e -> {
+                            pipe.completeExceptionally(e);
+                            return null;
+                        });
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Must be called while holding this object's lock
+     */
+    private void buffer(Multihash key, byte[] value) {
+        if (buffer.containsKey(key))
+            return;
+        buffer.put(key, value);
+        bufferedBytes += value.length;
+        prefetched++;
+        Iterator<Map.Entry<Multihash, byte[]>> oldest = buffer.entrySet().iterator();
+        while (bufferedBytes > maxBytes && oldest.hasNext()) {
+            bufferedBytes -= oldest.next().getValue().length;
+            oldest.remove();
+            unused++;
+        }
+    }
+
+    /**
+     *
+     * @return the fraction of cbor block reads which were answered by a prefetch
+     */
+    public synchronized double hitRate() {
+        return requests == 0 ? 0 : (double) (hits + inFlightHits) / requests;
+    }
+
+    /**
+     *
+     * @return the number of blocks prefetched
+     */
+    public synchronized long prefetched() {
+        return prefetched;
+    }
+
+    /**
+     *
+     * @return the number of prefetched blocks dropped from the buffer before they were read
+     */
+    public synchronized long unused() {
+        return unused;
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+        return target.getLinks(root);
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+        return target.getSize(block);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return target.put(owner, writer, signatures, blocks);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> signatures, List<byte[]> blocks) {
+        return target.putRaw(owner, writer, signatures, blocks);
+    }
+
+    @Override
+    public CompletableFuture<Multihash> id() {
+        return target.id();
+    }
+
+    @Override
+    public CompletableFuture<List<MultiAddress>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return target.pinUpdate(owner, existing, updated);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h) {
+        return target.recursivePin(owner, h);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash h) {
+        return target.recursiveUnpin(owner, h);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PrefetchingStorage(requests: " + requests + ", hits: " + hits + ", in flight hits: " + inFlightHits +
+                ", prefetched: " + prefetched + ", unused: " + unused + ", buffered: " + bufferedBytes + "/" + maxBytes + ")";
+    }
+}
@@ -34,6 +34,11 @@ public class WriteFilter implements ContentAddressedStorage {
         return dht.getRaw(object);
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getRawMany(List<Multihash> hashes) {
+        return dht.getRawMany(hashes);
+    }
+
     @Override
     public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
         return dht.getLinks(root);
@@ -0,0 +1,224 @@
+package peergos.shared.util;
+
+import java.util.*;
+import java.util.function.*;
+
+/** A thread safe cache bounded by the total weight of its values, using the W-TinyLFU policy.
+ *
+ *  New entries go into a small LRU window. Entries evicted from the window are only admitted to the main segmented
+ *  LRU if they have been used more often than the entry they would displace, as estimated by a count-min sketch
+ *  of recent accesses. This means a single large scan can't flush frequently used entries.
+ */
+public class TinyLfuCache<K, V> {
+    private static final double WINDOW_FRACTION = 0.01;
+    private static final double PROTECTED_FRACTION = 0.8;
+    private static final int SKETCH_DEPTH = 4;
+    private static final int MAX_FREQUENCY = 15;
+
+    private final long maxWeight, maxWindowWeight, maxProtectedWeight;
+    private final Function<V, Integer> weigher;
+    private final BiConsumer<K, V> evictionListener;
+    private final LinkedHashMap<K, V> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, V> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, V> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowWeight, probationWeight, protectedWeight;
+
+    private final int[] sketch;
+    private final int sketchMask;
+    private final int sampleSize;
+    private int additions;
+
+    private long hits, misses, evictions;
+
+    /**
+     *
+     * @param maxWeight The maximum total weight of cached values
+     * @param expectedEntries Roughly how many entries the cache will hold when full, used to size the sketch
+     * @param weigher The weight of a value, e.g. its size in bytes
+     * @param evictionListener Called with every entry which is evicted or not admitted, while holding the cache's lock
+     */
+    public TinyLfuCache(long maxWeight, int expectedEntries, Function<V, Integer> weigher, BiConsumer<K, V> evictionListener) {
+        this.maxWeight = maxWeight;
+        this.maxWindowWeight = Math.max(1, (long) (maxWeight * WINDOW_FRACTION));
+        this.maxProtectedWeight = (long) ((maxWeight - maxWindowWeight) * PROTECTED_FRACTION);
+        this.weigher = weigher;
+        this.evictionListener = evictionListener;
+        int width = 64;
+        while (width < expectedEntries && width < (1 << 20))
+            width <<= 1;
+        this.sketch = new int[width * SKETCH_DEPTH];
+        this.sketchMask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    public TinyLfuCache(long maxWeight, int expectedEntries, Function<V, Integer> weigher) {
+        this(maxWeight, expectedEntries, weigher, (k, v) -> {});
+    }
+
+    public synchronized Optional<V> get(K key) {
+        increment(key);
+        V value = window.get(key);
+        if (value == null) {
+            value = protectedSegment.get(key);
+            if (value == null) {
+                value = probation.remove(key);
+                if (value != null)
+                    promote(key, value);
+            }
+        }
+        if (value == null) {
+            misses++;
+            return Optional.empty();
+        }
+        hits++;
+        return Optional.of(value);
+    }
+
+    public synchronized void put(K key, V value) {
+        int weight = weigher.apply(value);
+        if (weight > maxWeight - maxWindowWeight) {
+            evictionListener.accept(key, value);
+            return;
+        }
+        remove(key);
+        increment(key);
+        window.put(key, value);
+        windowWeight += weight;
+        evict();
+    }
+
+    public synchronized void remove(K key) {
+        V value = window.remove(key);
+        if (value != null) {
+            windowWeight -= weigher.apply(value);
+            return;
+        }
+        value = probation.remove(key);
+        if (value != null) {
+            probationWeight -= weigher.apply(value);
+            return;
+        }
+        value = protectedSegment.remove(key);
+        if (value != null)
+            protectedWeight -= weigher.apply(value);
+    }
+
+    private void promote(K key, V value) {
+        int weight = weigher.apply(value);
+        probationWeight -= weight;
+        protectedSegment.put(key, value);
+        protectedWeight += weight;
+        while (protectedWeight > maxProtectedWeight && protectedSegment.size() > 1) {
+            Map.Entry<K, V> demoted = eldest(protectedSegment);
+            protectedSegment.remove(demoted.getKey());
+            int demotedWeight = weigher.apply(demoted.getValue());
+            protectedWeight -= demotedWeight;
+            probation.put(demoted.getKey(), demoted.getValue());
+            probationWeight += demotedWeight;
+        }
+    }
+
+    private void evict() {
+        while (windowWeight > maxWindowWeight && ! window.isEmpty()) {
+            Map.Entry<K, V> candidate = eldest(window);
+            window.remove(candidate.getKey());
+            int weight = weigher.apply(candidate.getValue());
+            windowWeight -= weight;
+            admit(candidate.getKey(), candidate.getValue(), weight);
+        }
+    }
+
+    /**
+     * Move an entry from the window to the main segments if it is used more often than the entries it displaces
+     */
+    private void admit(K key, V value, int weight) {
+        long maxMainWeight = maxWeight - maxWindowWeight;
+        int candidateFrequency = frequency(key);
+        while (probationWeight + protectedWeight + weight > maxMainWeight) {
+            LinkedHashMap<K, V> segment = probation.isEmpty() ? protectedSegment : probation;
+            Map.Entry<K, V> victim = eldest(segment);
+            if (candidateFrequency <= frequency(victim.getKey())) {
+                evictions++;
+                evictionListener.accept(key, value);
+                return;
+            }
+            segment.remove(victim.getKey());
+            int victimWeight = weigher.apply(victim.getValue());
+            if (segment == probation)
+                probationWeight -= victimWeight;
+            else
+                protectedWeight -= victimWeight;
+            evictions++;
+            evictionListener.accept(victim.getKey(), victim.getValue());
+        }
+        probation.put(key, value);
+        probationWeight += weight;
+    }
+
+    private static <K, V> Map.Entry<K, V> eldest(LinkedHashMap<K, V> segment) {
+        return segment.entrySet().iterator().next();
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h ^= h << 7;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    private void increment(K key) {
+        int h1 = spread(key.hashCode());
+        int h2 = spread(h1 ^ 0x5bd1e995);
+        int index = h1;
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            int slot = row * (sketchMask + 1) + (index & sketchMask);
+            if (sketch[slot] < MAX_FREQUENCY)
+                sketch[slot]++;
+            index += h2;
+        }
+        if (++additions >= sampleSize) {
+            // age the counts so the sketch tracks recent popularity
+            for (int i = 0; i < sketch.length; i++)
+                sketch[i] >>>= 1;
+            additions /= 2;
+        }
+    }
+
+    private int frequency(K key) {
+        int h1 = spread(key.hashCode());
+        int h2 = spread(h1 ^ 0x5bd1e995);
+        int index = h1;
+        int min = MAX_FREQUENCY;
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            min = Math.min(min, sketch[row * (sketchMask + 1) + (index & sketchMask)]);
+            index += h2;
+        }
+        return min;
+    }
+
+    public synchronized int size() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+
+    public synchronized long weight() {
+        return windowWeight + probationWeight + protectedWeight;
+    }
+
+    public synchronized long hitCount() {
+        return hits;
+    }
+
+    public synchronized long missCount() {
+        return misses;
+    }
+
+    public synchronized long evictionCount() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TinyLfuCache(" + size() + " entries, " + weight() + "/" + maxWeight + ", hits: " + hits +
+                ", misses: " + misses + ", evictions: " + evictions + ")";
+    }
+}